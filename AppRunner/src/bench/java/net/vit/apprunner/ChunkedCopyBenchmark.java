@@ -0,0 +1,102 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import net.vit.apprunner.util.ExecutorBackend;
+
+/**
+ * Copies files of growing size once with {@link Files#copy} and once with
+ * {@link ChunkedFileCopier}, and prints the time each one took, to find the size from which on
+ * chunked copies pay off on a given disk. Not a unit test: it is compiled only with the
+ * {@code benchmarks} profile and run by hand, e.g.
+ *
+ * <pre>
+ * mvn -P benchmarks test-compile
+ * java -cp target/classes:target/test-classes net.vit.apprunner.ChunkedCopyBenchmark 2048
+ * </pre>
+ *
+ * Arguments are the size of the largest file in megabytes (1024 by default), the number of
+ * threads per file ({@link ChunkedFileCopier#PARALLELISM}) and the directory to create the files
+ * in (a temporary one). Sizes double from two ranges ({@link ChunkedFileCopier#RANGE_SIZE}) on,
+ * smaller files are never split. Every copy runs three times and the best time is reported; the
+ * source stays in the page cache, so the numbers show what the target disk takes.
+ *
+ * @author vit
+ */
+public class ChunkedCopyBenchmark {
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws Exception {
+    long maxMegabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+    int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : ChunkedFileCopier.PARALLELISM;
+    Path root = args.length > 2 ? Files.createDirectories(Paths.get(args[2]))
+        : Files.createTempDirectory("apprunner-bench");
+    ChunkedFileCopier copier = new ChunkedFileCopier(ExecutorBackend.PLATFORM, 1,
+        ChunkedFileCopier.RANGE_SIZE, parallelism);
+    Path source = root.resolve("source.bin");
+    Path target = root.resolve("target.bin");
+    System.out.printf("%10s %12s %12s %8s%n", "size, MB", "copy, MB/s", "chunked, MB/s",
+        "speedup");
+    Long crossover = null;
+    try {
+      long minMegabytes = 2 * ChunkedFileCopier.RANGE_SIZE / (1024 * 1024);
+      for (long megabytes = minMegabytes; megabytes <= maxMegabytes; megabytes *= 2) {
+        createFile(source, megabytes * 1024 * 1024);
+        long plain = best(() -> Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING));
+        long chunked = best(() -> copier.copy(source, target, null));
+        double speedup = (double) plain / chunked;
+        System.out.printf("%10d %12.0f %12.0f %8.2f%n", megabytes, rate(megabytes, plain),
+            rate(megabytes, chunked), speedup);
+        if (crossover == null && speedup > 1.1) {
+          crossover = megabytes;
+        } else if (speedup < 1.0) {
+          crossover = null;
+        }
+      }
+      System.out.println(crossover == null ? "Chunked copies don't pay off on this disk."
+          : String.format("Chunked copies pay off from %d MB on.", crossover));
+    } finally {
+      Files.deleteIfExists(source);
+      Files.deleteIfExists(target);
+      if (args.length <= 2) {
+        Files.delete(root);
+      }
+    }
+  }
+
+  private static interface Copy {
+    void run() throws IOException;
+  }
+
+  private static long best(Copy copy) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; ++round) {
+      long start = System.nanoTime();
+      copy.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  private static double rate(long megabytes, long nanos) {
+    return megabytes * 1e9 / Math.max(1, nanos);
+  }
+
+  private static void createFile(Path file, long size) throws IOException {
+    byte[] block = new byte[1024 * 1024];
+    new Random(size).nextBytes(block);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (long written = 0; written < size; written += block.length) {
+        channel.write(ByteBuffer.wrap(block));
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import net.vit.apprunner.util.ExecutorBackend;
+
+/**
+ * Copies many small files the way a {@literal <copy>} operation does, once per executor backend,
+ * and prints the time each one took. Not a unit test: it is compiled only with the
+ * {@code benchmarks} profile and run by hand, e.g.
+ * 
+ * <pre>
+ * mvn -P benchmarks test-compile
+ * java -cp target/classes:target/test-classes net.vit.apprunner.ExecutorBackendBenchmark 100000
+ * </pre>
+ * 
+ * Arguments are the number of files (100000 by default), their size in bytes (1024) and the
+ * directory to create them in (a temporary one). Every backend copies twice and the second run is
+ * reported, so that both read from a warm page cache.
+ *
+ * @author vit
+ */
+public class ExecutorBackendBenchmark {
+  private static final int FILES_PER_DIR = 1000;
+
+  public static void main(String[] args) throws Exception {
+    int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+    Path root = args.length > 2 ? Files.createDirectories(Paths.get(args[2]))
+        : Files.createTempDirectory("apprunner-bench");
+    Path source = root.resolve("source");
+    System.out.printf("Creating %d file(s) of %d byte(s) in \"%s\".%n", fileCount, fileSize,
+        source);
+    List<Path> files = createFiles(source, fileCount, fileSize);
+
+    int virtualParallelism = ExecutorBackend.VIRTUAL.getIoParallelism();
+    run("PLATFORM", ExecutorBackend.PLATFORM,
+        ExecutorBackend.PLATFORM.getIoParallelism(), source, files, root);
+    run("PLATFORM (oversubscribed)", ExecutorBackend.PLATFORM, virtualParallelism, source, files,
+        root);
+    if (ExecutorBackend.VIRTUAL.isAvailable()) {
+      run("VIRTUAL", ExecutorBackend.VIRTUAL, virtualParallelism, source, files, root);
+    } else {
+      System.out.println("VIRTUAL: skipped, virtual threads require Java 21 or newer.");
+    }
+    delete(root);
+  }
+
+  private static List<Path> createFiles(Path source, int fileCount, int fileSize)
+      throws IOException {
+    byte[] content = new byte[fileSize];
+    List<Path> files = new ArrayList<>(fileCount);
+    for (int i = 0; i < fileCount; ++i) {
+      Path dir = source.resolve(String.format("dir%04d", i / FILES_PER_DIR));
+      if (i % FILES_PER_DIR == 0) {
+        Files.createDirectories(dir);
+      }
+      content[0] = (byte) i;
+      files.add(Files.write(dir.resolve(String.format("file%06d.bin", i)), content));
+    }
+    return files;
+  }
+
+  private static void run(String name, ExecutorBackend backend, int parallelism, Path source,
+      List<Path> files, Path root) throws Exception {
+    long millis = 0;
+    for (int round = 0; round < 2; ++round) {
+      Path target = root.resolve("target");
+      delete(target);
+      long start = System.nanoTime();
+      copy(backend, parallelism, source, files, target);
+      millis = (System.nanoTime() - start) / 1_000_000;
+    }
+    System.out.printf("%-26s parallelism %4d: %6d ms, %8.0f files/s%n", name + ":", parallelism,
+        millis, files.size() * 1000.0 / Math.max(1, millis));
+  }
+
+  private static void copy(ExecutorBackend backend, int parallelism, Path source,
+      List<Path> files, Path target) throws Exception {
+    ExecutorService executor = backend.newExecutor("bench-copy", parallelism);
+    try {
+      List<Future<?>> copies = new ArrayList<>(files.size());
+      Path lastDir = null;
+      for (Path file : files) {
+        Path dest = target.resolve(source.relativize(file));
+        // Directories are created by the submitting thread, as in TaskExecuteHelper
+        if (!dest.getParent().equals(lastDir)) {
+          lastDir = Files.createDirectories(dest.getParent());
+        }
+        copies.add(executor.submit(() -> {
+          Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+          return null;
+        }));
+      }
+      for (Future<?> copy : copies) {
+        copy.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static void delete(Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
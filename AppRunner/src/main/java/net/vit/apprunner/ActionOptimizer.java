@@ -0,0 +1,317 @@
+package net.vit.apprunner;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import net.vit.apprunner.Settings.FileName;
+import net.vit.apprunner.Settings.FileNameBase;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Rewrites the actions of the requested tasks into cheaper ones with the same result:
+ * <ul>
+ * <li>a {@literal <copy>} directly followed by a {@literal <delete>} of exactly the copied files
+ * becomes a {@literal <move>}, which within one disk renames files instead of copying them;</li>
+ * <li>a {@literal <copy>} into a directory, which a later {@literal <delete>} removes before any
+ * action reads or writes anything in it, only creates the directory.</li>
+ * </ul>
+ * Operations referenced by several tasks are never changed: a rewritten action becomes an
+ * operation of its own task. The number and the order of the actions of a task stay the same,
+ * an action, which has nothing left to do, stays as an empty operation. Repeated searches for the
+ * same files are shared at run time by {@link SearchCache}.
+ *
+ * @author vit
+ */
+class ActionOptimizer {
+  /**
+   * Result of {@link ActionOptimizer#optimize(List)}.
+   */
+  static class Result {
+    private final Settings settings;
+    private final List<Task> tasks;
+    private final List<String> rewrites;
+    private final Set<String> evenedOutLater;
+
+    Result(Settings settings, List<Task> tasks, List<String> rewrites,
+        Set<String> evenedOutLater) {
+      this.settings = settings;
+      this.tasks = tasks;
+      this.rewrites = rewrites;
+      this.evenedOutLater = evenedOutLater;
+    }
+
+    /**
+     * @return settings to run the tasks with, holding the rewritten tasks
+     */
+    Settings getSettings() {
+      return settings;
+    }
+
+    /**
+     * @return rewritten tasks in the original order
+     */
+    List<Task> getTasks() {
+      return tasks;
+    }
+
+    /**
+     * @return human readable descriptions of the rewrites
+     */
+    List<String> getRewrites() {
+      return rewrites;
+    }
+
+    /**
+     * @return names of tasks, which leave other files behind than they would without rewrites,
+     *         because a later task deletes the difference anyway
+     */
+    Set<String> getEvenedOutLater() {
+      return evenedOutLater;
+    }
+  }
+
+  /**
+   * Action of a task with its internal operations, which may be rewritten.
+   */
+  private static class Step {
+    private final Task task;
+    private final Task.Action action;
+    private final List<Task.Operation.InternalOp> internals;
+    private boolean changed;
+
+    Step(Task task, Task.Action action, List<Task.Operation.InternalOp> internals) {
+      this.task = task;
+      this.action = action;
+      this.internals = internals;
+    }
+  }
+
+  private final Settings settings;
+
+  /**
+   * @param settings resolved settings
+   */
+  ActionOptimizer(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Rewrites the tasks. Neither the tasks nor the settings are changed.
+   *
+   * @param tasks tasks in the order they will run
+   * @return rewritten tasks
+   */
+  Result optimize(List<Task> tasks) {
+    List<List<Step>> steps = new ArrayList<>();
+    for (Task task : tasks) {
+      List<Step> taskSteps = new ArrayList<>();
+      for (Task.Action action : task.getActions()) {
+        Task.Operation operation = null;
+        if (action instanceof Task.OperationRef) {
+          operation = settings.getConfiguration().getOperationDefs()
+              .get(((Task.OperationRef) action).getRef()).getOperation();
+        } else if (action instanceof Task.Operation) {
+          operation = (Task.Operation) action;
+        }
+        taskSteps.add(new Step(task, action,
+            operation == null ? null : new ArrayList<>(operation.getInternals())));
+      }
+      steps.add(taskSteps);
+    }
+
+    List<String> rewrites = new ArrayList<>();
+    Set<String> evenedOutLater = new LinkedHashSet<>();
+    for (List<Step> taskSteps : steps) {
+      fuseCopyAndDelete(taskSteps, rewrites);
+    }
+    dropCopiesDeletedUnread(steps, rewrites, evenedOutLater);
+
+    Settings optimized = new Settings();
+    optimized.setConfiguration(settings.getConfiguration());
+    optimized.putAllTasks(settings.getTasks());
+    List<Task> result = new ArrayList<>();
+    for (int t = 0; t < tasks.size(); ++t) {
+      Task task = tasks.get(t);
+      List<Step> taskSteps = steps.get(t);
+      if (taskSteps.stream().noneMatch((step) -> step.changed)) {
+        result.add(task);
+        continue;
+      }
+      Task rewritten = new Task(task.getName());
+      rewritten.putAllConstants(task.getConstants());
+      rewritten.copyIoLimits(task);
+      for (Step step : taskSteps) {
+        rewritten.addAction(step.changed ? new Task.Operation(step.internals) : step.action);
+      }
+      optimized.putTask(rewritten.getName(), rewritten);
+      result.add(rewritten);
+    }
+    return new Result(optimized, result, rewrites, evenedOutLater);
+  }
+
+  /**
+   * Turns a copy, which is followed by a delete of its sources, into a move. The delete may be the
+   * first internal operation of the next action.
+   */
+  private static void fuseCopyAndDelete(List<Step> taskSteps, List<String> rewrites) {
+    Step previousStep = null;
+    for (Step step : taskSteps) {
+      if (step.internals == null) {
+        previousStep = null;
+        continue;
+      }
+      int i = 0;
+      while (i < step.internals.size()) {
+        Step copyStep = i > 0 ? step : previousStep;
+        int copyIndex = i > 0 ? i - 1 : copyStep == null ? -1 : copyStep.internals.size() - 1;
+        Task.Operation.InternalOp internalOp = step.internals.get(i);
+        if (copyIndex >= 0 && internalOp instanceof Task.Operation.Delete) {
+          Task.Operation.InternalOp previous = copyStep.internals.get(copyIndex);
+          if (previous instanceof Task.Operation.Copy && deletesSources(
+              (Task.Operation.Copy) previous, (Task.Operation.Delete) internalOp)) {
+            Task.Operation.Copy copy = (Task.Operation.Copy) previous;
+            Task.Operation.Move move = new Task.Operation.Move(copy.getFileNames(), copy.getTo());
+            move.setVerify(copy.isVerify());
+            copy.getDurability().ifPresent(move::setDurability);
+            copyStep.internals.set(copyIndex, move);
+            step.internals.remove(i);
+            copyStep.changed = true;
+            step.changed = true;
+            rewrites.add(String.format(
+                "Task \"%s\": <copy> to \"%s\" followed by <delete> of its sources "
+                    + "runs as <move>.",
+                step.task.getName(), copy.getTo()));
+            continue;
+          }
+        }
+        ++i;
+      }
+      previousStep = step.internals.isEmpty() ? previousStep : step;
+    }
+  }
+
+  /**
+   * @return true if the delete removes exactly what the copy copies, and the copy doesn't write
+   *         into its own sources
+   */
+  private static boolean deletesSources(Task.Operation.Copy copy, Task.Operation.Delete delete) {
+    List<FileNameBase> copied = copy.getFileNames();
+    List<FileNameBase> deleted = delete.getFileNames();
+    if (copied.size() != deleted.size()) {
+      return false;
+    }
+    Path to = Footprint.normalize(copy.getTo());
+    for (int i = 0; i < copied.size(); ++i) {
+      FileNameBase a = copied.get(i);
+      FileNameBase b = deleted.get(i);
+      Path in = Footprint.normalize(a.getIn());
+      if ((a instanceof FileName) != (b instanceof FileName)
+          || !in.equals(Footprint.normalize(b.getIn()))
+          || !sameFilter(a.getStartsWith(), b.getStartsWith())
+          || !sameFilter(a.getEndsWith(), b.getEndsWith())
+          || !sameFilter(a.getContains(), b.getContains()) || to.startsWith(in)
+          || in.startsWith(to)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean sameFilter(Optional<String> a, Optional<String> b) {
+    return Objects.equals(a.orElse("").toLowerCase(), b.orElse("").toLowerCase());
+  }
+
+  /**
+   * Empties copies into a directory, which the first later action touching it deletes as a
+   * whole. The copy still creates the directory, so that everything around it stays the same.
+   * Tasks, whose copies another task deletes, are added to {@code evenedOutLater}.
+   */
+  private void dropCopiesDeletedUnread(List<List<Step>> steps, List<String> rewrites,
+      Set<String> evenedOutLater) {
+    List<Step> all = new ArrayList<>();
+    steps.forEach(all::addAll);
+    for (int s = 0; s < all.size(); ++s) {
+      Step step = all.get(s);
+      if (step.internals == null) {
+        continue;
+      }
+      for (int i = 0; i < step.internals.size(); ++i) {
+        Task.Operation.InternalOp internalOp = step.internals.get(i);
+        if (!(internalOp instanceof Task.Operation.Copy)
+            || ((Task.Operation.Copy) internalOp).getFileNames().isEmpty()) {
+          continue;
+        }
+        Task.Operation.Copy copy = (Task.Operation.Copy) internalOp;
+        Path to = Footprint.normalize(copy.getTo());
+        Footprint probe = new Footprint();
+        probe.write(to, true);
+        Optional<Step> deletingStep = firstToucher(all, s, i, probe, to);
+        if (deletingStep.isPresent()) {
+          step.internals.set(i,
+              new Task.Operation.Copy(Collections.<FileNameBase>emptyList(), copy.getTo()));
+          step.changed = true;
+          if (deletingStep.get().task != step.task) {
+            evenedOutLater.add(step.task.getName());
+          }
+          rewrites.add(String.format(
+              "Task \"%s\": nothing <copy> writes to \"%s\" is used before task \"%s\" deletes "
+                  + "it. Only the directory is created.",
+              step.task.getName(), copy.getTo(), deletingStep.get().task.getName()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the first action after the given internal operation, which touches the directory.
+   *
+   * @return the step, if it is a delete removing the directory as a whole
+   */
+  private Optional<Step> firstToucher(List<Step> all, int stepIndex, int internalIndex,
+      Footprint probe, Path dir) {
+    for (int s = stepIndex; s < all.size(); ++s) {
+      Step step = all.get(s);
+      if (step.internals == null) {
+        if (s > stepIndex && probe.conflictsWith(Footprint.of(step.action, settings))) {
+          return Optional.empty();
+        }
+        continue;
+      }
+      for (int i = s == stepIndex ? internalIndex + 1 : 0; i < step.internals.size(); ++i) {
+        Task.Operation.InternalOp internalOp = step.internals.get(i);
+        Footprint footprint =
+            Footprint.of(new Task.Operation(Collections.singletonList(internalOp)), settings);
+        if (probe.conflictsWith(footprint)) {
+          return internalOp instanceof Task.Operation.Delete
+              && deletesWhole((Task.Operation.Delete) internalOp, dir)
+                  ? Optional.of(step)
+                  : Optional.empty();
+        }
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @return true if the delete removes the directory with everything in it, whatever it holds
+   */
+  private static boolean deletesWhole(Task.Operation.Delete delete, Path dir) {
+    String name = dir.getFileName().toString().toLowerCase();
+    for (FileNameBase fileNameBase : delete.getFileNames()) {
+      // A <file> deletes only the first match, which may be another entry
+      if (!(fileNameBase instanceof FileName) && dir.getParent() != null
+          && dir.getParent().equals(Footprint.normalize(fileNameBase.getIn()))
+          && name.startsWith(fileNameBase.getStartsWith().orElse("").toLowerCase())
+          && name.endsWith(fileNameBase.getEndsWith().orElse("").toLowerCase())
+          && name.contains(fileNameBase.getContains().orElse("").toLowerCase())) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
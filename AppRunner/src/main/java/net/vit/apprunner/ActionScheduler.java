@@ -0,0 +1,638 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.ExecutorBackend;
+import net.vit.apprunner.util.TraceRecorder;
+
+/**
+ * Executes the actions of all requested tasks, possibly concurrently.
+ * <p/>
+ * Every action becomes a {@link Unit}. A unit depends on every earlier unit (in the order the tasks
+ * were given in the command line and the actions appear in the module), whose {@link Footprint}
+ * conflicts with its own, so the result is the same as if everything ran one by one. A unit, which
+ * conflicts with an action of an earlier task, waits for the whole task, so that nothing changes
+ * the files of a finished task before its state is recorded, see {@link UpToDateChecker}.
+ * <p/>
+ * Units are of two {@link ResourceClass resource classes}. External applications are
+ * {@link ResourceClass#PROCESS CPU bound} and share one limit. Operations on files are
+ * {@link ResourceClass#IO I/O bound} and need a lane on every {@link FileStore} they touch. Each
+ * store has its own limit, so that e.g. several copies to one SATA disk don't thrash it, while
+ * processes and copies to other disks keep running. Units run on threads of the
+ * {@link ExecutorBackend} chosen by user, which only decides what a waiting unit costs: the limits
+ * are the same for every backend.
+ * <p/>
+ * When several actions may run at once, the order in which ready units start matters. With the
+ * {@link SchedulePolicy#CRITICAL_PATH} policy every unit is expected to take as long as it took
+ * before, see {@link RunHistory}, and the unit heading the longest chain of dependent units
+ * starts first; of equally long chains, the longest unit. Ready units still never overtake
+ * units they conflict with. After the run the predicted and the actual times are logged.
+ *
+ * @author vit
+ */
+class ActionScheduler {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Number of upcoming actions prefetched while applications run.
+   */
+  static final int PREFETCH_LOOKAHEAD = 2;
+
+  /**
+   * Kind of resource an action mostly consumes.
+   */
+  static enum ResourceClass {
+    PROCESS, IO
+  }
+
+  /**
+   * Order, in which ready units start.
+   */
+  static enum SchedulePolicy {
+    /**
+     * In the order tasks were requested and actions declared.
+     */
+    DECLARED,
+    /**
+     * Longest expected chain of dependent units first, see {@link RunHistory}.
+     */
+    CRITICAL_PATH
+  }
+
+  /**
+   * Concurrency limits.
+   */
+  static class Limits {
+    private final int jobs;
+    private final int processes;
+    private final int ioLanes;
+    private final Map<FileStore, Integer> ioLanesPerStore;
+    private final ExecutorBackend backend;
+    private final IoThrottle throttle;
+    private final long prefetchBudget;
+    private final ChunkedFileCopier chunkedCopier;
+    private final SchedulePolicy schedule;
+
+    /**
+     * @param jobs maximum number of actions running at the same time
+     * @param processes maximum number of external applications running at the same time
+     * @param ioLanes maximum number of operations on files running at the same time on one store,
+     *        unless specified in {@code ioLanesPerStore}
+     * @param ioLanesPerStore limits for specific stores
+     * @param backend threads actions and their file operations run on
+     * @param throttle bandwidth and file operation limits
+     * @param prefetchBudget bytes of inputs of upcoming actions read ahead, see
+     *        {@link InputPrefetcher}
+     * @param chunkedCopier copier of large files
+     * @param schedule order, in which ready units start, if more than one job may run
+     */
+    Limits(int jobs, int processes, int ioLanes, Map<FileStore, Integer> ioLanesPerStore,
+        ExecutorBackend backend, IoThrottle throttle, long prefetchBudget,
+        ChunkedFileCopier chunkedCopier, SchedulePolicy schedule) {
+      this.jobs = jobs;
+      this.processes = processes;
+      this.ioLanes = ioLanes;
+      this.ioLanesPerStore = ioLanesPerStore;
+      this.backend = backend;
+      this.throttle = throttle;
+      this.prefetchBudget = prefetchBudget;
+      this.chunkedCopier = chunkedCopier;
+      this.schedule = schedule;
+    }
+
+    /**
+     * Reads limits from {@link CliArgs#jobs}, {@link CliArgs#maxProcesses},
+     * {@link CliArgs#ioLanes}, {@link CliArgs#ioLimits} and {@link CliArgs#executor}, and the
+     * throttle from {@link CliArgs#ioRates} and {@link CliArgs#ioOps}, the prefetch budget from
+     * {@link CliArgs#prefetchBudget}, the chunked copy threshold from
+     * {@link CliArgs#chunkedCopyThreshold} and the policy from {@link CliArgs#schedule}.
+     *
+     * @param cliArgs
+     * @return new limits
+     * @throws IOException if the store of a path from {@link CliArgs#ioLimits} can't be determined
+     */
+    static Limits of(CliArgs cliArgs) throws IOException {
+      Map<FileStore, Integer> perStore = new HashMap<>();
+      for (String ioLimit : cliArgs.ioLimits) {
+        int separator = ioLimit.lastIndexOf('=');
+        if (separator <= 0) {
+          String errorMessage = String.format(
+              "I/O limit \"%s\" has to be of the form <path>=<number of lanes>.", ioLimit);
+          throw new IllegalArgumentException(errorMessage);
+        }
+        Path path = Footprint.normalize(ioLimit.substring(0, separator));
+        perStore.put(fileStoreOf(path), Integer.valueOf(ioLimit.substring(separator + 1)));
+      }
+      return new Limits(cliArgs.jobs, cliArgs.maxProcesses, cliArgs.ioLanes, perStore,
+          cliArgs.executor, IoThrottle.of(cliArgs), cliArgs.prefetchBudget * 1024L * 1024,
+          ChunkedFileCopier.of(cliArgs), cliArgs.schedule);
+    }
+
+    int getJobs() {
+      return jobs;
+    }
+
+    /**
+     * @param store
+     * @return maximum number of operations on files running at the same time on the store
+     */
+    int lanesOf(FileStore store) {
+      return Math.max(1, ioLanesPerStore.getOrDefault(store, ioLanes));
+    }
+  }
+
+  /**
+   * One action of one task.
+   */
+  static class Unit {
+    private final int index;
+    private final Task task;
+    private final int actionIndex;
+    private final Task.Action action;
+    private final ResourceClass resourceClass;
+    private final Footprint footprint;
+    private final List<FileStore> stores;
+    private final List<Unit> dependencies;
+    private final List<Unit> dependents;
+    private int pendingDependencies;
+    private boolean started;
+    private long estimate;
+    private long priority;
+
+    Unit(int index, Task task, int actionIndex, Footprint footprint, List<FileStore> stores) {
+      this.index = index;
+      this.task = task;
+      this.actionIndex = actionIndex;
+      this.action = task.getActions().get(actionIndex);
+      this.resourceClass =
+          action instanceof Task.Application || action instanceof Task.Pipeline
+              ? ResourceClass.PROCESS
+              : ResourceClass.IO;
+      this.footprint = footprint;
+      this.stores = stores;
+      this.dependencies = new ArrayList<>();
+      this.dependents = new ArrayList<>();
+    }
+
+    int getIndex() {
+      return index;
+    }
+
+    Task getTask() {
+      return task;
+    }
+
+    Task.Action getAction() {
+      return action;
+    }
+
+    ResourceClass getResourceClass() {
+      return resourceClass;
+    }
+
+    Footprint getFootprint() {
+      return footprint;
+    }
+
+    List<Unit> getDependencies() {
+      return dependencies;
+    }
+
+    /**
+     * @return expected duration in milliseconds
+     */
+    long getEstimate() {
+      return estimate;
+    }
+
+    /**
+     * @return expected duration in milliseconds of the longest chain of units starting with this
+     *         one
+     */
+    long getPriority() {
+      return priority;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("#%d %s/%s", index, task.getName(), action.getClass().getSimpleName());
+    }
+  }
+
+  /**
+   * Execution state of one task.
+   */
+  private static class TaskRun {
+    private int remaining;
+    private long startNanos;
+    private long elapsedNanos;
+    private TraceRecorder.Span span;
+    private AppRunnerEvents.TaskEvent event;
+  }
+
+  private static class Completion {
+    private final Unit unit;
+    private final RuntimeException error;
+    private final long nanos;
+
+    Completion(Unit unit, RuntimeException error, long nanos) {
+      this.unit = unit;
+      this.error = error;
+      this.nanos = nanos;
+    }
+  }
+
+  private final Settings settings;
+  private final String module;
+  private final Limits limits;
+  private final List<Task> tasks;
+  private final List<Unit> units;
+  private final Semaphore processPermits;
+  private final Map<FileStore, Semaphore> ioPermits;
+  private final SearchCache searchCache;
+  private final RunHistory history;
+  private final Consumer<Task> taskFinished;
+
+  /**
+   * Builds units and their dependencies for the given tasks. Names of the tasks have to be resolved.
+   *
+   * @param settings
+   * @param module module name, used for reporting
+   * @param tasks tasks in the order they were requested
+   * @param limits
+   * @param searchCache results of file searches shared by all actions
+   * @param history durations of earlier runs, which the durations of this run are added to
+   * @param taskFinished called for every task, all of whose actions have finished successfully,
+   *        before anything conflicting with it starts, may be null
+   * @throws IOException if the store of a path can't be determined
+   */
+  ActionScheduler(Settings settings, String module, List<Task> tasks, Limits limits,
+      SearchCache searchCache, RunHistory history, Consumer<Task> taskFinished)
+      throws IOException {
+    this.settings = settings;
+    this.searchCache = searchCache;
+    this.history = history;
+    this.taskFinished = taskFinished;
+    this.module = module;
+    this.limits = limits;
+    this.tasks = tasks;
+    this.units = new ArrayList<>();
+    this.processPermits = new Semaphore(Math.max(1, limits.processes));
+    this.ioPermits = new HashMap<>();
+
+    Map<Path, FileStore> storeCache = new HashMap<>();
+    Map<Task, List<Unit>> unitsOfTasks = new HashMap<>();
+    for (Task task : tasks) {
+      for (int actionIndex = 0; actionIndex < task.getActions().size(); ++actionIndex) {
+        Task.Action action = task.getActions().get(actionIndex);
+        Footprint footprint = Footprint.of(action, settings);
+        List<FileStore> stores = new ArrayList<>();
+        if (!(action instanceof Task.Application || action instanceof Task.Pipeline)) {
+          for (Path path : footprint.getPaths()) {
+            FileStore store = storeCache.get(path);
+            if (store == null) {
+              store = fileStoreOf(path);
+              storeCache.put(path, store);
+            }
+            if (!stores.contains(store)) {
+              stores.add(store);
+            }
+          }
+          // Always acquire lanes in the same order to avoid starvation of multi store units
+          stores.sort(Comparator.comparing(FileStore::toString));
+        }
+        Unit unit = new Unit(units.size(), task, actionIndex, footprint, stores);
+        unit.estimate = history.estimate(task, actionIndex, unit.resourceClass);
+        Set<Unit> dependencies = new LinkedHashSet<>();
+        for (Unit earlier : units) {
+          if (earlier.footprint.conflictsWith(footprint)) {
+            if (earlier.task == task) {
+              dependencies.add(earlier);
+            } else {
+              dependencies.addAll(unitsOfTasks.get(earlier.task));
+            }
+          }
+        }
+        for (Unit dependency : dependencies) {
+          unit.dependencies.add(dependency);
+          dependency.dependents.add(unit);
+        }
+        unit.pendingDependencies = unit.dependencies.size();
+        units.add(unit);
+        unitsOfTasks.computeIfAbsent(task, (t) -> new ArrayList<>()).add(unit);
+        for (FileStore store : stores) {
+          ioPermits.computeIfAbsent(store, (s) -> new Semaphore(limits.lanesOf(s)));
+        }
+      }
+    }
+    // Dependents always come later
+    for (int i = units.size() - 1; i >= 0; --i) {
+      Unit unit = units.get(i);
+      unit.priority = unit.estimate
+          + unit.dependents.stream().mapToLong((dependent) -> dependent.priority).max().orElse(0);
+    }
+  }
+
+  List<Unit> getUnits() {
+    return units;
+  }
+
+  /**
+   * Runs all units and waits for them to finish. After the first failure no new units are
+   * started, the running ones are waited for and the failure is rethrown.
+   */
+  void run() {
+    if (limits.jobs > 1) {
+      logger.info(String.format(
+          "Scheduling %d action(s) of %d task(s): up to %d at a time, %d process(es), "
+              + "I/O lanes %s.",
+          units.size(), tasks.size(), limits.jobs, processPermits.availablePermits(),
+          ioPermits.entrySet().stream()
+              .map((entry) -> entry.getKey() + "=" + entry.getValue().availablePermits())
+              .collect(Collectors.joining(", ", "[", "]"))));
+    }
+
+    Map<Task, TaskRun> taskRuns = new LinkedHashMap<>();
+    for (Task task : tasks) {
+      taskRuns.computeIfAbsent(task, (t) -> new TaskRun()).remaining += task.getActions().size();
+    }
+    // Tasks without actions are done right away
+    taskRuns.forEach((task, taskRun) -> {
+      if (taskRun.remaining == 0) {
+        startTask(task, taskRun);
+        finishTask(task, taskRun);
+      }
+    });
+
+    long startNanos = System.nanoTime();
+    TreeSet<Unit> ready = new TreeSet<>(order());
+    List<Unit> active = new ArrayList<>();
+    InputPrefetcher prefetcher = new InputPrefetcher(settings, limits.prefetchBudget);
+    units.stream().filter((unit) -> unit.pendingDependencies == 0).forEach(ready::add);
+    LinkedBlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    ExecutorService executor = limits.backend.newExecutor("apprunner-worker", limits.jobs);
+    limits.throttle.startReporting(tasks);
+    RuntimeException failure = null;
+    int running = 0;
+    try {
+      while (true) {
+        if (failure == null) {
+          for (Unit unit : new ArrayList<>(ready)) {
+            if (running >= limits.jobs) {
+              break;
+            }
+            if (tryAcquire(unit)) {
+              ready.remove(unit);
+              ++running;
+              unit.started = true;
+              active.add(unit);
+              prefetcher.started(unit);
+              TaskRun taskRun = taskRuns.get(unit.task);
+              if (taskRun.span == null) {
+                startTask(unit.task, taskRun);
+              }
+              executor.execute(() -> completions.add(execute(unit)));
+            }
+          }
+        }
+        if (running == 0) {
+          break;
+        }
+        if (failure == null) {
+          prefetch(prefetcher, active);
+        }
+
+        Completion completion = completions.take();
+        --running;
+        release(completion.unit);
+        active.remove(completion.unit);
+        prefetcher.changed(completion.unit.footprint);
+        if (completion.error != null) {
+          if (failure == null) {
+            failure = completion.error;
+          }
+          continue;
+        }
+        history.actionFinished(completion.unit.task, completion.unit.actionIndex,
+            completion.unit.resourceClass, TimeUnit.NANOSECONDS.toMillis(completion.nanos));
+        TaskRun taskRun = taskRuns.get(completion.unit.task);
+        if (--taskRun.remaining == 0) {
+          finishTask(completion.unit.task, taskRun);
+        }
+        for (Unit dependent : completion.unit.dependents) {
+          if (--dependent.pendingDependencies == 0) {
+            ready.add(dependent);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+      prefetcher.close();
+      limits.throttle.stopReporting();
+      // Tasks cut short by a failure still end their spans
+      taskRuns.values().stream().filter((taskRun) -> taskRun.span != null && taskRun.remaining > 0)
+          .forEach((taskRun) -> taskRun.span.close());
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+    report(taskRuns, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return order of ready units according to {@link Limits#schedule}
+   */
+  private Comparator<Unit> order() {
+    Comparator<Unit> declared = Comparator.comparingInt(Unit::getIndex);
+    if (limits.jobs <= 1 || limits.schedule == SchedulePolicy.DECLARED) {
+      return declared;
+    }
+    return Comparator.comparingLong(Unit::getPriority).reversed()
+        .thenComparing(Comparator.comparingLong(Unit::getEstimate).reversed())
+        .thenComparing(declared);
+  }
+
+  /**
+   * Logs how long the run and every task took against what the history predicted.
+   */
+  private void report(Map<Task, TaskRun> taskRuns, long elapsedNanos) {
+    taskRuns.forEach((task, taskRun) -> {
+      long predicted = history.estimate(task);
+      if (predicted < 0) {
+        predicted = units.stream().filter((unit) -> unit.task == task)
+            .mapToLong(Unit::getEstimate).sum();
+      }
+      logger.fine(String.format("Task \"%s\" took %.1f s, predicted %.1f s.", task.getName(),
+          taskRun.elapsedNanos / 1e9, predicted / 1e3));
+    });
+    long known = units.stream()
+        .filter((unit) -> history.isKnown(unit.task, unit.actionIndex, unit.resourceClass))
+        .count();
+    logger.info(String.format(
+        "Run took %.1f s, predicted %.1f s from the history of %d of %d action(s).",
+        elapsedNanos / 1e9, predictMakespan() / 1e3, known, units.size()));
+  }
+
+  /**
+   * Simulates the run with the expected durations of the units, the job limit and the process
+   * limit. I/O lanes are left out.
+   *
+   * @return expected duration of the run in milliseconds
+   */
+  private long predictMakespan() {
+    Map<Unit, Integer> pending = new HashMap<>();
+    units.forEach((unit) -> pending.put(unit, unit.dependencies.size()));
+    TreeSet<Unit> ready = new TreeSet<>(order());
+    units.stream().filter((unit) -> unit.dependencies.isEmpty()).forEach(ready::add);
+    // Finish time and index of running units
+    PriorityQueue<long[]> running =
+        new PriorityQueue<>(Comparator.comparingLong((long[] entry) -> entry[0]));
+    int processes = 0;
+    long now = 0;
+    while (!ready.isEmpty() || !running.isEmpty()) {
+      for (Unit unit : new ArrayList<>(ready)) {
+        if (running.size() >= limits.jobs) {
+          break;
+        }
+        boolean process = unit.resourceClass == ResourceClass.PROCESS;
+        if (process && processes >= Math.max(1, limits.processes)) {
+          continue;
+        }
+        ready.remove(unit);
+        processes += process ? 1 : 0;
+        running.add(new long[] {now + unit.estimate, unit.index});
+      }
+      long[] finished = running.poll();
+      now = finished[0];
+      Unit unit = units.get((int) finished[1]);
+      processes -= unit.resourceClass == ResourceClass.PROCESS ? 1 : 0;
+      for (Unit dependent : unit.dependents) {
+        if (pending.merge(dependent, -1, Integer::sum) == 0) {
+          ready.add(dependent);
+        }
+      }
+    }
+    return now;
+  }
+
+  /**
+   * While an application runs, prefetches inputs of the next {@link #PREFETCH_LOOKAHEAD} actions,
+   * which haven't started yet.
+   */
+  private void prefetch(InputPrefetcher prefetcher, List<Unit> active) {
+    if (active.stream().noneMatch((unit) -> unit.resourceClass == ResourceClass.PROCESS)) {
+      return;
+    }
+    Footprint busy = new Footprint();
+    active.forEach((unit) -> busy.addAll(unit.footprint));
+    int lookahead = 0;
+    for (Unit unit : units) {
+      if (lookahead == PREFETCH_LOOKAHEAD) {
+        break;
+      }
+      if (!unit.started) {
+        prefetcher.prefetch(unit, busy);
+        ++lookahead;
+      }
+    }
+  }
+
+  private Completion execute(Unit unit) {
+    long startNanos = System.nanoTime();
+    try {
+      new TaskExecuteHelper(settings, unit.task.getName(), limits.backend, limits::lanesOf,
+          searchCache, limits.throttle, limits.chunkedCopier).launchAction(unit.action);
+      return new Completion(unit, null, System.nanoTime() - startNanos);
+    } catch (RuntimeException e) {
+      return new Completion(unit, e, 0);
+    } catch (Error e) {
+      return new Completion(unit, new RuntimeException(e), 0);
+    }
+  }
+
+  private void startTask(Task task, TaskRun taskRun) {
+    logger.info(String.format("--- Running task \"%s\" ---", task.getName()));
+    taskRun.startNanos = System.nanoTime();
+    taskRun.span = TraceRecorder.asyncSpan(task.getName(), "task");
+    taskRun.event = new AppRunnerEvents.TaskEvent();
+    taskRun.event.begin();
+  }
+
+  private void finishTask(Task task, TaskRun taskRun) {
+    taskRun.span.close();
+    taskRun.event.taskName = task.getName();
+    taskRun.event.module = module;
+    taskRun.event.actionCount = task.getActions().size();
+    taskRun.event.commit();
+    ProgressMonitor.taskFinished(task.getName());
+    taskRun.elapsedNanos = System.nanoTime() - taskRun.startNanos;
+    history.taskFinished(task, TimeUnit.NANOSECONDS.toMillis(taskRun.elapsedNanos));
+    if (taskFinished != null) {
+      taskFinished.accept(task);
+    }
+  }
+
+  private boolean tryAcquire(Unit unit) {
+    if (unit.resourceClass == ResourceClass.PROCESS) {
+      return processPermits.tryAcquire();
+    }
+    for (int i = 0; i < unit.stores.size(); ++i) {
+      if (!ioPermits.get(unit.stores.get(i)).tryAcquire()) {
+        for (int j = 0; j < i; ++j) {
+          ioPermits.get(unit.stores.get(j)).release();
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void release(Unit unit) {
+    if (unit.resourceClass == ResourceClass.PROCESS) {
+      processPermits.release();
+    } else {
+      unit.stores.forEach((store) -> ioPermits.get(store).release());
+    }
+  }
+
+  /**
+   * @param path absolute path, which may not exist yet
+   * @return store of the path or of its closest existing ancestor
+   * @throws IOException
+   */
+  static FileStore fileStoreOf(Path path) throws IOException {
+    Path existing = path;
+    while (existing != null && !Files.exists(existing)) {
+      existing = existing.getParent();
+    }
+    if (existing == null) {
+      String errorMessage = String.format("Couldn't determine file store of \"%s\".", path);
+      throw new IOException(errorMessage);
+    }
+    return Files.getFileStore(existing);
+  }
+}
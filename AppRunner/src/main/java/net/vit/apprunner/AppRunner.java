@@ -1,30 +1,39 @@
 package net.vit.apprunner;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.file.*;
-import static java.nio.file.StandardCopyOption.*;
-import static java.nio.file.FileVisitResult.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Properties;
-import java.util.function.Predicate;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.jdom2.JDOMException;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
 import net.vit.apprunner.NameReferenceResolver.Scope;
 import net.vit.apprunner.Settings.*;
+import net.vit.apprunner.util.DaemonThreadFactory;
+import net.vit.apprunner.util.ExecutorBackend;
+import net.vit.apprunner.util.LogTagFilter;
+import net.vit.apprunner.util.TraceRecorder;
 import net.vit.apprunner.util.Util;
 
 /**
@@ -50,10 +59,14 @@ public class AppRunner {
   private LoggingConfig loggingConfig;
   private CliArgs cliArgs;
   private Settings settings;
+  private FlightRecording flightRecording;
+  private XmlParser xmlParser;
+  private List<Path> moduleFiles = new ArrayList<>();
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private volatile TaskWatcher watcher;
 
   public AppRunner(String[] argv) {
     this.argv = argv;
-    logger.setLevel(Level.ALL);
   }
 
   /**
@@ -64,6 +77,8 @@ public class AppRunner {
    * <li>Resolves all required for this launch name references within this and parent modules.</li>
    * <li>Finally performes all the tasks requested by user.</li>
    * </ul>
+   * If several properties files were specified, the last two steps are done for each of them, see
+   * {@link #runVariants(List)}.
    */
   public void launch() {
     boolean wasException = false;
@@ -74,12 +89,28 @@ public class AppRunner {
       if (!parseCliArgs()) {
         return;
       }
+      // Start JFR recording and tracing if requested
+      startFlightRecording();
+      startTracing();
+      startProgress();
       // Getting config
       parseXmlModules();
-      // Resolving all names for specified tasks
-      resolveNames();
-      // Do work
-      applyConfig();
+      List<String> variants = propertiesFiles();
+      if (variants.size() > 1) {
+        runVariants(variants);
+      } else {
+        String properties = variants.get(0);
+        // Resolving all names for specified tasks
+        resolveNames(settings, properties);
+        // Do work
+        if (cliArgs.coordinator != null) {
+          runWorker(properties);
+        } else if (cliArgs.watch) {
+          watch(properties);
+        } else {
+          applyConfig(settings, properties, requestedTasks(settings));
+        }
+      }
     } catch (Exception e) {
       wasException = true;
       logger.log(Level.SEVERE, e.getMessage(), e);
@@ -89,10 +120,12 @@ public class AppRunner {
       }
       // e.printStackTrace();
     } finally {
+      ProgressMonitor.stop(wasException);
       if (!wasException) {
         logger.info("All tasks completed.");
       }
       cleanup();
+      finished.countDown();
     }
   }
 
@@ -101,15 +134,16 @@ public class AppRunner {
    * before any action was taken.
    * 
    * @throws ParameterException CLI syntax error
+   * @throws IOException
    * @return false if user only wants usage information
    */
-  private boolean parseCliArgs() throws ParameterException {
+  private boolean parseCliArgs() throws ParameterException, IOException {
     if (loggingConfig == null) {
       throw new IllegalStateException(
           "Logger was not found. Did you forget to call ensureLogging()?");
     }
 
-    logger.finer(String.format("Parsing CLI args: %s.", Arrays.asList(argv)));
+    logger.finer(() -> String.format("Parsing CLI args: %s.", Arrays.asList(argv)));
     cliArgs = new CliArgs();
     JCommander jcommander = JCommander.newBuilder().addObject(cliArgs).build();
     jcommander.parse(argv);
@@ -119,9 +153,57 @@ public class AppRunner {
       return false;
     }
 
+    loggingConfig.setOverflowPolicy(cliArgs.logOverflow);
+    if (cliArgs.coordinator != null) {
+      // The log file in the working directory belongs to the coordinator, see runWorker()
+      loggingConfig.setLogFile(null);
+    }
+    if (!cliArgs.executor.isAvailable()) {
+      logger.warning(String.format("%s executor requires Java 21 or newer. Using %s instead.",
+          cliArgs.executor, ExecutorBackend.PLATFORM));
+      cliArgs.executor = ExecutorBackend.PLATFORM;
+    }
+
     return true;
   }
 
+  /**
+   * Starts a flight recording, if user specified {@link CliArgs#jfr} key and the JRE has the
+   * Flight Recorder API.
+   * 
+   * @throws IOException
+   * @throws ParseException
+   */
+  private void startFlightRecording() throws IOException, ParseException {
+    if (cliArgs.jfr != null && !AppRunnerEvents.AVAILABLE) {
+      logger.warning(String.format(
+          "Java %s has no Flight Recorder, so --jfr is ignored. It needs Java 8u272 or later.",
+          System.getProperty("java.version")));
+    } else if (cliArgs.jfr != null) {
+      flightRecording = new FlightRecording(Paths.get(cliArgs.jfr));
+      flightRecording.start();
+    }
+  }
+
+  /**
+   * Starts recording spans, if user specified {@link CliArgs#traceOut} key.
+   */
+  private void startTracing() {
+    if (cliArgs.traceOut != null) {
+      TraceRecorder.start();
+    }
+  }
+
+  /**
+   * Starts showing progress, see {@link ProgressMonitor}: on the console, if stdout is one and
+   * user didn't specify {@link CliArgs#noProgress}, and in {@link CliArgs#progressFile}, if user
+   * specified it.
+   */
+  private void startProgress() {
+    ProgressMonitor.start(cliArgs.progressFile == null ? null : Paths.get(cliArgs.progressFile),
+        System.console() == null || cliArgs.noProgress ? null : loggingConfig::setStatusLine);
+  }
+
   /**
    * Parses {@literal <user-specified-module>.xml} file. Fails fast upon XSD scheme error with a
    * {@link JDOMException} being thrown before any action was taken. Goes recursievely through all
@@ -131,8 +213,90 @@ public class AppRunner {
    * @throws IOException
    */
   private void parseXmlModules() throws JDOMException, IOException {
-    XmlParser xmlParser = new XmlParser(cliArgs);
+    xmlParser = new XmlParser(cliArgs);
     settings = xmlParser.parseModuleXml();
+    moduleFiles = xmlParser.getModuleFiles();
+  }
+
+  /**
+   * Expands {@link CliArgs#properties}. A directory stands for all .properties files inside it, a
+   * value with glob characters in its file name, e.g. {@code variants/*.properties}, for all files
+   * matching it.
+   * 
+   * @return properties files relative to the config directory
+   * @throws IOException
+   */
+  private List<String> propertiesFiles() throws IOException {
+    if (cliArgs.properties.isEmpty()) {
+      throw new IllegalArgumentException("No properties file was specified. Use -p key.");
+    }
+    Path configDir = Paths.get(Util.CONFIG_DIR);
+    Set<String> result = new LinkedHashSet<>();
+    for (String value : cliArgs.properties) {
+      String path = Util.correctFileSeparator(value);
+      int globStart = -1;
+      for (char c : "*?[{".toCharArray()) {
+        int index = path.indexOf(c);
+        if (index >= 0 && (globStart < 0 || index < globStart)) {
+          globStart = index;
+        }
+      }
+      List<Path> files;
+      if (globStart >= 0) {
+        int separator = path.lastIndexOf(File.separatorChar, globStart);
+        files = listFiles(configDir.resolve(separator < 0 ? "" : path.substring(0, separator)),
+            path.substring(separator + 1));
+      } else if (Files.isDirectory(configDir.resolve(path))) {
+        files = listFiles(configDir.resolve(path), "*.properties");
+      } else {
+        result.add(value);
+        continue;
+      }
+      if (files.isEmpty()) {
+        String errorMessage = String.format("No properties file matches \"%s\".", value);
+        throw new IllegalArgumentException(errorMessage);
+      }
+      files.forEach((file) -> result.add(configDir.relativize(file).toString()));
+    }
+    return new ArrayList<>(result);
+  }
+
+  private static List<Path> listFiles(Path dir, String glob) throws IOException {
+    List<Path> files = new ArrayList<>();
+    if (Files.isDirectory(dir)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+        stream.forEach((file) -> {
+          if (Files.isRegularFile(file)) {
+            files.add(file);
+          }
+        });
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static Path propertiesPath(String properties) {
+    return Paths.get(
+        Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + properties));
+  }
+
+  /**
+   * @param properties properties file relative to the config directory
+   * @return name of the variant built from the properties file, i.e. its name without extension
+   */
+  private static String variantName(String properties) {
+    String name = Paths.get(properties).getFileName().toString();
+    return name.endsWith(".properties") ? name.substring(0, name.lastIndexOf('.')) : name;
+  }
+
+  /**
+   * @return module files and the properties file, which the settings of a variant came from
+   */
+  private List<Path> configFiles(String properties) {
+    List<Path> result = new ArrayList<>(moduleFiles);
+    result.add(propertiesPath(properties));
+    return result;
   }
 
   /**
@@ -143,11 +307,14 @@ public class AppRunner {
    * particular launch, such as the entities defined within remaining tasks of the specified module,
    * which were not mentioned as the command line arguments.
    * 
+   * @param settings settings to resolve names in
+   * @param propertiesFile properties file relative to the config directory
    * @throws IOException
    */
-  private void resolveNames() throws IOException {
-    try (InputStream inStream = new FileInputStream(
-        Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + cliArgs.properties))) {
+  // Trace spans are only opened and closed, so the resources are never referenced
+  @SuppressWarnings("try")
+  private void resolveNames(Settings settings, String propertiesFile) throws IOException {
+    try (InputStream inStream = Files.newInputStream(propertiesPath(propertiesFile))) {
       Properties properties = new Properties();
       properties.load(inStream);
       properties.forEach((name, value) -> {
@@ -167,356 +334,333 @@ public class AppRunner {
           throw new IllegalArgumentException(errorMessage);
         }
 
-        logger.finer(
-            String.format("Task \"%s\" was found. Proceeding with names resolution.", taskName));
+        logger.finer(() -> String
+            .format("Task \"%s\" was found. Proceeding with names resolution.", taskName));
+
+        try (TraceRecorder.Span span = TraceRecorder.span("resolve " + taskName, "resolve")) {
+          AppRunnerEvents.NameResolutionEvent event = new AppRunnerEvents.NameResolutionEvent();
+          event.begin();
+          Scope scope = Scope.of(taskName, Scope.GLOBAL);
 
-        Scope scope = Scope.of(taskName, Scope.GLOBAL);
+          task.getActions().stream().filter(Task.Application.class::isInstance)
+              .map(Task.Application.class::cast)
+              .forEach((application) -> application.resolveNames(resolver, scope));
 
-        task.getActions().stream().filter(Task.Application.class::isInstance)
-            .map(Task.Application.class::cast)
-            .forEach((application) -> application.resolveNames(resolver, scope));
+          task.getActions().stream().filter(Task.Pipeline.class::isInstance)
+              .map(Task.Pipeline.class::cast)
+              .forEach((pipeline) -> pipeline.resolveNames(resolver, scope));
 
-        task.getActions().stream().filter(Task.Operation.class::isInstance)
-            .map(Task.Operation.class::cast)
-            .forEach((operation) -> operation.resolveNames(resolver, scope));
+          task.getActions().stream().filter(Task.Operation.class::isInstance)
+              .map(Task.Operation.class::cast)
+              .forEach((operation) -> operation.resolveNames(resolver, scope));
 
-        task.getActions().stream().filter(Task.OperationRef.class::isInstance)
-            .map(Task.OperationRef.class::cast).forEach((operationRef) -> {
-              operationRef.resolveNames(resolver, scope);
+          task.getActions().stream().filter(Task.OperationRef.class::isInstance)
+              .map(Task.OperationRef.class::cast).forEach((operationRef) -> {
+                operationRef.resolveNames(resolver, scope);
+
+                Configuration.OperationDef operationDef =
+                    settings.getConfiguration().getOperationDefs().get(operationRef.getRef());
+                if (operationDef == null) {
+                  String errorMessage = String.format("There is no such \"%s\" operation defined.",
+                      operationRef.getRef());
+                  throw new IllegalArgumentException(errorMessage);
+                }
 
-              Configuration.OperationDef operationDef =
-                  settings.getConfiguration().getOperationDefs().get(operationRef.getRef());
-              if (operationDef == null) {
-                String errorMessage = String.format("There is no such \"%s\" operation defined.",
-                    operationRef.getRef());
-                throw new IllegalArgumentException(errorMessage);
-              }
+                operationDef.getOperation().resolveNames(resolver, scope);
+              });
 
-              operationDef.getOperation().resolveNames(resolver, scope);
-            });
+          event.taskName = taskName;
+          event.actionCount = task.getActions().size();
+          event.commit();
+        }
       });
     }
   }
 
   /**
-   * Executes tasks specified by user.
+   * @return tasks specified by user in the order they were specified
    */
-  private void applyConfig() {
-    /**
-     * For convenience contains methods which perform the tasks, requested by user. They can launch
-     * external processes, perform operations on files etc.
-     */
-    class TaskExecuteHelper {
-      TaskExecuteHelper() {}
-
-      /**
-       * For a given {@link FileNameBase} initiates a search inside {@link FileNameBase#getIn()}
-       * directory.
-       * 
-       * @param fileNameBase files to search
-       * @return paths to found files
-       */
-      private List<Path> searchFiles(FileNameBase fileNameBase) throws FileNotFoundException {
-        String startsWith = fileNameBase.getStartsWith().isPresent()
-            ? fileNameBase.getStartsWith().get().toLowerCase()
-            : "";
-        String endsWith =
-            fileNameBase.getEndsWith().isPresent() ? fileNameBase.getEndsWith().get().toLowerCase()
-                : "";
-        String contains =
-            fileNameBase.getContains().isPresent() ? fileNameBase.getContains().get().toLowerCase()
-                : "";
-
-        try (Stream<Path> stream = Files.walk(Paths.get(fileNameBase.getIn()), 1)) {
-          List<Path> result = stream.filter((path) -> {
-            String s = path.getFileName().toString().toLowerCase();
-            return s.startsWith(startsWith) && s.endsWith(endsWith) && s.contains(contains);
-          }).sorted().collect(Collectors.toList());
-
-          if (!result.isEmpty())
-            return result;
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+  private List<Task> requestedTasks(Settings settings) {
+    return cliArgs.tasks.stream().map((taskName) -> settings.getTasks().get(taskName))
+        .collect(Collectors.toList());
+  }
 
-        List<String> filesInDir = null;
-        try (Stream<Path> stream = Files.walk(Paths.get(fileNameBase.getIn()), 1)) {
-          filesInDir = stream.map(Path::getFileName).map(String::valueOf).map(String::toLowerCase)
-              .filter((s) -> {
-                return s.startsWith(startsWith) && s.endsWith(endsWith);
-              }).sorted().collect(Collectors.toList());
-        } catch (IOException e) {
-          throw new RuntimeException(e);
-        }
+  /**
+   * Executes the given tasks, skipping those which are up to date unless user specified
+   * {@link CliArgs#force}, see {@link UpToDateChecker}. Actions run one by one, unless user allowed
+   * more with {@link CliArgs#jobs}, see {@link ActionScheduler}. Before anything runs, every input
+   * of the tasks, which have to run, is searched, see {@link ExecutionPlanner}, and the run fails
+   * if any of them won't be found. In {@link CliArgs#dryRun dry run} the plan of all given tasks
+   * is logged and nothing runs. Unless user
+   * specified {@link CliArgs#noOptimize}, the tasks, which have to run, are rewritten by
+   * {@link ActionOptimizer} and searches are shared by {@link SearchCache}. If user asked for
+   * {@link CliArgs#workers} or {@link CliArgs#listen}, the tasks run on worker processes, see
+   * {@link Coordinator}.
+   * 
+   * @param settings resolved settings
+   * @param properties properties file the settings were resolved with
+   * @param tasks tasks to run in the order they were specified by user
+   * @throws IOException
+   */
+  private void applyConfig(Settings settings, String properties, List<Task> tasks)
+      throws IOException {
+    if (cliArgs.dryRun || cliArgs.explainPlan) {
+      plan(settings, tasks, cliArgs.dryRun);
+      if (cliArgs.explainPlan) {
+        List<String> rewrites = new ActionOptimizer(settings).optimize(tasks).getRewrites();
+        logger.info(String.format("%d rewrite(s) of the requested tasks.", rewrites.size()));
+        rewrites.forEach(logger::info);
+      }
+      return;
+    }
+    UpToDateChecker upToDateChecker = new UpToDateChecker(settings, cliArgs.module,
+        variantName(properties), configFiles(properties));
+    List<Task> outdated = upToDateChecker.outdated(tasks, cliArgs.force);
+    boolean distributed = cliArgs.workers > 0 || cliArgs.listen > 0;
+    // Totals are only shown for tasks running in this process
+    ExecutionPlanner.Plan plan =
+        plan(settings, outdated, !distributed && ProgressMonitor.isStarted());
+    if (distributed) {
+      new Coordinator(settings, outdated,
+          UpToDateChecker.configHash(settings, configFiles(properties)), cliArgs.workers,
+          cliArgs.listen, cliArgs.heartbeatTimeout, workerCommand(properties),
+          upToDateChecker::record).run();
+    } else {
+      ProgressMonitor.planned(plan, outdated);
+      runTasks(settings, outdated, plan, upToDateChecker::record);
+    }
+  }
 
-        String errorMessage = String.format(
-            "Couldn't find any file in \"%s\" such that starts with \"%s\", contains \"%s\" and ends with \"%s\"",
-            fileNameBase.getIn(), startsWith, contains, endsWith);
-        FileNotFoundException x;
-        if (fileNameBase.getContains().isPresent() && !filesInDir.isEmpty()) {
-          x = new FileNotFoundException(errorMessage, fileNameBase.getContains().get(), filesInDir);
-        } else {
-          x = new FileNotFoundException(errorMessage);
-        }
+  /**
+   * Searches every input of the tasks, see {@link ExecutionPlanner}. In
+   * {@link CliArgs#dryRun dry run} the plan is logged.
+   *
+   * @param settings resolved settings
+   * @param tasks tasks in the order they will run
+   * @param sized whether the sizes of input directories are needed
+   * @return the plan
+   * @throws IOException if any input won't be found
+   */
+  private ExecutionPlanner.Plan plan(Settings settings, List<Task> tasks, boolean sized)
+      throws IOException {
+    ExecutionPlanner.Plan plan =
+        new ExecutionPlanner(settings, cliArgs.executor, sized).plan(tasks);
+    if (cliArgs.dryRun) {
+      plan.log();
+    } else {
+      plan.getProblems().forEach((problem) -> logger.severe(problem.getMessage()));
+    }
+    if (!plan.getProblems().isEmpty()) {
+      String errorMessage = String.format(
+          "%d input(s) of the requested tasks won't be found. Nothing was run.",
+          plan.getProblems().size());
+      throw new IOException(errorMessage, plan.getProblems().get(0));
+    }
+    return plan;
+  }
 
-        throw x;
+  /**
+   * Runs the tasks in this process, rewritten by {@link ActionOptimizer} unless user specified
+   * {@link CliArgs#noOptimize}. How long they take is added to the {@link RunHistory} of the
+   * module.
+   * 
+   * @param settings resolved settings
+   * @param tasks tasks to run in the order they were specified by user
+   * @param plan plan of the tasks, null for a worker
+   * @param taskFinished gets every task, which has finished successfully, as given, not as
+   *        rewritten; a task, whose rewrite only a later task evens out, is left out; may be null
+   * @throws IOException
+   */
+  private void runTasks(Settings settings, List<Task> tasks, ExecutionPlanner.Plan plan,
+      Consumer<Task> taskFinished) throws IOException {
+    Settings runSettings = settings;
+    List<Task> runTasks = tasks;
+    Map<Task, Task> originals = new IdentityHashMap<>();
+    Set<String> evenedOutLater = Collections.emptySet();
+    if (!cliArgs.noOptimize) {
+      ActionOptimizer.Result optimized = new ActionOptimizer(settings).optimize(tasks);
+      optimized.getRewrites().forEach(logger::fine);
+      runSettings = optimized.getSettings();
+      runTasks = optimized.getTasks();
+      evenedOutLater = optimized.getEvenedOutLater();
+    }
+    for (int i = 0; i < tasks.size(); ++i) {
+      originals.put(runTasks.get(i), tasks.get(i));
+    }
+    Set<String> skipped = evenedOutLater;
+    Consumer<Task> finished = taskFinished == null ? null : (task) -> {
+      if (!skipped.contains(task.getName())) {
+        taskFinished.accept(originals.get(task));
       }
+    };
+    SearchCache searchCache = new SearchCache(!cliArgs.noOptimize);
+    RunHistory history = RunHistory.load(cliArgs.module);
+    if (plan != null) {
+      history.planned(plan);
+    }
+    try {
+      new ActionScheduler(runSettings, cliArgs.module, runTasks,
+          ActionScheduler.Limits.of(cliArgs), searchCache, history, finished).run();
+    } finally {
+      history.save();
+    }
+    if (searchCache.getHits() > 0) {
+      logger.fine(String.format("%d search(es) reused.", searchCache.getHits()));
+    }
+  }
 
-      /**
-       * For a given {@link FileName} initiates a search inside {@link FileName#getIn()} directory.
-       * 
-       * @param fileName file to search
-       * @return path of the file
-       */
-      private Path searchFile(FileName fileName) throws FileNotFoundException {
-        return searchFiles(fileName).get(0);
-      }
+  /**
+   * @param properties properties file relative to the config directory
+   * @return command starting a local worker with the same configuration and limits
+   */
+  private List<String> workerCommand(String properties) {
+    List<String> command = new ArrayList<>(Arrays.asList(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+        System.getProperty("java.class.path"), Main.class.getName(), "-m", cliArgs.module, "-p",
+        properties, "-t"));
+    command.addAll(cliArgs.tasks);
+    command.addAll(Arrays.asList("--jobs", String.valueOf(cliArgs.jobs), "--max-processes",
+        String.valueOf(cliArgs.maxProcesses), "--io-lanes", String.valueOf(cliArgs.ioLanes),
+        "--executor", cliArgs.executor.name(), "--log-overflow", cliArgs.logOverflow.name(),
+        "--schedule", cliArgs.schedule.name(), "--prefetch-budget",
+        String.valueOf(cliArgs.prefetchBudget), "--chunked-copy-threshold",
+        String.valueOf(cliArgs.chunkedCopyThreshold)));
+    if (!cliArgs.ioLimits.isEmpty()) {
+      command.add("--io-limit");
+      command.addAll(cliArgs.ioLimits);
+    }
+    if (!cliArgs.ioRates.isEmpty()) {
+      command.add("--io-rate");
+      command.addAll(cliArgs.ioRates);
+    }
+    if (!cliArgs.ioOps.isEmpty()) {
+      command.add("--io-ops");
+      command.addAll(cliArgs.ioOps);
+    }
+    if (cliArgs.noOptimize) {
+      command.add("--no-optimize");
+    }
+    return command;
+  }
 
-      /**
-       * Runs the given application.
-       * 
-       * @param application
-       */
-      void launchApplication(Task.Application application) {
-        for (List<Task.Application.ApplicationInput> execute : application.getExecuteList()) {
-          List<String> command = new ArrayList<>();
-          command.add(application.getExecutablePath());
-
-          for (Task.Application.ApplicationInput input : execute) {
-            if (input instanceof FileName) {
-              try {
-                command.add((searchFile((FileName) input)).toString());
-              } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
-              }
-            } else if (input instanceof Task.Application.StringArg) {
-              command.add(((Task.Application.StringArg) input).getValue());
-            }
-          }
+  /**
+   * Runs tasks sent by the coordinator given in {@link CliArgs#coordinator}, see {@link Worker}.
+   * A local worker writes no log file: the coordinator copies its console output into its own
+   * log. A remote worker writes a log file of its own, once it knows its id.
+   * 
+   * @param properties properties file relative to the config directory
+   * @throws IOException
+   */
+  private void runWorker(String properties) throws IOException {
+    boolean local = System.getenv(Coordinator.WORKER_KEY_ENV) != null;
+    new Worker(settings, cliArgs.coordinator,
+        UpToDateChecker.configHash(settings, configFiles(properties)),
+        (task) -> runTasks(settings, Collections.singletonList(task), null, null),
+        local ? null
+            : (id) -> loggingConfig.setLogFile(String.format(LoggingConfig.WORKER_LOG_FILE, id)))
+                .run();
+  }
 
-          try {
-            String processInfo = String.format("Running [%s]. Output is:",
-                command.stream().collect(Collectors.joining(" ")));
-            logger.info(processInfo);
-            Process process = new ProcessBuilder(command).start();
-
-            BufferedReader stdOutReader =
-                new BufferedReader(new InputStreamReader(process.getInputStream())),
-                stdErrReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-            Optional<String> lineStdOut = Optional.empty(), lineStdErr = Optional.empty();
-
-            do {
-              lineStdOut.ifPresent(logger::info);
-              lineStdErr.ifPresent(logger::severe);
-              lineStdOut = Optional.ofNullable(stdOutReader.readLine());
-              lineStdErr = Optional.ofNullable(stdErrReader.readLine());
-            } while (lineStdOut.isPresent() || lineStdErr.isPresent());
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          }
-        }
+  /**
+   * Runs the requested tasks once for every properties file, up to {@link CliArgs#parallelVariants}
+   * variants at a time. The module chain is read and validated only once. Every variant resolves
+   * names in its own {@link Settings} built from it and runs its actions on its own
+   * {@link ActionScheduler}. Log records of a variant are tagged with its name. A failed variant
+   * doesn't stop the others.
+   * 
+   * @param variants properties files relative to the config directory
+   * @throws InterruptedException
+   */
+  private void runVariants(List<String> variants) throws InterruptedException {
+    if (cliArgs.watch) {
+      throw new IllegalArgumentException("Watch mode works with a single properties file only.");
+    }
+    if (cliArgs.coordinator != null) {
+      throw new IllegalArgumentException("A worker works with a single properties file only.");
+    }
+    int parallel = Math.max(1, Math.min(cliArgs.parallelVariants, variants.size()));
+    logger.info(String.format("Running %d variant(s), up to %d at a time.", variants.size(),
+        parallel));
+    ExecutorService executor =
+        Executors.newFixedThreadPool(parallel, new DaemonThreadFactory("apprunner-variant"));
+    try {
+      Map<String, Future<?>> results = new LinkedHashMap<>();
+      for (String properties : variants) {
+        results.put(properties, executor.submit(() -> {
+          runVariant(properties);
+          return null;
+        }));
       }
-
-      /**
-       * Performs the given operation.
-       * 
-       * @param operation
-       */
-      void launchOperation(Task.Operation operation) {
+      List<String> failed = new ArrayList<>();
+      for (Map.Entry<String, Future<?>> result : results.entrySet()) {
         try {
-          for (Task.Operation.InternalOp internalOp : operation.getInternals()) {
-            if (internalOp instanceof Task.Operation.Rename) {
-              Task.Operation.Rename rename = (Task.Operation.Rename) internalOp;
-              List<Path> filePaths = searchFiles(rename.getFileNames());
-              for (Path filePath : filePaths) {
-                for (Task.Operation.Rename.RenameOption renameOption : rename.getRenameOptions()) {
-                  if (renameOption instanceof Task.Operation.Rename.ReplaceAll) {
-                    Task.Operation.Rename.ReplaceAll replaceAll =
-                        (Task.Operation.Rename.ReplaceAll) renameOption;
-                    String fileName = filePath.getFileName().toString();
-                    String newFileName =
-                        fileName.replaceAll(replaceAll.getSubstring(), replaceAll.getWith());
-                    Path newFilePath = filePath.resolveSibling(newFileName);
-                    logger
-                        .info(String.format("Renaming: \"%s\" -> \"%s\".", fileName, newFileName));
-                    Files.move(filePath, newFilePath, StandardCopyOption.REPLACE_EXISTING);
-                  } else {
-                    // We should never be here
-                    String errorMessage =
-                        String.format("Program failure. RenameOption has an unknown final type %s.",
-                            renameOption.getClass().getName());
-                    throw new AssertionError(errorMessage);
-                  }
-                }
-              }
-            } else if (internalOp instanceof Task.Operation.Move
-                || internalOp instanceof Task.Operation.Copy) {
-              Task.Operation.MoveOrCopy moveOrCopyOp = (Task.Operation.MoveOrCopy) internalOp;
-              final boolean move = internalOp instanceof Task.Operation.Move;
-              Path toDirPath = Paths.get(moveOrCopyOp.getTo());
-              Files.createDirectories(toDirPath);
-              for (FileNameBase fileNameBase : moveOrCopyOp.getFileNames()) {
-                List<Path> filePaths = new ArrayList<>();
-                if (fileNameBase instanceof FileName) {
-                  filePaths.add(searchFile((FileName) fileNameBase));
-                } else {
-                  filePaths = searchFiles((FileNames) fileNameBase);
-                }
-
-                class TreeCopier implements FileVisitor<Path> {
-                  private final Path source;
-                  private final Path target;
-
-                  TreeCopier(Path source, Path target) {
-                    this.source = source;
-                    this.target = target;
-                  }
-
-                  @Override
-                  public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
-                      throws IOException {
-                    Path newdir = target.resolve(source.relativize(dir));
-                    logger.finest(String.format("[dir]=%s [newdir]=%s", dir, newdir));
-                    try {
-                      Files.copy(dir, newdir);
-                    } catch (FileAlreadyExistsException x) {
-                      // ignore
-                    } catch (IOException x) {
-                      String errorMessage = String.format("Unable to create: %s: %s", newdir, x);
-                      throw new RuntimeException(errorMessage);
-                    }
-                    return CONTINUE;
-                  }
-
-                  @Override
-                  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                      throws IOException {
-                    try {
-                      Path dest = target.resolve(source.relativize(file));
-                      logger.finest(String.format("[file]=%s [newfile]=%s", file, dest));
-                      if (move) {
-                        Files.move(file, dest, REPLACE_EXISTING);
-                      } else {
-                        Files.copy(file, dest, REPLACE_EXISTING);
-                      }
-                    } catch (IOException x) {
-                      String errorMessage =
-                          String.format("Unable to %s: %s: %s", move ? "move" : "copy", source, x);
-                      throw new IOException(errorMessage);
-                    }
-                    return CONTINUE;
-                  }
-
-                  @Override
-                  public FileVisitResult postVisitDirectory(Path dir, IOException exc)
-                      throws IOException {
-                    logger.finest(String.format("[dir]=%s", dir));
-                    if (move) {
-                      try {
-                        logger.finest(String.format("Deleting %s", dir));
-                        Files.delete(dir);
-                      } catch (IOException x) {
-                        String errorMessage = String.format("Failed to delete directory %s", dir);
-                        throw new IOException(errorMessage);
-                      }
-                    }
-                    return CONTINUE;
-                  }
-
-                  @Override
-                  public FileVisitResult visitFileFailed(Path file, IOException exc)
-                      throws IOException {
-                    String errorMessage = (exc instanceof FileSystemLoopException)
-                        ? String.format("Cycle detected: %s" + file)
-                        : String.format("Unable to %s: %s: %s", move ? "move" : "copy", file, exc);
-                    throw new IOException(errorMessage);
-                  }
-                }
-
-                for (Path filePath : filePaths) {
-                  Path newFilePath = toDirPath.resolve(filePath.getFileName());
-                  TreeCopier treeCopier = new TreeCopier(filePath, newFilePath);
-                  logger.info(String.format("%s: \"%s\" -> \"%s\".", move ? "Moving" : "Copying",
-                      filePath, newFilePath));
-                  Files.walkFileTree(filePath, treeCopier);
-                }
-              }
-            } else if (internalOp instanceof Task.Operation.Delete) {
-              Task.Operation.Delete delete = (Task.Operation.Delete) internalOp;
-              DELETE: for (FileNameBase fileNameBase : delete.getFileNames()) {
-                List<Path> filePaths = new ArrayList<>();
-                try {
-                  if (fileNameBase instanceof FileName) {
-                    filePaths.add(searchFile((FileName) fileNameBase));
-                  } else {
-                    filePaths = searchFiles((FileNames) fileNameBase);
-                  }
-                } catch (FileNotFoundException e) {
-                  logger.warning(
-                      String.format("Trying to delete non-existing file. %s", e.getMessage()));
-                  continue DELETE;
-                }
-                for (Path filePath : filePaths) {
-                  logger.info(String.format("Deleting: \"%s\".", filePath));
-                  if (Files.isDirectory(filePath)) {
-                    Files.walkFileTree(filePath, new SimpleFileVisitor<Path>() {
-                      @Override
-                      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                          throws IOException {
-                        Files.delete(file);
-                        return FileVisitResult.CONTINUE;
-                      }
-
-                      @Override
-                      public FileVisitResult postVisitDirectory(Path dir, IOException exc)
-                          throws IOException {
-                        Files.delete(dir);
-                        return FileVisitResult.CONTINUE;
-                      }
-                    });
-                  } else {
-                    Files.delete(filePath);
-                  }
-                }
-              }
-            } else {
-              // We should never be here
-              String errorMessage =
-                  String.format("Program failure. InternalOp has an unknown final type %s.",
-                      internalOp.getClass().getName());
-              throw new AssertionError(errorMessage);
-            }
-          }
-        } catch (FileNotFoundException | IOException e) {
-          throw new RuntimeException(e);
+          result.getValue().get();
+        } catch (ExecutionException e) {
+          failed.add(variantName(result.getKey()));
+          logger.log(Level.SEVERE, String.format("Variant \"%s\" failed: %s",
+              variantName(result.getKey()), e.getCause().getMessage()), e.getCause());
         }
       }
+      if (!failed.isEmpty()) {
+        String errorMessage = String.format("%d of %d variant(s) failed: %s.", failed.size(),
+            variants.size(), failed);
+        throw new RuntimeException(errorMessage);
+      }
+    } finally {
+      executor.shutdownNow();
     }
+  }
 
-    // For all tasks specified in command line by user
-    cliArgs.tasks.stream().map((taskName) -> settings.getTasks().get(taskName)).forEach((task) -> {
-      logger.info(String.format("--- Running task \"%s\" ---", task.getName()));
-      TaskExecuteHelper helper = new TaskExecuteHelper();
-      for (Task.Action action : task.getActions()) {
-        if (action instanceof Task.Application) {
-          Task.Application application = (Task.Application) action;
-          helper.launchApplication(application);
-        } else if (action instanceof Task.OperationRef) {
-          Task.OperationRef operationRef = (Task.OperationRef) action;
-          Task.Operation operation = settings.getConfiguration().getOperationDefs()
-              .get(operationRef.getRef()).getOperation();
-          helper.launchOperation(operation);
-        } else if (action instanceof Task.Operation) {
-          Task.Operation operation = (Task.Operation) action;
-          helper.launchOperation(operation);
-        } else {
-          // We should never be here
-          String errorMessage = String.format(
-              "Program failure. Action has an unknown final type %s.", action.getClass().getName());
-          throw new AssertionError(errorMessage);
-        }
+  private void runVariant(String properties) throws JDOMException, IOException {
+    LogTagFilter.setTag(variantName(properties));
+    try {
+      Settings variantSettings = xmlParser.parseModuleXml();
+      resolveNames(variantSettings, properties);
+      applyConfig(variantSettings, properties, requestedTasks(variantSettings));
+      logger.info("Variant completed.");
+    } finally {
+      LogTagFilter.setTag(null);
+    }
+  }
+
+  /**
+   * Executes tasks specified by user and keeps re-running them on changes until the process is
+   * stopped, see {@link TaskWatcher}. Parsed and resolved settings are reused unless the module or
+   * the properties file changes.
+   * 
+   * @param properties properties file relative to the config directory
+   * @throws IOException
+   */
+  private void watch(String properties) throws IOException {
+    watcher = new TaskWatcher(cliArgs.tasks, cliArgs.watchDebounce, settings, () -> {
+      parseXmlModules();
+      resolveNames(settings, properties);
+      return settings;
+    }, (loaded, tasks) -> {
+      settings = loaded;
+      applyConfig(settings, properties, tasks);
+    }, () -> configFiles(properties));
+    // Ctrl+C: stop watching and let launch() close the log and the recordings
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      stopWatching();
+      try {
+        finished.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-    });
+    }, "apprunner-watch-shutdown"));
+    watcher.watch();
+  }
+
+  /**
+   * Makes a {@link #launch()} with <i>--watch</i> return after the current run. Does nothing if
+   * watching hasn't started yet. May be called from any thread.
+   */
+  void stopWatching() {
+    TaskWatcher current = watcher;
+    if (current != null) {
+      current.stop();
+    }
   }
 
   /**
@@ -533,6 +677,18 @@ public class AppRunner {
    * Closes IO.
    */
   private void cleanup() {
+    if (cliArgs != null && cliArgs.traceOut != null) {
+      try {
+        TraceRecorder.stop(Paths.get(cliArgs.traceOut));
+        logger.info(String.format("Trace written to \"%s\".", cliArgs.traceOut));
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Couldn't write the trace file.", e);
+      }
+    }
+    if (flightRecording != null) {
+      flightRecording.stop();
+      flightRecording = null;
+    }
     loggingConfig.cleanup();
   }
 }
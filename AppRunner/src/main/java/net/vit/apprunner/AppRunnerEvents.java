@@ -0,0 +1,121 @@
+package net.vit.apprunner;
+
+/**
+ * Custom Java Flight Recorder events emitted by AppRunner. They are recorded only when a recording
+ * is running (see {@link CliArgs#jfr}) and cost next to nothing otherwise.
+ * <p/>
+ * Every event is a duration event: {@code begin()} is called when the corresponding piece of work
+ * starts and {@code commit()} when it ends. The events only hold the fields; {@link JfrEvents}
+ * records them. A JRE without the Flight Recorder API, i.e. 1.8 before update 272, never loads
+ * it, and the events are no-ops there, the same way {@link net.vit.apprunner.util.TraceRecorder}
+ * spans are while nothing is traced.
+ *
+ * @author vit
+ */
+final class AppRunnerEvents {
+  private AppRunnerEvents() {}
+
+  /**
+   * Whether the JRE has the Flight Recorder API.
+   */
+  static final boolean AVAILABLE = isAvailable();
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, AppRunnerEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+
+  /**
+   * Timing of one event, recorded by its {@link JfrEvents} counterpart, if there is one.
+   */
+  abstract static class AppRunnerEvent {
+    private Object recorded;
+
+    /**
+     * Marks the start of the piece of work.
+     */
+    void begin() {
+      if (AVAILABLE) {
+        recorded = JfrEvents.begin(this);
+      }
+    }
+
+    /**
+     * @return false if nothing records the event. Use it to skip computing expensive fields.
+     */
+    boolean shouldCommit() {
+      return recorded != null && JfrEvents.shouldCommit(recorded);
+    }
+
+    /**
+     * Marks the end of the piece of work and records the event with its fields.
+     */
+    void commit() {
+      if (recorded != null) {
+        JfrEvents.commit(recorded, this);
+      }
+    }
+  }
+
+  /**
+   * One task requested with -t key.
+   */
+  static class TaskEvent extends AppRunnerEvent {
+    String taskName;
+    String module;
+    int actionCount;
+  }
+
+  /**
+   * One {@link Settings.Task.Operation.InternalOp}, i.e. {@literal <rename>, <move>, <copy>} or
+   * {@literal <delete>}.
+   */
+  static class OperationEvent extends AppRunnerEvent {
+    String taskName;
+    String kind;
+    String destination;
+    int fileCount;
+  }
+
+  /**
+   * One directory scan performed for a {@literal <file> or <files>} tag.
+   */
+  static class SearchFilesEvent extends AppRunnerEvent {
+    String directory;
+    String pattern;
+    int entriesScanned;
+    int matches;
+  }
+
+  /**
+   * Resolution of all name references of one task.
+   */
+  static class NameResolutionEvent extends AppRunnerEvent {
+    String taskName;
+    int actionCount;
+  }
+
+  /**
+   * Lifetime of one external process started for an {@literal <execute>} tag.
+   */
+  static class ChildProcessEvent extends AppRunnerEvent {
+    String taskName;
+    String executable;
+    String commandLine;
+    int exitCode;
+    long outputLines;
+    long outputBytes;
+  }
+
+  /**
+   * Wait of a file operation for tokens of {@link IoThrottle}.
+   */
+  static class ThrottleEvent extends AppRunnerEvent {
+    String limits;
+    long amount;
+  }
+}
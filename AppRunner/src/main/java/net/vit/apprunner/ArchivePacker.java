@@ -0,0 +1,547 @@
+package net.vit.apprunner;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import net.vit.apprunner.util.DaemonThreadFactory;
+import net.vit.apprunner.util.ParallelDeflaterOutputStream;
+
+/**
+ * Writes files and directories into a zip, tar or tar.gz archive.
+ * <p/>
+ * The archive is streamed straight to its final location, nothing is staged in temporary files.
+ * Compression runs on all cores: a tar.gz is one deflate stream compressed in parallel blocks by
+ * {@link ParallelDeflaterOutputStream}. In a zip every entry is compressed on its own, so small
+ * files are compressed concurrently as whole entries and large files in parallel blocks. Entries
+ * are always written in the same order, so the same input gives the same archive.
+ *
+ * @author vit
+ * @see ArchiveUnpacker
+ */
+class ArchivePacker {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Archive format.
+   */
+  static enum Format {
+    ZIP("zip"), TAR("tar"), TAR_GZ("tar.gz");
+
+    private final String name;
+
+    private Format(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @param format explicitly given format name ("zip", "tar" or "tar.gz"), if any
+     * @param archive path to the archive, whose extension is used when no format is given
+     * @return format of the archive
+     * @throws IllegalArgumentException if the format can't be determined
+     */
+    static Format of(Optional<String> format, Path archive) {
+      String name = format.orElseGet(() -> {
+        String fileName = archive.getFileName().toString().toLowerCase();
+        if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+          return TAR_GZ.name;
+        }
+        return fileName.substring(fileName.lastIndexOf('.') + 1);
+      });
+      for (Format value : values()) {
+        if (value.name.equals(name)) {
+          return value;
+        }
+      }
+      String errorMessage = String.format(
+          "Couldn't determine archive format of \"%s\". Expected zip, tar or tar.gz.", archive);
+      throw new IllegalArgumentException(errorMessage);
+    }
+  }
+
+  /**
+   * One file or directory to put into the archive.
+   */
+  private static class Entry {
+    private final Path path;
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+
+    Entry(Path path, String name) throws IOException {
+      this.path = path;
+      this.directory = Files.isDirectory(path);
+      this.name = directory ? name + "/" : name;
+      this.size = directory ? 0 : Files.size(path);
+      this.lastModified = Files.getLastModifiedTime(path).toMillis();
+    }
+  }
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final Format format;
+  private final int level;
+  private final int threads;
+
+  /**
+   * @param format
+   * @param level compression level from 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+   */
+  ArchivePacker(Format format, int level) {
+    this.format = format;
+    this.level = level;
+    this.threads = Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Packs the given files and directories. Each of them becomes a top level entry of the archive,
+   * directories with all their contents. An existing archive is overwritten. If packing fails, the
+   * incomplete archive is deleted.
+   *
+   * @param sources files and directories to pack
+   * @param archive path to the archive
+   * @return number of entries written
+   * @throws IOException
+   */
+  int pack(List<Path> sources, Path archive) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    for (Path source : sources) {
+      Path base = source.toAbsolutePath().normalize().getParent();
+      try (Stream<Path> paths = Files.walk(source)) {
+        for (Path path : paths.sorted().collect(Collectors.toList())) {
+          String name = base.relativize(path.toAbsolutePath().normalize()).toString()
+              .replace('\\', '/');
+          entries.add(new Entry(path, name));
+        }
+      }
+    }
+    logger.info(String.format("Packing %d entries into \"%s\" (%s).", entries.size(), archive,
+        format.name));
+
+    if (archive.getParent() != null) {
+      Files.createDirectories(archive.getParent());
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(threads, new DaemonThreadFactory("apprunner-pack"));
+    boolean done = false;
+    try (CountingOutputStream out = new CountingOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(archive), COPY_BUFFER_SIZE))) {
+      switch (format) {
+        case ZIP:
+          writeZip(entries, out, executor);
+          break;
+        case TAR:
+          writeTar(entries, out);
+          break;
+        case TAR_GZ:
+          writeTarGz(entries, out, executor);
+          break;
+        default:
+          // We should never be here
+          String errorMessage = String.format("Program failure. Unknown archive format %s.",
+              format);
+          throw new AssertionError(errorMessage);
+      }
+      done = true;
+    } finally {
+      executor.shutdownNow();
+      if (!done) {
+        Files.deleteIfExists(archive);
+      }
+    }
+    return entries.size();
+  }
+
+  // --- tar ---
+
+  private void writeTarGz(List<Entry> entries, OutputStream out, ExecutorService executor)
+      throws IOException {
+    // Member header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+    ParallelDeflaterOutputStream deflater =
+        new ParallelDeflaterOutputStream(out, executor, threads, level);
+    writeTar(entries, deflater);
+    deflater.finish();
+    writeIntLE(out, deflater.getCrc());
+    writeIntLE(out, deflater.getBytesIn());
+  }
+
+  private static void writeTar(List<Entry> entries, OutputStream out) throws IOException {
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long written = 0;
+    for (Entry entry : entries) {
+      byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+      if (name.length > 100) {
+        // GNU long name: a pseudo entry, whose data is the real name
+        out.write(tarHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), name.length + 1,
+            0, 'L'));
+        out.write(name);
+        out.write(0);
+        written += 512 + padTar(out, name.length + 1);
+      }
+      out.write(tarHeader(name, entry.size, entry.lastModified, entry.directory ? '5' : '0'));
+      written += 512;
+      if (!entry.directory) {
+        long copied = copy(entry.path, out, buffer);
+        if (copied != entry.size) {
+          String errorMessage = String.format("File \"%s\" changed while being packed.",
+              entry.path);
+          throw new IOException(errorMessage);
+        }
+        written += padTar(out, copied);
+      }
+    }
+    // Two zero blocks, then pad to a full record of 20 blocks
+    written += 1024;
+    long record = 20 * 512;
+    long total = (written + record - 1) / record * record;
+    out.write(new byte[(int) (total - written + 1024)]);
+  }
+
+  private static byte[] tarHeader(byte[] name, long size, long lastModified, char type)
+      throws IOException {
+    if (size > 077777777777L) {
+      String errorMessage = String.format(
+          "Entry \"%s\" is larger than 8 GiB, which tar doesn't support.",
+          new String(name, StandardCharsets.UTF_8));
+      throw new IOException(errorMessage);
+    }
+    byte[] header = new byte[512];
+    System.arraycopy(name, 0, header, 0, Math.min(100, name.length));
+    putOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+    putOctal(header, 108, 8, 0);
+    putOctal(header, 116, 8, 0);
+    putOctal(header, 124, 12, size);
+    putOctal(header, 136, 12, lastModified / 1000);
+    header[156] = (byte) type;
+    System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+    // Checksum is computed with its own field filled with spaces
+    for (int i = 148; i < 156; ++i) {
+      header[i] = ' ';
+    }
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    putOctal(header, 148, 7, checksum);
+    return header;
+  }
+
+  private static void putOctal(byte[] header, int offset, int length, long value) {
+    String octal = Long.toOctalString(value);
+    int digits = length - 1;
+    for (int i = 0; i < digits; ++i) {
+      int fromEnd = digits - 1 - i;
+      header[offset + i] =
+          (byte) (fromEnd < octal.length() ? octal.charAt(octal.length() - 1 - fromEnd) : '0');
+    }
+    header[offset + digits] = 0;
+  }
+
+  private static long padTar(OutputStream out, long size) throws IOException {
+    int padding = (int) ((512 - size % 512) % 512);
+    out.write(new byte[padding]);
+    return size + padding;
+  }
+
+  // --- zip ---
+
+  /**
+   * Central directory record of one written entry.
+   */
+  private static class ZipRecord {
+    private byte[] name;
+    private int flags;
+    private int method;
+    private long dosTime;
+    private long crc;
+    private long compressedSize;
+    private long size;
+    private long offset;
+    private boolean directory;
+  }
+
+  /**
+   * Entry compressed as a whole in memory.
+   */
+  private static class CompressedEntry {
+    private final Entry entry;
+    private final int method;
+    private final long crc;
+    private final long size;
+    private final byte[] data;
+
+    CompressedEntry(Entry entry, int method, long crc, long size, byte[] data) {
+      this.entry = entry;
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.data = data;
+    }
+  }
+
+  private static final int ZIP_STORED = 0;
+  private static final int ZIP_DEFLATED = 8;
+  private static final int ZIP_FLAG_DATA_DESCRIPTOR = 1 << 3;
+  private static final int ZIP_FLAG_UTF8 = 1 << 11;
+  private static final long ZIP_MAX = 0xFFFFFFFFL;
+
+  private void writeZip(List<Entry> entries, CountingOutputStream out, ExecutorService executor)
+      throws IOException {
+    if (entries.size() > 0xFFFF) {
+      String errorMessage = String.format(
+          "Zip archives hold at most 65535 entries, but there are %d. Use tar.gz instead.",
+          entries.size());
+      throw new IOException(errorMessage);
+    }
+    List<ZipRecord> records = new ArrayList<>();
+    ArrayDeque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    for (Entry entry : entries) {
+      if (!entry.directory && entry.size < ParallelDeflaterOutputStream.BLOCK_SIZE) {
+        // Small files are compressed concurrently as whole entries
+        pending.add(executor.submit(() -> compressEntry(entry)));
+        while (pending.size() > 2 * threads) {
+          records.add(writeCompressedEntry(take(pending), out));
+        }
+        continue;
+      }
+      while (!pending.isEmpty()) {
+        records.add(writeCompressedEntry(take(pending), out));
+      }
+      if (entry.directory) {
+        records.add(writeCompressedEntry(new CompressedEntry(entry, ZIP_STORED, 0, 0, new byte[0]),
+            out));
+      } else {
+        records.add(writeStreamedEntry(entry, out, executor, buffer));
+      }
+    }
+    while (!pending.isEmpty()) {
+      records.add(writeCompressedEntry(take(pending), out));
+    }
+
+    long centralDirectoryOffset = out.getCount();
+    for (ZipRecord record : records) {
+      writeIntLE(out, 0x02014b50L);
+      writeShortLE(out, 20);
+      writeShortLE(out, 20);
+      writeShortLE(out, record.flags);
+      writeShortLE(out, record.method);
+      writeIntLE(out, record.dosTime);
+      writeIntLE(out, record.crc);
+      writeIntLE(out, record.compressedSize);
+      writeIntLE(out, record.size);
+      writeShortLE(out, record.name.length);
+      writeShortLE(out, 0);
+      writeShortLE(out, 0);
+      writeShortLE(out, 0);
+      writeShortLE(out, 0);
+      writeIntLE(out, record.directory ? 0x10 : 0);
+      writeIntLE(out, record.offset);
+      out.write(record.name);
+    }
+    long centralDirectorySize = out.getCount() - centralDirectoryOffset;
+    checkZipLimit(centralDirectoryOffset, "Archive");
+    writeIntLE(out, 0x06054b50L);
+    writeShortLE(out, 0);
+    writeShortLE(out, 0);
+    writeShortLE(out, records.size());
+    writeShortLE(out, records.size());
+    writeIntLE(out, centralDirectorySize);
+    writeIntLE(out, centralDirectoryOffset);
+    writeShortLE(out, 0);
+  }
+
+  private CompressedEntry compressEntry(Entry entry) throws IOException {
+    byte[] data = Files.readAllBytes(entry.path);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      byte[] compressed = new byte[data.length + data.length / 1000 + 64];
+      int length = 0;
+      while (!deflater.finished() && length < compressed.length) {
+        length += deflater.deflate(compressed, length, compressed.length - length);
+      }
+      if (!deflater.finished() || length >= data.length) {
+        // Incompressible
+        return new CompressedEntry(entry, ZIP_STORED, crc.getValue(), data.length, data);
+      }
+      return new CompressedEntry(entry, ZIP_DEFLATED, crc.getValue(), data.length,
+          Arrays.copyOf(compressed, length));
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static ZipRecord writeCompressedEntry(CompressedEntry compressed,
+      CountingOutputStream out) throws IOException {
+    ZipRecord record = newRecord(compressed.entry, out.getCount());
+    record.method = compressed.method;
+    record.crc = compressed.crc;
+    record.compressedSize = compressed.data.length;
+    record.size = compressed.size;
+    writeLocalHeader(record, out);
+    out.write(compressed.data);
+    return record;
+  }
+
+  private ZipRecord writeStreamedEntry(Entry entry, CountingOutputStream out,
+      ExecutorService executor, byte[] buffer) throws IOException {
+    ZipRecord record = newRecord(entry, out.getCount());
+    record.method = ZIP_DEFLATED;
+    record.flags |= ZIP_FLAG_DATA_DESCRIPTOR;
+    writeLocalHeader(record, out);
+    ParallelDeflaterOutputStream deflater =
+        new ParallelDeflaterOutputStream(out, executor, threads, level);
+    copy(entry.path, deflater, buffer);
+    deflater.finish();
+    record.crc = deflater.getCrc();
+    record.compressedSize = deflater.getBytesOut();
+    record.size = deflater.getBytesIn();
+    checkZipLimit(record.size, entry.name);
+    checkZipLimit(record.compressedSize, entry.name);
+    writeIntLE(out, 0x08074b50L);
+    writeIntLE(out, record.crc);
+    writeIntLE(out, record.compressedSize);
+    writeIntLE(out, record.size);
+    return record;
+  }
+
+  private static ZipRecord newRecord(Entry entry, long offset) throws IOException {
+    checkZipLimit(offset, entry.name);
+    ZipRecord record = new ZipRecord();
+    record.name = entry.name.getBytes(StandardCharsets.UTF_8);
+    record.flags = ZIP_FLAG_UTF8;
+    record.dosTime = dosTime(entry.lastModified);
+    record.offset = offset;
+    record.directory = entry.directory;
+    return record;
+  }
+
+  private static void writeLocalHeader(ZipRecord record, OutputStream out) throws IOException {
+    boolean descriptor = (record.flags & ZIP_FLAG_DATA_DESCRIPTOR) != 0;
+    writeIntLE(out, 0x04034b50L);
+    writeShortLE(out, 20);
+    writeShortLE(out, record.flags);
+    writeShortLE(out, record.method);
+    writeIntLE(out, record.dosTime);
+    writeIntLE(out, descriptor ? 0 : record.crc);
+    writeIntLE(out, descriptor ? 0 : record.compressedSize);
+    writeIntLE(out, descriptor ? 0 : record.size);
+    writeShortLE(out, record.name.length);
+    writeShortLE(out, 0);
+    out.write(record.name);
+  }
+
+  private static void checkZipLimit(long value, String what) throws IOException {
+    if (value > ZIP_MAX) {
+      String errorMessage = String.format(
+          "\"%s\" exceeds 4 GiB, which zip archives don't support. Use tar.gz instead.", what);
+      throw new IOException(errorMessage);
+    }
+  }
+
+  private static long dosTime(long millis) {
+    LocalDateTime time =
+        LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (time.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (time.getYear() - 1980) << 25) | (time.getMonthValue() << 21)
+        | (time.getDayOfMonth() << 16) | (time.getHour() << 11) | (time.getMinute() << 5)
+        | (time.getSecond() >> 1);
+  }
+
+  // --- common ---
+
+  private static <T> T take(ArrayDeque<Future<T>> pending) throws IOException {
+    try {
+      return pending.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while packing.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static long copy(Path path, OutputStream out, byte[] buffer) throws IOException {
+    long copied = 0;
+    try (InputStream in = Files.newInputStream(path)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+        copied += n;
+      }
+    }
+    return copied;
+  }
+
+  private static void writeShortLE(OutputStream out, int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+  }
+
+  private static void writeIntLE(OutputStream out, long value) throws IOException {
+    out.write((int) (value & 0xff));
+    out.write((int) ((value >>> 8) & 0xff));
+    out.write((int) ((value >>> 16) & 0xff));
+    out.write((int) ((value >>> 24) & 0xff));
+  }
+
+  /**
+   * Keeps track of the position in the archive.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    long getCount() {
+      return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
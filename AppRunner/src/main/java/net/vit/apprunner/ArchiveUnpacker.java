@@ -0,0 +1,289 @@
+package net.vit.apprunner;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import net.vit.apprunner.util.ExecutorBackend;
+
+/**
+ * Extracts zip, tar and tar.gz archives, writing entries concurrently.
+ * <p/>
+ * Zip entries are read through {@link ZipFile}, which allows reading several entries at once, so
+ * every file is inflated and written on a pool thread. A tar stream can only be read in order: one
+ * thread reads it and hands small files over to the pool to be written, while large files are
+ * written by the reading thread itself. The amount of data waiting to be written is bounded.
+ * <p/>
+ * Entries, which would end up outside of the target directory, are rejected.
+ *
+ * @author vit
+ * @see ArchivePacker
+ */
+class ArchiveUnpacker {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Tar entries up to this size are read into memory and written on the pool.
+   */
+  private static final int IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+  /**
+   * Maximum number of bytes of tar entries waiting to be written.
+   */
+  private static final int MEMORY_BUDGET = 64 * 1024 * 1024;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final ExecutorBackend backend;
+
+  /**
+   * @param backend threads to write entries on
+   */
+  ArchiveUnpacker(ExecutorBackend backend) {
+    this.backend = backend;
+  }
+
+  /**
+   * Extracts the archive into the directory. Existing files are overwritten.
+   *
+   * @param archive zip, tar or tar.gz file
+   * @param toDir target directory, created if needed
+   * @return number of entries extracted
+   * @throws IOException
+   */
+  int unpack(Path archive, Path toDir) throws IOException {
+    ArchivePacker.Format format = ArchivePacker.Format.of(Optional.empty(), archive);
+    logger.info(String.format("Unpacking \"%s\" -> \"%s\".", archive, toDir));
+    Path root = toDir.toAbsolutePath().normalize();
+    Files.createDirectories(root);
+    ExecutorService executor =
+        backend.newExecutor("apprunner-unpack", backend.getIoParallelism());
+    List<Future<?>> writes = Collections.synchronizedList(new ArrayList<>());
+    try {
+      int count;
+      if (format == ArchivePacker.Format.ZIP) {
+        count = unpackZip(archive, root, executor, writes);
+      } else {
+        try (InputStream file = Files.newInputStream(archive);
+            InputStream in = format == ArchivePacker.Format.TAR_GZ
+                ? new GZIPInputStream(file, BUFFER_SIZE)
+                : new BufferedInputStream(file, BUFFER_SIZE)) {
+          count = unpackTar(in, root, executor, writes);
+        }
+      }
+      for (Future<?> write : writes) {
+        write.get();
+      }
+      return count;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while unpacking.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static int unpackZip(Path archive, Path root, ExecutorService executor,
+      List<Future<?>> writes) throws IOException, InterruptedException, ExecutionException {
+    try (ZipFile zipFile = new ZipFile(archive.toFile(), StandardCharsets.UTF_8)) {
+      List<? extends ZipEntry> entries = Collections.list(zipFile.entries());
+      for (ZipEntry entry : entries) {
+        Path target = resolve(root, entry.getName());
+        if (entry.isDirectory()) {
+          Files.createDirectories(target);
+          continue;
+        }
+        writes.add(executor.submit(() -> {
+          Files.createDirectories(target.getParent());
+          try (InputStream in = zipFile.getInputStream(entry)) {
+            Files.copy(in, target, REPLACE_EXISTING);
+          }
+          Files.setLastModifiedTime(target, FileTime.fromMillis(entry.getTime()));
+          return null;
+        }));
+      }
+      // The zip file has to stay open until every entry is written
+      for (Future<?> write : writes) {
+        write.get();
+      }
+      return entries.size();
+    }
+  }
+
+  private int unpackTar(InputStream in, Path root, ExecutorService executor,
+      List<Future<?>> writes) throws IOException, InterruptedException {
+    Semaphore budget = new Semaphore(MEMORY_BUDGET);
+    byte[] header = new byte[512];
+    byte[] buffer = new byte[BUFFER_SIZE];
+    String longName = null;
+    int count = 0;
+    while (true) {
+      readFully(in, header, header.length);
+      if (isZeroBlock(header)) {
+        return count;
+      }
+      String name = longName != null ? longName : headerName(header);
+      longName = null;
+      long size = parseOctal(header, 124, 12);
+      long lastModified = parseOctal(header, 136, 12) * 1000;
+      char type = (char) header[156];
+      long padding = (512 - size % 512) % 512;
+
+      if (type == 'L') {
+        byte[] data = new byte[(int) size];
+        readFully(in, data, data.length);
+        int end = 0;
+        while (end < data.length && data[end] != 0) {
+          ++end;
+        }
+        longName = new String(data, 0, end, StandardCharsets.UTF_8);
+        skip(in, padding);
+        continue;
+      }
+
+      ++count;
+      Path target = resolve(root, name);
+      if (type == '5') {
+        Files.createDirectories(target);
+      } else if (type == '0' || type == 0) {
+        Files.createDirectories(target.getParent());
+        if (size <= IN_MEMORY_LIMIT) {
+          byte[] data = new byte[(int) size];
+          readFully(in, data, data.length);
+          budget.acquire(data.length);
+          writes.add(executor.submit(() -> {
+            try (OutputStream out = Files.newOutputStream(target)) {
+              out.write(data);
+            } finally {
+              budget.release(data.length);
+            }
+            Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+            return null;
+          }));
+        } else {
+          try (OutputStream out = Files.newOutputStream(target)) {
+            long remaining = size;
+            while (remaining > 0) {
+              int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+              if (n < 0) {
+                throw new EOFException(String.format("Archive ends inside \"%s\".", name));
+              }
+              out.write(buffer, 0, n);
+              remaining -= n;
+            }
+          }
+          Files.setLastModifiedTime(target, FileTime.fromMillis(lastModified));
+        }
+      } else {
+        logger.warning(String.format("Skipping \"%s\" of unsupported tar entry type '%s'.", name,
+            type));
+        skip(in, size);
+      }
+      skip(in, padding);
+    }
+  }
+
+  /**
+   * @return path of the entry inside the root
+   * @throws IOException if the entry would end up outside of the root
+   */
+  private static Path resolve(Path root, String name) throws IOException {
+    Path target = root.resolve(name).normalize();
+    if (!target.startsWith(root) || target.equals(root)) {
+      String errorMessage =
+          String.format("Archive entry \"%s\" points outside of \"%s\".", name, root);
+      throw new IOException(errorMessage);
+    }
+    return target;
+  }
+
+  private static String headerName(byte[] header) {
+    String name = cString(header, 0, 100);
+    if ("ustar".equals(cString(header, 257, 6))) {
+      String prefix = cString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  private static String cString(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      ++end;
+    }
+    return new String(header, offset, end - offset, StandardCharsets.UTF_8).trim();
+  }
+
+  private static long parseOctal(byte[] header, int offset, int length) {
+    long result = 0;
+    for (int i = offset; i < offset + length; ++i) {
+      byte b = header[i];
+      if (b >= '0' && b <= '7') {
+        result = result * 8 + (b - '0');
+      } else if (b == 0 || (b == ' ' && result > 0)) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private static boolean isZeroBlock(byte[] header) {
+    for (byte b : header) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void readFully(InputStream in, byte[] data, int length) throws IOException {
+    int read = 0;
+    while (read < length) {
+      int n = in.read(data, read, length - read);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of the archive.");
+      }
+      read += n;
+    }
+  }
+
+  private static void skip(InputStream in, long count) throws IOException {
+    long remaining = count;
+    while (remaining > 0) {
+      long n = in.skip(remaining);
+      if (n <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("Unexpected end of the archive.");
+        }
+        n = 1;
+      }
+      remaining -= n;
+    }
+  }
+}
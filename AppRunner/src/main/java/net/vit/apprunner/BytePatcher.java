@@ -0,0 +1,309 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import net.vit.apprunner.util.DaemonThreadFactory;
+import net.vit.apprunner.util.MappedBuffers;
+
+/**
+ * Replaces byte sequences inside files, e.g. a character code inside a .uasset.
+ * <p/>
+ * Every file is memory-mapped and searched for all patterns with Boyer-Moore-Horspool, which skips
+ * up to a whole pattern length per comparison. Matches don't overlap: the leftmost one wins, and of
+ * several patterns matching at the same position the one declared first. If every replacement has
+ * the length of its pattern and the file is patched in place, the bytes are overwritten inside a
+ * writable mapping. Otherwise the file is streamed into a new one: the unchanged ranges straight
+ * from the mapping, the replacements in between. A file patched in place this way is first written
+ * next to the original and then moved over it. Files are processed in parallel.
+ *
+ * @author vit
+ */
+class BytePatcher {
+  private static final Logger logger = AppRunner.logger;
+
+  private static final String TMP_SUFFIX = ".apprunner-patch";
+
+  /**
+   * One pattern with its replacement and precomputed shift table.
+   */
+  static class Replacement {
+    private final byte[] find;
+    private final byte[] with;
+    private final int[] shift;
+
+    /**
+     * @param find non-empty pattern
+     * @param with replacement, possibly of a different length
+     */
+    Replacement(byte[] find, byte[] with) {
+      if (find.length == 0) {
+        throw new IllegalArgumentException("Pattern to find must not be empty.");
+      }
+      this.find = find;
+      this.with = with;
+      this.shift = new int[256];
+      Arrays.fill(shift, find.length);
+      for (int i = 0; i < find.length - 1; ++i) {
+        shift[find[i] & 0xff] = find.length - 1 - i;
+      }
+    }
+
+    /**
+     * @param find pattern
+     * @param with replacement
+     * @param hex whether the values are hexadecimal bytes like "4C 49 4C" rather than text
+     * @return new replacement
+     * @throws IllegalArgumentException if a hexadecimal value is malformed
+     */
+    static Replacement of(String find, String with, boolean hex) {
+      return hex ? new Replacement(parseHex(find), parseHex(with))
+          : new Replacement(find.getBytes(StandardCharsets.UTF_8),
+              with.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] parseHex(String value) {
+      String digits = value.replaceAll("\\s", "");
+      if (digits.length() % 2 != 0 || !digits.matches("[0-9a-fA-F]*")) {
+        String errorMessage =
+            String.format("\"%s\" is not a sequence of hexadecimal bytes.", value);
+        throw new IllegalArgumentException(errorMessage);
+      }
+      byte[] result = new byte[digits.length() / 2];
+      for (int i = 0; i < result.length; ++i) {
+        result[i] = (byte) Integer.parseInt(digits.substring(2 * i, 2 * i + 2), 16);
+      }
+      return result;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search.
+     *
+     * @return position of the first occurrence at or after {@code from}, or -1
+     */
+    int indexOf(ByteBuffer buffer, int from, int limit) {
+      int last = find.length - 1;
+      int position = from;
+      while (position + last < limit) {
+        byte b = buffer.get(position + last);
+        if (b == find[last]) {
+          int i = last - 1;
+          while (i >= 0 && buffer.get(position + i) == find[i]) {
+            --i;
+          }
+          if (i < 0) {
+            return position;
+          }
+        }
+        position += shift[b & 0xff];
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Occurrence of a pattern in a file.
+   */
+  private static class Match {
+    private final int position;
+    private final Replacement replacement;
+
+    Match(int position, Replacement replacement) {
+      this.position = position;
+      this.replacement = replacement;
+    }
+  }
+
+  private final List<Replacement> replacements;
+  private final boolean sameLength;
+
+  /**
+   * @param replacements patterns with their replacements in the order of precedence
+   */
+  BytePatcher(List<Replacement> replacements) {
+    this.replacements = replacements;
+    this.sameLength = replacements.stream().allMatch((r) -> r.find.length == r.with.length);
+  }
+
+  /**
+   * Patches the files.
+   *
+   * @param files files to patch
+   * @param toDir directory to write patched files to, or empty to patch in place. Files without
+   *        any match are copied there unchanged
+   * @return total number of replaced occurrences
+   * @throws IOException
+   */
+  int patch(List<Path> files, Optional<Path> toDir) throws IOException {
+    if (toDir.isPresent()) {
+      Files.createDirectories(toDir.get());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory("apprunner-patch"));
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      for (Path file : files) {
+        Path target = toDir.map((dir) -> dir.resolve(file.getFileName())).orElse(file);
+        results.add(executor.submit(() -> patchFile(file, target)));
+      }
+      int total = 0;
+      int patchedFiles = 0;
+      for (Future<Integer> result : results) {
+        int count = result.get();
+        total += count;
+        patchedFiles += count > 0 ? 1 : 0;
+      }
+      logger.info(String.format("Patched %d occurrence(s) in %d of %d file(s).", total,
+          patchedFiles, files.size()));
+      return total;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while patching.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return number of replaced occurrences
+   */
+  private int patchFile(Path source, Path target) throws IOException {
+    boolean inPlace = source.toAbsolutePath().normalize()
+        .equals(target.toAbsolutePath().normalize());
+    long size = Files.size(source);
+    if (size > Integer.MAX_VALUE) {
+      String errorMessage = String.format("File \"%s\" is too large to be patched.", source);
+      throw new IOException(errorMessage);
+    }
+
+    if (inPlace && sameLength) {
+      try (FileChannel channel =
+          FileChannel.open(source, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        try {
+          List<Match> matches = findAll(buffer, (int) size);
+          for (Match match : matches) {
+            for (int i = 0; i < match.replacement.with.length; ++i) {
+              buffer.put(match.position + i, match.replacement.with[i]);
+            }
+          }
+          if (!matches.isEmpty()) {
+            buffer.force();
+          }
+          return logged(source, matches.size());
+        } finally {
+          MappedBuffers.unmap(buffer);
+        }
+      }
+    }
+
+    List<Match> matches;
+    Path out = inPlace ? source.resolveSibling(source.getFileName() + TMP_SUFFIX) : target;
+    try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      try {
+        matches = findAll(buffer, (int) size);
+        if (matches.isEmpty()) {
+          if (!inPlace) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+          }
+          return 0;
+        }
+        try (FileChannel outChannel = FileChannel.open(out, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+          int position = 0;
+          for (Match match : matches) {
+            writeRange(outChannel, buffer, position, match.position);
+            writeFully(outChannel, ByteBuffer.wrap(match.replacement.with));
+            position = match.position + match.replacement.find.length;
+          }
+          writeRange(outChannel, buffer, position, (int) size);
+        }
+      } finally {
+        MappedBuffers.unmap(buffer);
+      }
+    }
+    if (inPlace) {
+      Files.move(out, source, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return logged(source, matches.size());
+  }
+
+  private static int logged(Path file, int count) {
+    if (count > 0) {
+      logger.fine(() -> String.format("Patched %d occurrence(s) in \"%s\".", count, file));
+    }
+    return count;
+  }
+
+  /**
+   * @return non-overlapping matches of all patterns ordered by position
+   */
+  private List<Match> findAll(ByteBuffer buffer, int limit) {
+    int count = replacements.size();
+    int[] next = new int[count];
+    for (int i = 0; i < count; ++i) {
+      next[i] = replacements.get(i).indexOf(buffer, 0, limit);
+    }
+    List<Match> matches = new ArrayList<>();
+    while (true) {
+      int best = -1;
+      for (int i = 0; i < count; ++i) {
+        if (next[i] >= 0 && (best < 0 || next[i] < next[best])) {
+          best = i;
+        }
+      }
+      if (best < 0) {
+        return matches;
+      }
+      Replacement replacement = replacements.get(best);
+      int position = next[best];
+      matches.add(new Match(position, replacement));
+      int end = position + replacement.find.length;
+      for (int i = 0; i < count; ++i) {
+        if (next[i] >= 0 && next[i] < end) {
+          next[i] = replacements.get(i).indexOf(buffer, end, limit);
+        }
+      }
+    }
+  }
+
+  private static void writeRange(FileChannel channel, ByteBuffer buffer, int from, int to)
+      throws IOException {
+    if (from < to) {
+      ByteBuffer range = buffer.duplicate();
+      // Through Buffer, so that the class runs on Java 8 even when compiled by a newer javac
+      ((Buffer) range).limit(to);
+      ((Buffer) range).position(from);
+      writeFully(channel, range);
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import net.vit.apprunner.util.DaemonThreadFactory;
+import net.vit.apprunner.util.MappedBuffers;
+
+/**
+ * Checks that copied files are identical to their sources, while the copying goes on.
+ * <p/>
+ * Each {@link #submit(Path, Path) submitted} pair is compared on a pool of background threads by
+ * CRC-32 of memory-mapped regions of both files. Files of at least {@link #CHUNK_SIZE} bytes are
+ * split into chunks, which are checked in parallel. Smaller files are batched, so that one task
+ * checks about a chunk worth of them. {@link #verify()} waits for the outstanding checks and
+ * reports every mismatch at once.
+ *
+ * @author vit
+ */
+class ChecksumVerifier implements AutoCloseable {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Size of one mapped region.
+   */
+  static final long CHUNK_SIZE = 16L * 1024 * 1024;
+
+  /**
+   * One pair of files to compare.
+   */
+  private static class Pair {
+    private final Path source;
+    private final Path target;
+
+    Pair(Path source, Path target) {
+      this.source = source;
+      this.target = target;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("\"%s\" -> \"%s\"", source, target);
+    }
+  }
+
+  private final ExecutorService executor;
+  private final List<Future<List<Pair>>> checks;
+  private final List<Pair> mismatches;
+  private List<Pair> batch;
+  private long batchBytes;
+  private int fileCount;
+
+  ChecksumVerifier() {
+    executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        new DaemonThreadFactory("apprunner-verify"));
+    checks = new ArrayList<>();
+    mismatches = new ArrayList<>();
+    batch = new ArrayList<>();
+  }
+
+  /**
+   * Schedules a comparison of two files. Returns immediately. May be called from several threads.
+   *
+   * @param source original file
+   * @param target its copy
+   * @throws IOException if sizes of the files can't be read
+   */
+  synchronized void submit(Path source, Path target) throws IOException {
+    ++fileCount;
+    Pair pair = new Pair(source, target);
+    long size = Files.size(source);
+    if (size != Files.size(target)) {
+      mismatches.add(pair);
+      return;
+    }
+
+    if (size < CHUNK_SIZE) {
+      batch.add(pair);
+      batchBytes += size;
+      if (batchBytes >= CHUNK_SIZE) {
+        flushBatch();
+      }
+      return;
+    }
+
+    for (long position = 0; position < size; position += CHUNK_SIZE) {
+      long start = position;
+      long length = Math.min(CHUNK_SIZE, size - position);
+      checks.add(executor.submit(() -> {
+        boolean equal = crc(pair.source, start, length) == crc(pair.target, start, length);
+        return equal ? Collections.<Pair>emptyList() : Collections.singletonList(pair);
+      }));
+    }
+  }
+
+  /**
+   * Waits for all submitted comparisons.
+   *
+   * @throws IOException if some files differ from their sources or couldn't be read
+   */
+  void verify() throws IOException {
+    flushBatch();
+    try {
+      for (Future<List<Pair>> check : checks) {
+        for (Pair pair : check.get()) {
+          if (!mismatches.contains(pair)) {
+            mismatches.add(pair);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      checks.clear();
+    }
+
+    if (!mismatches.isEmpty()) {
+      String errorMessage = String.format("Verification failed for %d of %d file(s): %s.",
+          mismatches.size(), fileCount,
+          mismatches.stream().map(Pair::toString).collect(Collectors.joining(", ")));
+      throw new IOException(errorMessage);
+    }
+    if (fileCount > 0) {
+      logger.info(String.format("Verified %d file(s).", fileCount));
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private void flushBatch() {
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<Pair> pairs = batch;
+    checks.add(executor.submit(() -> {
+      List<Pair> result = new ArrayList<>();
+      for (Pair pair : pairs) {
+        long size = Files.size(pair.source);
+        if (crc(pair.source, 0, size) != crc(pair.target, 0, size)) {
+          result.add(pair);
+        }
+      }
+      return result;
+    }));
+    batch = new ArrayList<>();
+    batchBytes = 0;
+  }
+
+  private static long crc(Path path, long position, long length) throws IOException {
+    CRC32 crc = new CRC32();
+    if (length == 0) {
+      return crc.getValue();
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+      try {
+        crc.update(buffer);
+      } finally {
+        MappedBuffers.unmap(buffer);
+      }
+    }
+    return crc.getValue();
+  }
+}
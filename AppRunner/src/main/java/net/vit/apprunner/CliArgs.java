@@ -3,6 +3,8 @@ package net.vit.apprunner;
 import java.util.ArrayList;
 import java.util.List;
 import com.beust.jcommander.Parameter;
+import net.vit.apprunner.util.AsyncLogHandler;
+import net.vit.apprunner.util.ExecutorBackend;
 
 /**
  * Class describes command line arguments. Each field annotated with {@link Parameter} becomes a
@@ -21,11 +23,143 @@ public class CliArgs {
   @Parameter(names = {"--properties", "-p"}, variableArity = true,
       description = "<your-constants>.properties file. Each line has a form key=value. "
           + "Each (key,value) pair becomes a constant of top level "
-          + "(i.e. under <configuration>/<constants> in module.xml file)")
-  String properties;
+          + "(i.e. under <configuration>/<constants> in module.xml file). "
+          + "Several files, a directory or a glob like variants/*.properties run the tasks once "
+          + "per file, see --parallel-variants")
+  List<String> properties = new ArrayList<>();
+
+  @Parameter(names = {"--parallel-variants"},
+      description = "Maximum number of properties files (variants) processed at the same time")
+  int parallelVariants = 1;
 
   @Parameter(names = {"--tasks", "-t"},
       description = "List of tasks (must be specified in your module) to execute",
       variableArity = true, required = true)
   List<String> tasks = new ArrayList<>();
+
+  @Parameter(names = {"--jfr"},
+      description = "Starts a Java Flight Recorder recording and writes it to the given .jfr file "
+          + "when the run is over. Open it in JDK Mission Control")
+  String jfr;
+
+  @Parameter(names = {"--trace-out"},
+      description = "Writes a timeline of module parsing, name resolution, tasks, actions and "
+          + "processes to the given JSON file in Trace Event Format. "
+          + "Open it in chrome://tracing or Perfetto")
+  String traceOut;
+
+  @Parameter(names = {"--progress-file"},
+      description = "Rewrites the given JSON file every second with files and bytes done, the "
+          + "planned totals, the current rate, the expected time left and running applications")
+  String progressFile;
+
+  @Parameter(names = {"--no-progress"},
+      description = "Doesn't show the progress line at the bottom of the console")
+  boolean noProgress;
+
+  @Parameter(names = {"--log-overflow"},
+      description = "What to do with log records, when the log buffer is full: BLOCK waits for the "
+          + "log writer, DROP discards the record, DROP_BELOW_WARNING discards only records below "
+          + "WARNING level")
+  AsyncLogHandler.OverflowPolicy logOverflow = AsyncLogHandler.OverflowPolicy.BLOCK;
+
+  @Parameter(names = {"--jobs", "-j"},
+      description = "Maximum number of actions running at the same time. Actions touching the same "
+          + "files always run in the order they are declared")
+  int jobs = 1;
+
+  @Parameter(names = {"--max-processes"},
+      description = "Maximum number of external applications running at the same time")
+  int maxProcesses = Runtime.getRuntime().availableProcessors();
+
+  @Parameter(names = {"--io-lanes"},
+      description = "Maximum number of file operations running at the same time on one disk "
+          + "(file store)")
+  int ioLanes = 1;
+
+  @Parameter(names = {"--io-limit"}, variableArity = true,
+      description = "Overrides --io-lanes for the disk, which holds the given path. "
+          + "Each value has a form <path>=<number of lanes>, e.g. D:/=4")
+  List<String> ioLimits = new ArrayList<>();
+
+  @Parameter(names = {"--io-rate"}, variableArity = true,
+      description = "Limits bytes per second copies and moves read from and write to the disk, "
+          + "which holds the given path. Each value has a form <path>=<rate>, e.g. D:/=50M")
+  List<String> ioRates = new ArrayList<>();
+
+  @Parameter(names = {"--io-ops"}, variableArity = true,
+      description = "Limits files per second copies, moves and deletes create, move or delete on "
+          + "the disk, which holds the given path. Each value has a form <path>=<rate>")
+  List<String> ioOps = new ArrayList<>();
+
+  @Parameter(names = {"--prefetch-budget"},
+      description = "Megabytes of input files of upcoming actions read into the disk cache while "
+          + "applications run. 0 disables prefetching")
+  int prefetchBudget = 256;
+
+  @Parameter(names = {"--chunked-copy-threshold"},
+      description = "Size in megabytes, from which on a file is copied by several threads in "
+          + "ranges. 0, the default, disables chunked copies")
+  int chunkedCopyThreshold;
+
+  @Parameter(names = {"--schedule"},
+      description = "Order, in which actions ready to run start when --jobs is above 1: "
+          + "CRITICAL_PATH starts the longest chain of dependent actions first, judging by how "
+          + "long they took in earlier runs, DECLARED keeps the order of tasks and actions")
+  ActionScheduler.SchedulePolicy schedule = ActionScheduler.SchedulePolicy.CRITICAL_PATH;
+
+  @Parameter(names = {"--watch", "-w"},
+      description = "After running the tasks keeps watching the module, the properties file and "
+          + "the files the tasks read, and re-runs the affected tasks on every change")
+  boolean watch;
+
+  @Parameter(names = {"--watch-debounce"},
+      description = "In watch mode, milliseconds without further changes to wait for before "
+          + "re-running tasks")
+  long watchDebounce = 200;
+
+  @Parameter(names = {"--force", "-f"},
+      description = "Runs all tasks, even those whose files and configuration didn't change since "
+          + "their last successful run")
+  boolean force;
+
+  @Parameter(names = {"--executor"},
+      description = "Threads file operations, child processes and their output pumps run on: "
+          + "PLATFORM uses fixed pools, VIRTUAL starts a virtual thread per operation (Java 21+)")
+  ExecutorBackend executor = ExecutorBackend.PLATFORM;
+
+  @Parameter(names = {"--dry-run", "-n"},
+      description = "Searches every input of the requested tasks, logs the execution plan with "
+          + "file counts, sizes and processes to start, and exits without running anything")
+  boolean dryRun;
+
+  @Parameter(names = {"--no-optimize"},
+      description = "Runs actions exactly as declared: a copy followed by a delete of its sources "
+          + "isn't turned into a move, copies deleted unread aren't skipped and every search "
+          + "lists its directory")
+  boolean noOptimize;
+
+  @Parameter(names = {"--explain-plan"},
+      description = "Logs how the requested tasks would be rewritten to run faster and exits "
+          + "without running anything")
+  boolean explainPlan;
+
+  @Parameter(names = {"--workers"},
+      description = "Runs the tasks on the given number of worker processes started on this "
+          + "machine. Tasks touching the same files still run in the order they are requested")
+  int workers;
+
+  @Parameter(names = {"--listen"},
+      description = "Accepts workers from other hosts sharing the file system on the given port. "
+          + "Start them with the same -m, -p and -t keys and --coordinator <this host>:<port>")
+  int listen;
+
+  @Parameter(names = {"--coordinator"},
+      description = "Runs as a worker of the coordinator at the given <host>:<port>")
+  String coordinator;
+
+  @Parameter(names = {"--heartbeat-timeout"},
+      description = "Milliseconds of silence after which a worker is considered dead and its "
+          + "tasks are given to other workers")
+  long heartbeatTimeout = 10000;
 }
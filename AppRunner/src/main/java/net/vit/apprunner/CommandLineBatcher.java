@@ -0,0 +1,107 @@
+package net.vit.apprunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Splits a long list of arguments into several command lines the way {@code xargs} does.
+ * <p/>
+ * Every command line consists of the same leading arguments (executable and everything declared
+ * before the first {@literal <files>} tag), as many argument units as fit, and the same trailing
+ * arguments. A unit is one file, optionally preceded by its key, and is never split across two
+ * command lines.
+ *
+ * @author vit
+ */
+class CommandLineBatcher {
+  /**
+   * Limit of {@code CreateProcess} on Windows is 32767 characters. Leave room for quoting.
+   */
+  static final int WINDOWS_MAX_COMMAND_LENGTH = 32000;
+
+  /**
+   * Linux caps a single argument at 128 KiB and the whole argv and environment at ARG_MAX (2 MiB
+   * by default). 128 KiB for the command line is well below both.
+   */
+  static final int UNIX_MAX_COMMAND_LENGTH = 128 * 1024;
+
+  /**
+   * Extra characters counted per argument: a separator and a pair of quotes.
+   */
+  private static final int ARG_OVERHEAD = 3;
+
+  private final List<String> leading;
+  private final List<String> trailing;
+  private final Optional<Integer> maxArgs;
+  private final int maxLength;
+
+  /**
+   * @param leading arguments which go first into every command line, including the executable
+   * @param trailing arguments which go last into every command line
+   * @param maxArgs maximum number of units per command line, if any
+   * @param maxLength maximum length of a command line in characters
+   */
+  CommandLineBatcher(List<String> leading, List<String> trailing, Optional<Integer> maxArgs,
+      int maxLength) {
+    this.leading = leading;
+    this.trailing = trailing;
+    this.maxArgs = maxArgs;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * @return limit on the command line length for the current OS
+   */
+  static int defaultMaxLength() {
+    return System.getProperty("os.name", "").toLowerCase().startsWith("windows")
+        ? WINDOWS_MAX_COMMAND_LENGTH
+        : UNIX_MAX_COMMAND_LENGTH;
+  }
+
+  /**
+   * Splits the units into command lines.
+   *
+   * @param units argument units, e.g. {@code ["-f", "a.uasset"]} or {@code ["a.uasset"]}
+   * @return one or more command lines; exactly one if there are no units at all
+   * @throws IllegalArgumentException if a single unit doesn't fit into a command line
+   */
+  List<List<String>> split(List<List<String>> units) {
+    int fixedLength = length(leading) + length(trailing);
+    List<List<String>> commands = new ArrayList<>();
+    List<String> current = new ArrayList<>(leading);
+    int currentLength = fixedLength;
+    int currentUnits = 0;
+    for (List<String> unit : units) {
+      int unitLength = length(unit);
+      if (fixedLength + unitLength > maxLength) {
+        String errorMessage = String.format(
+            "Argument %s doesn't fit into a command line of %d characters.", unit, maxLength);
+        throw new IllegalArgumentException(errorMessage);
+      }
+      boolean full = currentLength + unitLength > maxLength
+          || (maxArgs.isPresent() && currentUnits >= maxArgs.get());
+      if (full && currentUnits > 0) {
+        current.addAll(trailing);
+        commands.add(current);
+        current = new ArrayList<>(leading);
+        currentLength = fixedLength;
+        currentUnits = 0;
+      }
+      current.addAll(unit);
+      currentLength += unitLength;
+      ++currentUnits;
+    }
+    current.addAll(trailing);
+    commands.add(current);
+    return commands;
+  }
+
+  private static int length(List<String> args) {
+    int result = 0;
+    for (String arg : args) {
+      result += arg.length() + ARG_OVERHEAD;
+    }
+    return result;
+  }
+}
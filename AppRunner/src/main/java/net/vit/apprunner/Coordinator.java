@@ -0,0 +1,595 @@
+package net.vit.apprunner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Runs the requested tasks on worker processes, see {@link Worker}. Workers are either started by
+ * the coordinator on the local machine or started by user on other hosts sharing the file system.
+ * <p/>
+ * A task depends on every earlier task, whose {@link Footprint} conflicts with its own, the same
+ * way actions do in {@link ActionScheduler}. A task, which becomes ready, is queued on an idle
+ * worker, preferably on the one which ran one of its dependencies and likely has its files cached,
+ * or else on the worker with the shortest queue. A worker runs one task at a time and takes the
+ * next one from its own queue. A worker with an empty queue steals the last task of the longest
+ * queue.
+ * <p/>
+ * Both sides send a heartbeat every {@link #HEARTBEAT_INTERVAL_MILLIS}. A worker, whose connection
+ * breaks or which stays silent longer than the heartbeat timeout, is considered dead: its
+ * connection is closed, a local worker is killed, and then the task it was running and its queue
+ * go to the other workers. Anything a dead worker still reports is ignored. A worker, which loses
+ * the coordinator the same way while running a task, aborts, see {@link Worker}. Still, a
+ * reassigned task runs again from its first action, after the dead worker may have done a part of
+ * it, and applications the worker started may outlive it. So tasks run on workers have to be
+ * idempotent. After the first failed task no new tasks are started, the running ones are waited
+ * for and the failure is rethrown.
+ * <p/>
+ * Messages are lines of text: a worker says {@code HELLO <config hash> [<key>]} and gets
+ * {@code WELCOME <id> <heartbeat timeout>} or {@code REJECT <reason>}. Then the coordinator sends
+ * {@code RUN <index> <task>} and {@code EXIT}, the worker answers {@code DONE <index>} or
+ * {@code FAILED <index> <message>}, and both send {@code HEARTBEAT} in between. The hash makes
+ * sure that both sides resolved the same module chain, properties and constants. The key, which
+ * the coordinator gives to local workers in {@link #WORKER_KEY_ENV}, tells their connections
+ * apart. A peer sending anything else is dropped like a dead worker.
+ *
+ * @author vit
+ */
+class Coordinator {
+  private static final Logger logger = AppRunner.logger;
+
+  static final String HELLO = "HELLO";
+  static final String WELCOME = "WELCOME";
+  static final String REJECT = "REJECT";
+  static final String RUN = "RUN";
+  static final String DONE = "DONE";
+  static final String FAILED = "FAILED";
+  static final String HEARTBEAT = "HEARTBEAT";
+  static final String EXIT = "EXIT";
+
+  /**
+   * Environment variable holding the key of a local worker.
+   */
+  static final String WORKER_KEY_ENV = "APPRUNNER_WORKER_KEY";
+
+  /**
+   * A line of the console output of a worker: time, level and message, see
+   * {@link net.vit.apprunner.util.SysoutLoggingFormatter}.
+   */
+  private static final Pattern CONSOLE_LINE = Pattern.compile("\\[[0-9:]+\\] (\\w+)\\s*: (.*)");
+
+  /**
+   * Posted by the acceptor thread for a new connection.
+   */
+  private static final String CONNECTED = "CONNECTED";
+
+  /**
+   * How often workers send a heartbeat.
+   */
+  static final long HEARTBEAT_INTERVAL_MILLIS = 1000;
+
+  /**
+   * One requested task.
+   */
+  private static class Node {
+    private final int index;
+    private final Task task;
+    private final List<Node> dependencies;
+    private final List<Node> dependents;
+    private int pendingDependencies;
+    private Connection ranOn;
+
+    Node(int index, Task task) {
+      this.index = index;
+      this.task = task;
+      this.dependencies = new ArrayList<>();
+      this.dependents = new ArrayList<>();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("#%d %s", index, task.getName());
+    }
+  }
+
+  /**
+   * Connection to one worker.
+   */
+  private static class Connection {
+    private final int id;
+    private final Socket socket;
+    private final Writer writer;
+    private final Deque<Node> queue;
+    private Process process;
+    private Node running;
+    private boolean accepted;
+    private boolean alive;
+    private long lastSeen;
+
+    Connection(int id, Socket socket) throws IOException {
+      this.id = id;
+      this.socket = socket;
+      this.writer = new BufferedWriter(
+          new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      this.queue = new ArrayDeque<>();
+      this.alive = true;
+      this.lastSeen = System.nanoTime();
+    }
+
+    /**
+     * Sends a message. A broken connection is closed, so that its reader reports it.
+     */
+    void send(String message) {
+      try {
+        writer.write(message + "\n");
+        writer.flush();
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Closing anyway
+      }
+    }
+
+    int load() {
+      return queue.size() + (running != null ? 1 : 0);
+    }
+  }
+
+  /**
+   * Message received from a worker, or a broken connection if the line is null.
+   */
+  private static class Message {
+    private final Connection connection;
+    private final String line;
+
+    Message(Connection connection, String line) {
+      this.connection = connection;
+      this.line = line;
+    }
+  }
+
+  private final List<Node> nodes;
+  private final String configHash;
+  private final int localWorkers;
+  private final int port;
+  private final long heartbeatTimeoutMillis;
+  private final List<String> workerCommand;
+  private final Consumer<Task> taskFinished;
+  private final List<Connection> connections;
+  private final Deque<Node> unassigned;
+  private final LinkedBlockingQueue<Message> messages;
+  private final Map<String, Process> localProcesses;
+  private int completed;
+  private RuntimeException failure;
+
+  /**
+   * @param settings resolved settings
+   * @param tasks tasks to run in the order they were requested
+   * @param configHash hash of the configuration, which workers have to match
+   * @param localWorkers number of worker processes to start on this machine
+   * @param port port to accept workers from other hosts on, or 0 to accept only local workers on
+   *        any free port
+   * @param heartbeatTimeoutMillis silence after which a worker is considered dead
+   * @param workerCommand command starting a local worker, without the coordinator address
+   * @param taskFinished called for every task, which has finished successfully, before its
+   *        dependents start, may be null
+   */
+  Coordinator(Settings settings, List<Task> tasks, String configHash, int localWorkers, int port,
+      long heartbeatTimeoutMillis, List<String> workerCommand, Consumer<Task> taskFinished) {
+    this.configHash = configHash;
+    this.localWorkers = localWorkers;
+    this.port = port;
+    this.heartbeatTimeoutMillis = Math.max(heartbeatTimeoutMillis, 2 * HEARTBEAT_INTERVAL_MILLIS);
+    this.workerCommand = workerCommand;
+    this.taskFinished = taskFinished;
+    this.connections = new ArrayList<>();
+    this.unassigned = new ArrayDeque<>();
+    this.messages = new LinkedBlockingQueue<>();
+    this.localProcesses = new HashMap<>();
+    this.nodes = new ArrayList<>();
+
+    List<Footprint> footprints = new ArrayList<>();
+    for (Task task : tasks) {
+      Node node = new Node(nodes.size(), task);
+      Footprint footprint = Footprint.of(task, settings);
+      for (Node earlier : nodes) {
+        if (footprints.get(earlier.index).conflictsWith(footprint)) {
+          node.dependencies.add(earlier);
+          earlier.dependents.add(node);
+        }
+      }
+      node.pendingDependencies = node.dependencies.size();
+      nodes.add(node);
+      footprints.add(footprint);
+    }
+  }
+
+  /**
+   * Starts the local workers, runs all tasks on the connected workers and waits for them to
+   * finish. Workers are told to exit at the end.
+   *
+   * @throws IOException if no worker is connected for longer than the heartbeat timeout
+   */
+  void run() throws IOException {
+    List<Process> processes = new ArrayList<>();
+    List<Thread> forwarders = new ArrayList<>();
+    try (ServerSocket server = port > 0 ? new ServerSocket(port)
+        : new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      logger.info(String.format(
+          "Coordinating %d task(s) on port %d: %d local worker(s)%s.", nodes.size(),
+          server.getLocalPort(), localWorkers, port > 0 ? ", accepting remote workers" : ""));
+      Thread acceptor = new Thread(() -> accept(server), "apprunner-coordinator");
+      acceptor.setDaemon(true);
+      acceptor.start();
+      for (int i = 0; i < localWorkers; ++i) {
+        List<String> command = new ArrayList<>(workerCommand);
+        command.add("--coordinator");
+        command.add(InetAddress.getLoopbackAddress().getHostAddress() + ":"
+            + server.getLocalPort());
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        String key = UUID.randomUUID().toString();
+        builder.environment().put(WORKER_KEY_ENV, key);
+        Process process = builder.start();
+        processes.add(process);
+        localProcesses.put(key, process);
+        forwarders.add(forward(process));
+      }
+
+      nodes.stream().filter((node) -> node.pendingDependencies == 0).forEach(this::assign);
+      long noWorkersSince = System.nanoTime();
+      long heartbeatSent = System.nanoTime();
+      while (completed < nodes.size()
+          && (failure == null || connections.stream().anyMatch((c) -> c.running != null))) {
+        Message message = messages.poll(HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (message != null) {
+          handle(message);
+        }
+        long now = System.nanoTime();
+        if (now - heartbeatSent >= TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL_MILLIS)) {
+          heartbeatSent = now;
+          connections.stream().filter((c) -> c.alive && c.accepted)
+              .forEach((c) -> c.send(HEARTBEAT));
+        }
+        for (Connection connection : new ArrayList<>(connections)) {
+          if (connection.alive && now - connection.lastSeen > TimeUnit.MILLISECONDS
+              .toNanos(heartbeatTimeoutMillis)) {
+            dead(connection, "stopped sending heartbeats");
+          }
+        }
+        if (connections.stream().anyMatch((c) -> c.alive && c.accepted)) {
+          noWorkersSince = now;
+        } else if (now - noWorkersSince > TimeUnit.MILLISECONDS
+            .toNanos(heartbeatTimeoutMillis)) {
+          String errorMessage = String.format(
+              "No worker is connected for %d ms. %d of %d task(s) were done.",
+              heartbeatTimeoutMillis, completed, nodes.size());
+          throw new IOException(errorMessage);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      for (Connection connection : connections) {
+        if (connection.alive) {
+          connection.send(EXIT);
+        }
+        connection.close();
+      }
+      waitFor(processes);
+      join(forwarders);
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void accept(ServerSocket server) {
+    int ids = 0;
+    while (!server.isClosed()) {
+      Connection connection;
+      try {
+        connection = new Connection(++ids, server.accept());
+      } catch (IOException e) {
+        // Closed by run()
+        return;
+      }
+      messages.add(new Message(connection, CONNECTED));
+      Thread reader =
+          new Thread(() -> read(connection), "apprunner-coordinator-" + connection.id);
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+  private void read(Connection connection) {
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(connection.socket.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        messages.add(new Message(connection, line));
+      }
+    } catch (IOException e) {
+      // Reported as a broken connection
+    }
+    messages.add(new Message(connection, null));
+  }
+
+  private void handle(Message message) {
+    Connection connection = message.connection;
+    if (message.line == null) {
+      if (connection.alive) {
+        dead(connection, "disconnected");
+      }
+      return;
+    }
+    if (!connection.alive) {
+      return;
+    }
+    connection.lastSeen = System.nanoTime();
+    String[] parts = message.line.split(" ", 3);
+    switch (parts[0]) {
+      case CONNECTED:
+        if (!connections.contains(connection)) {
+          connections.add(connection);
+        }
+        break;
+      case HELLO:
+        if (connection.accepted) {
+          drop(connection, message.line);
+          return;
+        }
+        if (parts.length < 2 || !configHash.equals(parts[1])) {
+          logger.warning(String.format(
+              "Worker %d from %s resolved another configuration and was rejected.",
+              connection.id, connection.socket.getInetAddress().getHostAddress()));
+          connection.send(REJECT + " The module, the properties or the constants differ from "
+              + "those of the coordinator.");
+          connection.alive = false;
+          connection.close();
+          return;
+        }
+        connection.accepted = true;
+        connection.process = parts.length > 2 ? localProcesses.remove(parts[2]) : null;
+        connection.send(WELCOME + " " + connection.id + " " + heartbeatTimeoutMillis);
+        logger.info(String.format("Worker %d connected from %s.", connection.id,
+            connection.socket.getInetAddress().getHostAddress()));
+        while (!unassigned.isEmpty()) {
+          assign(unassigned.pollFirst());
+        }
+        break;
+      case HEARTBEAT:
+        break;
+      case DONE: {
+        Node node = finished(connection, parts);
+        if (node == null) {
+          drop(connection, message.line);
+          return;
+        }
+        ++completed;
+        node.ranOn = connection;
+        if (taskFinished != null) {
+          taskFinished.accept(node.task);
+        }
+        for (Node dependent : node.dependents) {
+          if (--dependent.pendingDependencies == 0) {
+            assign(dependent);
+          }
+        }
+        break;
+      }
+      case FAILED: {
+        Node node = finished(connection, parts);
+        if (node == null) {
+          drop(connection, message.line);
+          return;
+        }
+        if (failure == null) {
+          String errorMessage = String.format("Task \"%s\" failed on worker %d: %s",
+              node.task.getName(), connection.id, parts.length > 2 ? parts[2] : "");
+          failure = new RuntimeException(errorMessage);
+        }
+        break;
+      }
+      default:
+        drop(connection, message.line);
+        return;
+    }
+    dispatch();
+  }
+
+  /**
+   * @return the task the worker was running, or null if the message doesn't report it
+   */
+  private Node finished(Connection connection, String[] parts) {
+    Node node = connection.running;
+    if (node == null || parts.length < 2 || !String.valueOf(node.index).equals(parts[1])) {
+      return null;
+    }
+    connection.running = null;
+    return node;
+  }
+
+  /**
+   * Drops a peer, which sent a message it shouldn't have, like a dead worker.
+   */
+  private void drop(Connection connection, String line) {
+    logger.warning(String.format("Worker %d from %s sent \"%s\" and was dropped.", connection.id,
+        connection.socket.getInetAddress().getHostAddress(),
+        line.length() > 80 ? line.substring(0, 80) + "..." : line));
+    dead(connection, "was dropped");
+  }
+
+  /**
+   * Queues a ready task on an idle worker, preferably on one which ran one of its dependencies,
+   * otherwise on the worker with the shortest queue.
+   */
+  private void assign(Node node) {
+    List<Connection> workers = connections.stream().filter((c) -> c.alive && c.accepted)
+        .collect(Collectors.toList());
+    if (workers.isEmpty()) {
+      unassigned.addLast(node);
+      return;
+    }
+    Connection target = workers.stream().min(Comparator.comparingInt(Connection::load)
+        .thenComparing((c) -> node.dependencies.stream().noneMatch((d) -> d.ranOn == c)))
+        .get();
+    target.queue.addLast(node);
+    dispatch();
+  }
+
+  /**
+   * Starts the next task on every idle worker, stealing from the longest queue if its own one is
+   * empty.
+   */
+  private void dispatch() {
+    if (failure != null) {
+      return;
+    }
+    for (Connection connection : connections) {
+      if (!connection.alive || !connection.accepted || connection.running != null) {
+        continue;
+      }
+      Node next = connection.queue.pollFirst();
+      if (next == null) {
+        Connection victim = connections.stream().filter((c) -> c.alive && !c.queue.isEmpty())
+            .max(Comparator.comparingInt((Connection c) -> c.queue.size())).orElse(null);
+        if (victim == null) {
+          continue;
+        }
+        next = victim.queue.pollLast();
+        Node stolen = next;
+        logger.fine(() -> String.format("Worker %d steals %s from worker %d.", connection.id,
+            stolen, victim.id));
+      }
+      connection.running = next;
+      logger.fine(String.format("Worker %d runs %s.", connection.id, next));
+      connection.send(RUN + " " + next.index + " " + next.task.getName());
+    }
+  }
+
+  /**
+   * Gives the running and queued tasks of a dead worker to the others. The worker is fenced off
+   * first: its connection is closed, and a local worker is killed and waited for, so that it
+   * doesn't go on with a task, which another worker is going to run.
+   */
+  private void dead(Connection connection, String reason) {
+    connection.alive = false;
+    connection.close();
+    if (connection.process != null) {
+      connection.process.destroyForcibly();
+      waitFor(Collections.singletonList(connection.process));
+    }
+    List<Node> orphans = new ArrayList<>();
+    if (connection.running != null) {
+      orphans.add(connection.running);
+      connection.running = null;
+    }
+    orphans.addAll(connection.queue);
+    connection.queue.clear();
+    if (orphans.isEmpty()) {
+      logger.info(String.format("Worker %d %s.", connection.id, reason));
+      return;
+    }
+    logger.warning(String.format("Worker %d %s. Reassigning %s.", connection.id, reason,
+        orphans));
+    orphans.sort(Comparator.comparingInt((Node node) -> node.index));
+    orphans.forEach(this::assign);
+  }
+
+  /**
+   * Logs the console output of a local worker, which writes no log file of its own, in the log of
+   * the coordinator. A line keeps the level the worker logged it with, and lines of a stack trace
+   * keep the level of their record.
+   *
+   * @return the thread logging the output, which ends with the worker
+   */
+  private static Thread forward(Process process) {
+    Thread thread = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+        String line;
+        Level level = Level.INFO;
+        while ((line = reader.readLine()) != null) {
+          String message = line;
+          Matcher matcher = CONSOLE_LINE.matcher(line);
+          if (matcher.matches()) {
+            try {
+              level = Level.parse(matcher.group(1));
+              message = matcher.group(2);
+            } catch (IllegalArgumentException e) {
+              // Not a level
+            }
+          }
+          logger.log(level, message);
+        }
+      } catch (IOException e) {
+        // The worker is gone
+      }
+    }, "apprunner-worker-output");
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Waits until the last lines of the exited workers are logged, so that they don't turn up in the
+   * log after the run. A child process of a worker may still hold its output open, so the wait is
+   * limited.
+   */
+  private static void join(List<Thread> forwarders) {
+    for (Thread forwarder : forwarders) {
+      try {
+        forwarder.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static void waitFor(List<Process> processes) {
+    for (Process process : processes) {
+      try {
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+          process.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
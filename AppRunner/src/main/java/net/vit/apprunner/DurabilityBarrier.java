@@ -0,0 +1,285 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Makes the results of a {@literal <copy>} or {@literal <move>} survive a crash of the machine.
+ * <p/>
+ * Without a barrier, written files sit in the page cache for a while, and a crash may leave a
+ * target half written. With {@link Mode#FILE} every file is written under a temporary name,
+ * flushed to the disk, renamed into place, and its directory is flushed; this costs two flushes
+ * per file. With {@link Mode#OPERATION} files stay under their temporary names until
+ * {@link #commit()}, which flushes all of them in parallel, renames them into place and flushes
+ * every touched directory once. Either way a target is the old file or the complete new one, never
+ * a torn one. Renames within one disk and new directories are made durable by flushing their
+ * directories. If the operation fails, {@link #abort()} deletes the temporary files.
+ *
+ * @author vit
+ */
+class DurabilityBarrier {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Suffix of files, which are being written.
+   */
+  static final String TEMP_SUFFIX = ".apprunner-tmp";
+
+  static enum Mode {
+    /**
+     * Files are written in place and left to the OS to flush.
+     */
+    NONE,
+    /**
+     * One flush of every file and directory at the end of the operation.
+     */
+    OPERATION,
+    /**
+     * Every file is flushed as soon as it is written.
+     */
+    FILE;
+
+    /**
+     * @param durability value of the "durability" attribute
+     * @return parsed mode, {@link #NONE} by default
+     */
+    static Mode of(Optional<String> durability) {
+      return durability.map((value) -> valueOf(value.toUpperCase())).orElse(NONE);
+    }
+  }
+
+  private final Mode mode;
+  private final ExecutorService executor;
+  private final Map<Path, Path> pending;
+  private final Set<Path> temps;
+  private final Set<Path> shared;
+  private final Set<Path> dirs;
+  private final AtomicLong syncedFiles;
+  private final AtomicLong syncedDirs;
+
+  /**
+   * @param mode
+   * @param executor threads to flush files on in parallel
+   */
+  DurabilityBarrier(Mode mode, ExecutorService executor) {
+    this.mode = mode;
+    this.executor = executor;
+    this.pending = new LinkedHashMap<>();
+    this.temps = new LinkedHashSet<>();
+    this.shared = new LinkedHashSet<>();
+    this.dirs = new LinkedHashSet<>();
+    this.syncedFiles = new AtomicLong();
+    this.syncedDirs = new AtomicLong();
+  }
+
+  /**
+   * @return true unless the mode is {@link Mode#NONE}
+   */
+  boolean isEnabled() {
+    return mode != Mode.NONE;
+  }
+
+  /**
+   * @param target file to be written
+   * @return path to write the data of the target to
+   */
+  synchronized Path pathFor(Path target) {
+    if (!isEnabled()) {
+      return target;
+    }
+    Path temp = tempOf(target);
+    temps.add(temp);
+    return temp;
+  }
+
+  /**
+   * Tells that the data of the target has been written to {@link #pathFor(Path)}.
+   *
+   * @param target
+   * @return path the data is at now
+   * @throws IOException if the file couldn't be flushed or renamed
+   */
+  Path written(Path target) throws IOException {
+    if (mode == Mode.FILE) {
+      Path temp = tempOf(target);
+      forceFile(temp);
+      Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+      forget(temp);
+      forceDirectory(target.toAbsolutePath().getParent());
+      return target;
+    } else if (mode == Mode.OPERATION) {
+      synchronized (this) {
+        pending.put(target, tempOf(target));
+      }
+      return tempOf(target);
+    }
+    return target;
+  }
+
+  /**
+   * Tells that a target was created in place, sharing data with its source, see
+   * {@link FileLinker}.
+   *
+   * @param target
+   * @throws IOException if the file couldn't be flushed
+   */
+  void shared(Path target) throws IOException {
+    if (mode == Mode.FILE) {
+      forceFile(target);
+      forceDirectory(target.toAbsolutePath().getParent());
+    } else if (mode == Mode.OPERATION) {
+      synchronized (this) {
+        shared.add(target);
+      }
+    }
+  }
+
+  /**
+   * Tells that a file or directory was renamed, e.g. moved within one disk.
+   *
+   * @param source
+   * @param target
+   * @throws IOException if the directories couldn't be flushed
+   */
+  void moved(Path source, Path target) throws IOException {
+    changed(source);
+    changed(target);
+  }
+
+  /**
+   * Tells that a directory was created, or a file or directory deleted.
+   *
+   * @param path
+   * @throws IOException if the parent directory couldn't be flushed
+   */
+  void changed(Path path) throws IOException {
+    Path parent = path.toAbsolutePath().getParent();
+    if (parent == null) {
+      return;
+    }
+    if (mode == Mode.FILE) {
+      forceDirectory(parent);
+    } else if (mode == Mode.OPERATION) {
+      synchronized (this) {
+        dirs.add(parent);
+      }
+    }
+  }
+
+  /**
+   * Flushes all files written so far, renames them into place and flushes their directories.
+   * Must be called once the writes have finished, not while they go on.
+   *
+   * @throws IOException if a file couldn't be flushed or renamed
+   */
+  void commit() throws IOException {
+    if (mode != Mode.OPERATION) {
+      return;
+    }
+    forceAll(pending.values(), false);
+    for (Map.Entry<Path, Path> entry : pending.entrySet()) {
+      Files.move(entry.getValue(), entry.getKey(), StandardCopyOption.ATOMIC_MOVE);
+      forget(entry.getValue());
+      dirs.add(entry.getKey().toAbsolutePath().getParent());
+    }
+    pending.clear();
+    forceAll(shared, false);
+    shared.forEach((target) -> dirs.add(target.toAbsolutePath().getParent()));
+    shared.clear();
+    forceAll(dirs, true);
+    dirs.clear();
+    logger.fine(() -> String.format("Flushed %d file(s) and %d directory(ies) to the disk.",
+        syncedFiles, syncedDirs));
+  }
+
+  /**
+   * Deletes temporary files, which haven't been renamed into place.
+   */
+  synchronized void abort() {
+    for (Path temp : temps) {
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException e) {
+        logger.warning(String.format("Couldn't delete the temporary file \"%s\": %s", temp,
+            e.getMessage()));
+      }
+    }
+    temps.clear();
+    pending.clear();
+  }
+
+  private static Path tempOf(Path target) {
+    return target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+  }
+
+  private synchronized void forget(Path temp) {
+    temps.remove(temp);
+  }
+
+  /**
+   * Flushes files or directories in parallel.
+   */
+  private void forceAll(Collection<Path> paths, boolean directories) throws IOException {
+    List<Future<?>> futures = new ArrayList<>();
+    for (Path path : paths) {
+      futures.add(executor.submit(() -> {
+        if (directories) {
+          forceDirectory(path);
+        } else {
+          forceFile(path);
+        }
+        return null;
+      }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while flushing files.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private void forceFile(Path file) throws IOException {
+    // Flushing needs write access on Windows
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    syncedFiles.incrementAndGet();
+  }
+
+  private void forceDirectory(Path dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (AccessDeniedException e) {
+      // Windows can't open directories, NTFS journals changes of their entries anyway
+      return;
+    }
+    syncedDirs.incrementAndGet();
+  }
+}
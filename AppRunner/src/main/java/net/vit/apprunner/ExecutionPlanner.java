@@ -0,0 +1,682 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.vit.apprunner.Settings.FileName;
+import net.vit.apprunner.Settings.FileNameBase;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.ExecutorBackend;
+
+/**
+ * Checks the inputs of the requested tasks before anything runs and estimates the work.
+ * <p/>
+ * Every {@link FileNameBase} is searched the way {@link TaskExecuteHelper} will search it, but in a
+ * model of the file system, which the actions are applied to in order: copies and moves add
+ * entries to their target directories, moves and deletes remove their sources, renames rename,
+ * packing adds an archive. Thus a file, which an earlier action of the run produces, is found, and
+ * one, which an earlier action removes, is not. Real directories are only read: all directories
+ * the tasks search in are listed in parallel up front, whatever else is needed is listed on
+ * demand, and, if the sizes are needed, those of whole directory trees are summed up in parallel in
+ * the background.
+ * <p/>
+ * What applications and unpacking write can't be known in advance. Their target directories, and
+ * the directories, in which a path passed to an application would be created, are marked as
+ * uncertain, and a search there, which finds nothing, is counted as unverified rather than failed.
+ *
+ * @author vit
+ */
+class ExecutionPlanner {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Estimated work of one task.
+   */
+  static class TaskPlan {
+    private final String taskName;
+    private final int actions;
+    private long files;
+    private long bytes;
+    private int processes;
+    private int unverified;
+
+    TaskPlan(String taskName, int actions) {
+      this.taskName = taskName;
+      this.actions = actions;
+    }
+
+    String getTaskName() {
+      return taskName;
+    }
+
+    /**
+     * @return number of input files, counting every file inside input directories, if the plan
+     *         is {@link Plan#isSized() sized}
+     */
+    long getFiles() {
+      return files;
+    }
+
+    /**
+     * @return total size of the input files, counting every file inside input directories, if
+     *         the plan is {@link Plan#isSized() sized}
+     */
+    long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * @return number of processes the task will start
+     */
+    int getProcesses() {
+      return processes;
+    }
+
+    /**
+     * @return number of searches, which couldn't be checked in advance
+     */
+    int getUnverified() {
+      return unverified;
+    }
+  }
+
+  /**
+   * Result of {@link ExecutionPlanner#plan(List)}.
+   */
+  static class Plan {
+    private final List<TaskPlan> tasks;
+    private final List<FileNotFoundException> problems;
+    private final boolean sized;
+
+    Plan(List<TaskPlan> tasks, List<FileNotFoundException> problems, boolean sized) {
+      this.tasks = tasks;
+      this.problems = problems;
+      this.sized = sized;
+    }
+
+    List<TaskPlan> getTasks() {
+      return tasks;
+    }
+
+    /**
+     * @return inputs, which won't be found, in the order the tasks would have run into them
+     */
+    List<FileNotFoundException> getProblems() {
+      return problems;
+    }
+
+    /**
+     * @return whether the sizes of input directories were summed up
+     */
+    boolean isSized() {
+      return sized;
+    }
+
+    /**
+     * Logs the plan task by task.
+     */
+    void log() {
+      logger.info("Execution plan:");
+      long files = 0, bytes = 0;
+      int processes = 0;
+      for (TaskPlan task : tasks) {
+        logger.info(String.format(
+            "Task \"%s\": %d action(s), %d input file(s), %d byte(s), %d process(es)%s.",
+            task.taskName, task.actions, task.files, task.bytes, task.processes,
+            task.unverified > 0
+                ? String.format(", %d search(es) unverified", task.unverified)
+                : ""));
+        files += task.files;
+        bytes += task.bytes;
+        processes += task.processes;
+      }
+      logger.info(String.format("Total: %d task(s), %d input file(s), %d byte(s), %d process(es).",
+          tasks.size(), files, bytes, processes));
+      for (FileNotFoundException problem : problems) {
+        logger.severe(problem.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Entry of a directory in the model. Its content is that of the origin.
+   */
+  private static class Node {
+    private final boolean directory;
+    private final long size;
+    private final Path origin;
+
+    /**
+     * @param directory
+     * @param size size of a file
+     * @param origin real path holding the same content, or null if the node was produced by an
+     *        action and has no real counterpart
+     */
+    Node(boolean directory, long size, Path origin) {
+      this.directory = directory;
+      this.size = size;
+      this.origin = origin;
+    }
+  }
+
+  private final Settings settings;
+  private final ExecutorBackend backend;
+  private final boolean sized;
+  /**
+   * Directory listings of the model, null for paths, which aren't directories.
+   */
+  private final Map<Path, Map<String, Node>> listings;
+  private final Map<Path, Future<Map<String, Node>>> realListings;
+  private final Map<Path, Future<long[]>> treeStats;
+  private final Set<Path> uncertainDirs;
+  private final Set<Path> uncertainTrees;
+  private ExecutorService executor;
+
+  /**
+   * @param settings resolved settings
+   * @param backend threads to read directories on
+   * @param sized whether to sum up the sizes of input directories, which takes a walk of every
+   *        one of them
+   */
+  ExecutionPlanner(Settings settings, ExecutorBackend backend, boolean sized) {
+    this.settings = settings;
+    this.backend = backend;
+    this.sized = sized;
+    this.listings = new HashMap<>();
+    this.realListings = new HashMap<>();
+    this.treeStats = new HashMap<>();
+    this.uncertainDirs = new HashSet<>();
+    this.uncertainTrees = new HashSet<>();
+  }
+
+  /**
+   * Searches all inputs of the tasks and estimates their work. Nothing is written.
+   *
+   * @param tasks tasks in the order they will run
+   * @return the plan
+   * @throws IOException if a directory can't be read
+   */
+  Plan plan(List<Task> tasks) throws IOException {
+    executor = backend.newExecutor("apprunner-plan", backend.getIoParallelism());
+    try {
+      Set<Path> searchedDirs = new LinkedHashSet<>();
+      for (Task task : tasks) {
+        for (Task.Action action : task.getActions()) {
+          fileNames(action).forEach((fileNameBase) -> searchedDirs.add(key(fileNameBase.getIn())));
+        }
+      }
+      for (Path dir : searchedDirs) {
+        realListings.put(dir, executor.submit(() -> readListing(dir)));
+      }
+
+      List<TaskPlan> taskPlans = new ArrayList<>();
+      List<FileNotFoundException> problems = new ArrayList<>();
+      Map<TaskPlan, List<Node>> inputs = new HashMap<>();
+      for (Task task : tasks) {
+        TaskPlan taskPlan = new TaskPlan(task.getName(), task.getActions().size());
+        List<Node> taskInputs = new ArrayList<>();
+        for (Task.Action action : task.getActions()) {
+          apply(action, taskPlan, taskInputs, problems);
+        }
+        taskPlans.add(taskPlan);
+        inputs.put(taskPlan, taskInputs);
+      }
+
+      for (TaskPlan taskPlan : taskPlans) {
+        for (Node node : inputs.get(taskPlan)) {
+          if (!node.directory) {
+            ++taskPlan.files;
+            taskPlan.bytes += node.size;
+          } else if (node.origin != null && sized) {
+            long[] stats = await(treeStats.get(node.origin));
+            taskPlan.files += stats[0];
+            taskPlan.bytes += stats[1];
+          }
+        }
+      }
+      return new Plan(taskPlans, problems, sized);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return every {@link FileNameBase} the action searches
+   */
+  private List<FileNameBase> fileNames(Task.Action action) {
+    List<FileNameBase> result = new ArrayList<>();
+    if (action instanceof Task.Pipeline) {
+      ((Task.Pipeline) action).getStages().forEach((stage) -> result.addAll(fileNames(stage)));
+    } else if (action instanceof Task.Application) {
+      for (List<Task.Application.ApplicationInput> execute : ((Task.Application) action)
+          .getExecuteList()) {
+        for (Task.Application.ApplicationInput input : execute) {
+          if (input instanceof FileNameBase) {
+            result.add((FileNameBase) input);
+          } else if (input instanceof Task.Application.FilesArg) {
+            result.add(((Task.Application.FilesArg) input).getFileNames());
+          }
+        }
+      }
+    } else {
+      for (Task.Operation.InternalOp internalOp : operation(action).getInternals()) {
+        if (internalOp instanceof Task.Operation.Rename) {
+          result.add(((Task.Operation.Rename) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.MoveOrCopy) {
+          result.addAll(((Task.Operation.MoveOrCopy) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.Pack) {
+          result.addAll(((Task.Operation.Pack) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.Unpack) {
+          result.addAll(((Task.Operation.Unpack) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.PatchBytes) {
+          result.addAll(((Task.Operation.PatchBytes) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.Delete) {
+          result.addAll(((Task.Operation.Delete) internalOp).getFileNames());
+        }
+      }
+    }
+    return result;
+  }
+
+  private Task.Operation operation(Task.Action action) {
+    if (action instanceof Task.OperationRef) {
+      return settings.getConfiguration().getOperationDefs()
+          .get(((Task.OperationRef) action).getRef()).getOperation();
+    }
+    return (Task.Operation) action;
+  }
+
+  /**
+   * Applies the action to the model.
+   */
+  private void apply(Task.Action action, TaskPlan taskPlan, List<Node> inputs,
+      List<FileNotFoundException> problems) throws IOException {
+    if (action instanceof Task.Pipeline) {
+      for (Task.Application stage : ((Task.Pipeline) action).getStages()) {
+        apply(stage, taskPlan, inputs, problems);
+      }
+      ((Task.Pipeline) action).getOutput()
+          .ifPresent((output) -> uncertainDirs.add(key(output).getParent()));
+      return;
+    }
+    if (action instanceof Task.Application) {
+      Task.Application application = (Task.Application) action;
+      for (List<Task.Application.ApplicationInput> execute : application.getExecuteList()) {
+        List<String> leading = new ArrayList<>();
+        List<String> trailing = new ArrayList<>();
+        List<List<String>> units = new ArrayList<>();
+        leading.add(application.getExecutablePath());
+        boolean filesSeen = false;
+        for (Task.Application.ApplicationInput input : execute) {
+          List<String> args = filesSeen && application.isBatch() ? trailing : leading;
+          if (input instanceof FileNameBase) {
+            for (Path path : search((FileNameBase) input, taskPlan, inputs, problems)) {
+              args.add(path.toString());
+            }
+          } else if (input instanceof Task.Application.StringArg) {
+            args.add(((Task.Application.StringArg) input).getValue());
+          } else if (input instanceof Task.Application.FilesArg) {
+            Task.Application.FilesArg filesArg = (Task.Application.FilesArg) input;
+            filesSeen = true;
+            for (Path path : search(filesArg.getFileNames(), taskPlan, inputs, problems)) {
+              List<String> unit = new ArrayList<>();
+              filesArg.getKey().ifPresent(unit::add);
+              unit.add(path.toString());
+              units.add(unit);
+            }
+          }
+        }
+        taskPlan.processes += !application.isBatch() ? 1
+            : new CommandLineBatcher(leading, trailing, application.getMaxArgs(),
+                CommandLineBatcher.defaultMaxLength()).split(units).size();
+      }
+      // Applications may write anything next to their inputs and into the working directory, and
+      // may create the paths passed as arguments, along with the directories above them
+      for (Footprint.Entry entry : Footprint.of(application, settings).getWrites()) {
+        if (!entry.isDeep()) {
+          uncertainDirs.add(entry.getPath());
+          continue;
+        }
+        uncertainTrees.add(entry.getPath());
+        for (Path dir = entry.getPath().getParent(); dir != null; dir = dir.getParent()) {
+          uncertainDirs.add(dir);
+          if (listing(dir) != null) {
+            break;
+          }
+        }
+      }
+      return;
+    }
+
+    for (Task.Operation.InternalOp internalOp : operation(action).getInternals()) {
+      if (internalOp instanceof Task.Operation.Rename) {
+        Task.Operation.Rename rename = (Task.Operation.Rename) internalOp;
+        RenamePlanner renamePlanner = new RenamePlanner(rename.getRenameOptions());
+        for (Path path : search(rename.getFileNames(), taskPlan, inputs, problems)) {
+          Path key = key(path.toString());
+          move(key, key.resolveSibling(renamePlanner.rename(key.getFileName().toString())));
+        }
+      } else if (internalOp instanceof Task.Operation.MoveOrCopy) {
+        Task.Operation.MoveOrCopy moveOrCopy = (Task.Operation.MoveOrCopy) internalOp;
+        boolean move = internalOp instanceof Task.Operation.Move;
+        Path to = key(moveOrCopy.getTo());
+        createDirectories(to);
+        for (FileNameBase fileNameBase : moveOrCopy.getFileNames()) {
+          for (Path path : search(fileNameBase, taskPlan, inputs, problems)) {
+            Path key = key(path.toString());
+            Path target = to.resolve(key.getFileName());
+            if (move) {
+              move(key, target);
+            } else {
+              Node node = node(key);
+              if (node != null) {
+                copy(node, key, target);
+              }
+            }
+          }
+        }
+      } else if (internalOp instanceof Task.Operation.Pack) {
+        Task.Operation.Pack pack = (Task.Operation.Pack) internalOp;
+        for (FileNameBase fileNameBase : pack.getFileNames()) {
+          search(fileNameBase, taskPlan, inputs, problems);
+        }
+        Path to = key(pack.getTo());
+        createDirectories(to.getParent());
+        put(to, new Node(false, 0, null));
+      } else if (internalOp instanceof Task.Operation.Unpack) {
+        Task.Operation.Unpack unpack = (Task.Operation.Unpack) internalOp;
+        for (FileNameBase fileNameBase : unpack.getFileNames()) {
+          search(fileNameBase, taskPlan, inputs, problems);
+        }
+        Path to = key(unpack.getTo());
+        createDirectories(to);
+        uncertainTrees.add(to);
+      } else if (internalOp instanceof Task.Operation.PatchBytes) {
+        Task.Operation.PatchBytes patchBytes = (Task.Operation.PatchBytes) internalOp;
+        List<Path> paths = new ArrayList<>();
+        for (FileNameBase fileNameBase : patchBytes.getFileNames()) {
+          paths.addAll(search(fileNameBase, taskPlan, inputs, problems));
+        }
+        if (patchBytes.getTo().isPresent()) {
+          Path to = key(patchBytes.getTo().get());
+          createDirectories(to);
+          for (Path path : paths) {
+            Path key = key(path.toString());
+            Node node = node(key);
+            if (node != null) {
+              put(to.resolve(key.getFileName()), new Node(false, node.size, null));
+            }
+          }
+        }
+      } else if (internalOp instanceof Task.Operation.Delete) {
+        for (FileNameBase fileNameBase : ((Task.Operation.Delete) internalOp).getFileNames()) {
+          // Deleting what doesn't exist is only a warning
+          for (Path path : search(fileNameBase, taskPlan, inputs, new ArrayList<>())) {
+            remove(key(path.toString()));
+          }
+        }
+      } else {
+        // We should never be here
+        String errorMessage =
+            String.format("Program failure. InternalOp has an unknown final type %s.",
+                internalOp.getClass().getName());
+        throw new AssertionError(errorMessage);
+      }
+    }
+  }
+
+  /**
+   * Searches the model the way {@link TaskExecuteHelper} searches the file system. A search,
+   * which fails, is recorded as a problem, or as unverified in an uncertain directory.
+   *
+   * @return paths in the form {@link TaskExecuteHelper} would pass them on
+   */
+  private List<Path> search(FileNameBase fileNameBase, TaskPlan taskPlan, List<Node> inputs,
+      List<FileNotFoundException> problems) throws IOException {
+    String startsWith = fileNameBase.getStartsWith().orElse("").toLowerCase();
+    String endsWith = fileNameBase.getEndsWith().orElse("").toLowerCase();
+    String contains = fileNameBase.getContains().orElse("").toLowerCase();
+    Path in = Paths.get(fileNameBase.getIn());
+    Path dir = key(fileNameBase.getIn());
+
+    Map<String, Node> listing = listing(dir);
+    List<Path> result = new ArrayList<>();
+    if (listing != null) {
+      // Files.walk() yields the directory itself too
+      Stream.concat(Stream.of(in), listing.keySet().stream().map(in::resolve)).filter((path) -> {
+        String s = String.valueOf(path.getFileName()).toLowerCase();
+        return s.startsWith(startsWith) && s.endsWith(endsWith) && s.contains(contains);
+      }).sorted().forEach(result::add);
+    }
+    if (fileNameBase instanceof FileName && result.size() > 1) {
+      result = result.subList(0, 1);
+    }
+    if (!result.isEmpty()) {
+      for (Path path : result) {
+        Node node = node(key(path.toString()));
+        if (node != null) {
+          inputs.add(node);
+          if (node.directory && node.origin != null && sized) {
+            treeStats.computeIfAbsent(node.origin,
+                (origin) -> executor.submit(() -> readTreeStats(origin)));
+          }
+        }
+      }
+      return result;
+    }
+
+    if (isUncertain(dir)) {
+      ++taskPlan.unverified;
+      return result;
+    }
+    String errorMessage;
+    if (listing == null) {
+      errorMessage = String.format("Task \"%s\": directory \"%s\" won't exist.",
+          taskPlan.taskName, fileNameBase.getIn());
+      problems.add(new FileNotFoundException(errorMessage));
+    } else {
+      errorMessage = String.format(
+          "Task \"%s\": couldn't find any file in \"%s\" such that starts with \"%s\", "
+              + "contains \"%s\" and ends with \"%s\"",
+          taskPlan.taskName, fileNameBase.getIn(), startsWith, contains, endsWith);
+      List<String> filesInDir = listing.keySet().stream().map(String::toLowerCase)
+          .filter((s) -> s.startsWith(startsWith) && s.endsWith(endsWith)).sorted()
+          .collect(Collectors.toList());
+      problems.add(fileNameBase.getContains().isPresent() && !filesInDir.isEmpty()
+          ? new FileNotFoundException(errorMessage, fileNameBase.getContains().get(), filesInDir)
+          : new FileNotFoundException(errorMessage));
+    }
+    return result;
+  }
+
+  private boolean isUncertain(Path dir) {
+    return uncertainDirs.contains(dir) || uncertainTrees.stream().anyMatch(dir::startsWith);
+  }
+
+  /**
+   * @return listing of the directory in the model, or null if it isn't a directory
+   */
+  private Map<String, Node> listing(Path dir) throws IOException {
+    if (listings.containsKey(dir)) {
+      return listings.get(dir);
+    }
+    Path ancestor = dir.getParent();
+    while (ancestor != null && !listings.containsKey(ancestor)) {
+      ancestor = ancestor.getParent();
+    }
+    Map<String, Node> listing;
+    if (ancestor == null) {
+      // Nothing above has been changed
+      listing = realListing(dir);
+    } else {
+      Node node = node(dir);
+      listing = node == null || !node.directory ? null
+          : node.origin == null ? new TreeMap<>() : realListing(node.origin);
+    }
+    listings.put(dir, listing);
+    return listing;
+  }
+
+  /**
+   * @return entry of the model, or null if there is none
+   */
+  private Node node(Path path) throws IOException {
+    if (path.getParent() == null) {
+      return new Node(true, 0, path);
+    }
+    Map<String, Node> parent = listing(path.getParent());
+    return parent == null ? null : parent.get(path.getFileName().toString());
+  }
+
+  private void put(Path path, Node node) throws IOException {
+    Map<String, Node> parent = listing(path.getParent());
+    if (parent != null) {
+      parent.put(path.getFileName().toString(), node);
+    }
+    forget(path);
+  }
+
+  private Node remove(Path path) throws IOException {
+    Map<String, Node> parent = listing(path.getParent());
+    Node node = parent == null ? null : parent.remove(path.getFileName().toString());
+    forget(path);
+    return node;
+  }
+
+  /**
+   * Drops listings of the path and of everything below it, since they don't hold anymore.
+   */
+  private void forget(Path path) {
+    listings.keySet().removeIf((dir) -> dir.startsWith(path));
+  }
+
+  private void createDirectories(Path dir) throws IOException {
+    if (dir == null || listing(dir) != null) {
+      return;
+    }
+    createDirectories(dir.getParent());
+    Map<String, Node> parent = listing(dir.getParent());
+    if (parent != null) {
+      parent.put(dir.getFileName().toString(), new Node(true, 0, null));
+    }
+    listings.put(dir, new TreeMap<>());
+  }
+
+  /**
+   * Copies the node to the target. Directories are merged with existing ones. Directories
+   * produced by the run are copied entry by entry, since their content exists only in the model.
+   */
+  private void copy(Node node, Path source, Path target) throws IOException {
+    if (source.equals(target) || target.startsWith(source)) {
+      return;
+    }
+    Node existing = node(target);
+    if (node.directory && (node.origin == null || existing != null && existing.directory)) {
+      Map<String, Node> children = listing(source);
+      if (children == null) {
+        return;
+      }
+      createDirectories(target);
+      for (Map.Entry<String, Node> child : new ArrayList<>(children.entrySet())) {
+        copy(child.getValue(), source.resolve(child.getKey()), target.resolve(child.getKey()));
+      }
+    } else {
+      put(target, node);
+    }
+  }
+
+  private void move(Path source, Path target) throws IOException {
+    Node node = node(source);
+    if (node == null || source.equals(target)) {
+      return;
+    }
+    copy(node, source, target);
+    remove(source);
+  }
+
+  /**
+   * @return listing of a real directory, or null if it isn't a directory
+   */
+  private Map<String, Node> realListing(Path dir) throws IOException {
+    Future<Map<String, Node>> listing = realListings.get(dir);
+    Map<String, Node> result = listing != null ? await(listing) : readListing(dir);
+    // Copied, since the model changes it
+    return result == null ? null : new TreeMap<>(result);
+  }
+
+  private static Map<String, Node> readListing(Path dir) throws IOException {
+    Map<String, Node> result = new TreeMap<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path path : stream) {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        result.put(path.getFileName().toString(),
+            new Node(attrs.isDirectory(), attrs.size(), path));
+      }
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * @return number of files and their total size in the tree
+   */
+  private static long[] readTreeStats(Path dir) throws IOException {
+    long[] stats = new long[2];
+    try (Stream<Path> tree = Files.walk(dir)) {
+      tree.forEach((path) -> {
+        try {
+          BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+          if (attrs.isRegularFile()) {
+            ++stats[0];
+            stats[1] += attrs.size();
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return stats;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while planning.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static Path key(String path) {
+    return Footprint.normalize(path);
+  }
+}
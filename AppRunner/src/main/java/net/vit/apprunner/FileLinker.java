@@ -0,0 +1,193 @@
+package net.vit.apprunner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Makes copies, which share data with their sources: hard links or copy-on-write clones
+ * (reflinks), see {@link Mode}.
+ * <p/>
+ * Java has no API for clones, so they are made by GNU {@code cp --reflink=always}, one invocation
+ * per target directory and batch of files (see {@link CommandLineBatcher}). Clones are queued by
+ * {@link #share(Path, Path)} and made by {@link #flush()}. Whatever the file system can't do falls
+ * back: a failed clone to a hard link (in {@link Mode#AUTO auto} mode) or to a real copy, a failed
+ * hard link to a real copy. After the first failure the method is not tried again.
+ *
+ * @author vit
+ */
+class FileLinker {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * How {@literal <copy>} creates target files.
+   */
+  static enum Mode {
+    /**
+     * Real copies.
+     */
+    COPY,
+    /**
+     * Hard links. Writing into a target in place writes into its source too.
+     */
+    LINK,
+    /**
+     * Copy-on-write clones. Targets share data with sources until either of them is written.
+     */
+    REFLINK,
+    /**
+     * Clones if the file system supports them, otherwise hard links.
+     */
+    AUTO;
+
+    /**
+     * @param mode value of the "mode" attribute
+     * @return parsed mode, {@link #COPY} by default
+     */
+    static Mode of(Optional<String> mode) {
+      return mode.map((value) -> valueOf(value.toUpperCase())).orElse(COPY);
+    }
+  }
+
+  private final Map<Path, List<Path>> pendingClones;
+  private boolean cloneSupported;
+  private boolean linkSupported;
+  private int clones;
+  private int links;
+
+  /**
+   * @param mode anything but {@link Mode#COPY}
+   */
+  FileLinker(Mode mode) {
+    this.pendingClones = new LinkedHashMap<>();
+    this.cloneSupported = (mode == Mode.REFLINK || mode == Mode.AUTO)
+        && !System.getProperty("os.name").startsWith("Windows");
+    this.linkSupported = mode == Mode.LINK || mode == Mode.AUTO;
+  }
+
+  /**
+   * Makes the target share data with the source, or queues a clone. The caller has made sure that
+   * both are on the same file store and the names of both files are the same.
+   *
+   * @param source
+   * @param target
+   * @return false if the file has to be copied by the caller
+   * @throws IOException
+   */
+  boolean share(Path source, Path target) throws IOException {
+    if (cloneSupported) {
+      pendingClones.computeIfAbsent(target.getParent(), (dir) -> new ArrayList<>()).add(source);
+      return true;
+    }
+    if (linkSupported) {
+      try {
+        Files.deleteIfExists(target);
+        Files.createLink(target, source);
+        ++links;
+        return true;
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        logger.fine(() -> String.format("Hard links aren't supported for \"%s\": %s. "
+            + "Copying instead.", target, e.getMessage()));
+        linkSupported = false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Makes the queued clones.
+   *
+   * @return pairs of source and target, which couldn't be cloned nor linked and have to be copied
+   *         by the caller
+   * @throws IOException
+   */
+  List<Path[]> flush() throws IOException {
+    List<Path[]> toCopy = new ArrayList<>();
+    for (Map.Entry<Path, List<Path>> entry : pendingClones.entrySet()) {
+      Path dir = entry.getKey();
+      List<Path> sources = entry.getValue();
+      if (cloneSupported && clone(dir, sources)) {
+        clones += sources.size();
+        continue;
+      }
+      for (Path source : sources) {
+        Path target = dir.resolve(source.getFileName());
+        if (!share(source, target)) {
+          toCopy.add(new Path[] {source, target});
+        }
+      }
+    }
+    pendingClones.clear();
+    return toCopy;
+  }
+
+  /**
+   * @return true if all files were cloned
+   */
+  private boolean clone(Path dir, List<Path> sources) throws IOException {
+    List<List<String>> units = sources.stream()
+        .map((source) -> Collections.singletonList(source.toString()))
+        .collect(Collectors.toList());
+    List<List<String>> commands = new CommandLineBatcher(
+        Arrays.asList("cp", "--reflink=always", "--preserve=timestamps", "-f", "-t",
+            dir.toString()),
+        Collections.emptyList(), Optional.empty(), CommandLineBatcher.defaultMaxLength())
+            .split(units);
+    for (List<String> command : commands) {
+      Process process;
+      try {
+        process = new ProcessBuilder(command).redirectErrorStream(true).start();
+      } catch (IOException e) {
+        logger.fine(() -> String.format("Couldn't start cp: %s. Clones aren't available.",
+            e.getMessage()));
+        cloneSupported = false;
+        return false;
+      }
+      String output;
+      try (BufferedReader reader =
+          new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        output = reader.lines().collect(Collectors.joining(" "));
+      }
+      int exitCode;
+      try {
+        exitCode = process.waitFor();
+      } catch (InterruptedException e) {
+        process.destroy();
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while cloning files.", e);
+      }
+      if (exitCode != 0) {
+        logger.fine(() -> String.format("Clones aren't supported for \"%s\": %s", dir, output));
+        cloneSupported = false;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return number of files cloned so far
+   */
+  int getClones() {
+    return clones;
+  }
+
+  /**
+   * @return number of hard links created so far
+   */
+  int getLinks() {
+    return links;
+  }
+}
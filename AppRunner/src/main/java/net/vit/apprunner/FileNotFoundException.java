@@ -44,7 +44,7 @@ public class FileNotFoundException extends Exception {
   }
   
   public Optional<String> getOptionsHelp() {
-    if (!optionsHelp.isPresent() && filesInDir.size() > 0) {
+    if (!optionsHelp.isPresent() && filesInDir != null && filesInDir.size() > 0) {
       List<Option> options =
           filesInDir.stream().map((s) -> new Option(s, new LCS(file, s).computeLcsLength()))
               .filter((o) -> o.lcsLength > 0).sorted(Option::reverseCompareTo)
@@ -0,0 +1,59 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.logging.Logger;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+/**
+ * Starts and stops a Java Flight Recorder recording for the duration of one launch. The recording
+ * uses the JDK's "profile" settings, so that GC, file and socket I/O events end up in the same file
+ * as {@link AppRunnerEvents}.
+ *
+ * @author vit
+ */
+class FlightRecording {
+  private static final Logger logger = AppRunner.logger;
+
+  private final Path destination;
+  private Recording recording;
+
+  FlightRecording(Path destination) {
+    this.destination = destination;
+  }
+
+  /**
+   * Starts the recording.
+   *
+   * @throws IOException if the destination is not writable
+   * @throws ParseException if the JDK's "profile" configuration could not be read
+   */
+  void start() throws IOException, ParseException {
+    Path parent = destination.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    Recording created = new Recording(Configuration.getConfiguration("profile"));
+    created.setName("AppRunner");
+    created.setToDisk(true);
+    created.setDestination(destination);
+    created.start();
+    recording = created;
+    logger.info(String.format("Flight recording started. Destination: \"%s\".", destination));
+  }
+
+  /**
+   * Stops the recording and writes it to the destination file.
+   */
+  void stop() {
+    if (recording != null) {
+      recording.stop();
+      recording.close();
+      recording = null;
+      logger.info(String.format("Flight recording written to \"%s\".", destination));
+    }
+  }
+}
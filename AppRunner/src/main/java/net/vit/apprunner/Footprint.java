@@ -0,0 +1,323 @@
+package net.vit.apprunner;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import net.vit.apprunner.Settings.FileNameBase;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Paths an action reads and writes. Two actions, whose footprints don't {@link #conflictsWith(Footprint)
+ * conflict}, may run in any order or at the same time.
+ * <p/>
+ * A path is either <i>deep</i>, i.e. the whole file tree under it is affected, or <i>shallow</i>,
+ * i.e. only the directory itself and its direct children are. Operations on files are deep, since
+ * they move, copy or delete whole directories. External applications are opaque: they are assumed
+ * to read and write next to each of their input files, inside any path passed as a plain argument,
+ * whether it exists yet or not, and in the working directory, where tools such as UassetRenamer
+ * put their output.
+ * A pipeline affects what its applications do and writes its output file.
+ *
+ * @author vit
+ */
+class Footprint {
+  /**
+   * One affected path.
+   */
+  static class Entry {
+    private final Path path;
+    private final boolean deep;
+
+    Entry(Path path, boolean deep) {
+      this.path = path;
+      this.deep = deep;
+    }
+
+    Path getPath() {
+      return path;
+    }
+
+    boolean isDeep() {
+      return deep;
+    }
+
+    boolean overlaps(Entry other) {
+      if (deep && other.deep) {
+        return path.startsWith(other.path) || other.path.startsWith(path);
+      } else if (deep) {
+        return other.covers(path) || other.path.startsWith(path);
+      } else if (other.deep) {
+        return covers(other.path) || path.startsWith(other.path);
+      } else {
+        return path.equals(other.path);
+      }
+    }
+
+    /**
+     * @param p absolute normalized path
+     * @return true if a change of {@code p} affects this entry
+     */
+    boolean contains(Path p) {
+      return deep ? p.startsWith(path) : p.equals(path) || path.equals(p.getParent());
+    }
+
+    /**
+     * @return true if this shallow entry contains {@code p}
+     */
+    private boolean covers(Path p) {
+      return p.startsWith(path) && p.getNameCount() <= path.getNameCount() + 1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof Entry) {
+        Entry entry = (Entry) obj;
+        return deep == entry.deep && path.equals(entry.path);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * path.hashCode() + (deep ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return deep ? path + "/**" : path + "/*";
+    }
+  }
+
+  private final Set<Entry> reads;
+  private final Set<Entry> writes;
+
+  Footprint() {
+    reads = new LinkedHashSet<>();
+    writes = new LinkedHashSet<>();
+  }
+
+  /**
+   * Computes the footprint of an action. Names of the action have to be resolved.
+   *
+   * @param action
+   * @param settings needed to look up {@link Task.OperationRef}s
+   * @return new footprint
+   */
+  static Footprint of(Task.Action action, Settings settings) {
+    Footprint footprint = new Footprint();
+    if (action instanceof Task.Application) {
+      footprint.addApplication((Task.Application) action);
+    } else if (action instanceof Task.Pipeline) {
+      Task.Pipeline pipeline = (Task.Pipeline) action;
+      pipeline.getStages().forEach(footprint::addApplication);
+      pipeline.getOutput().ifPresent((output) -> footprint.write(normalize(output).getParent(),
+          false));
+    } else if (action instanceof Task.OperationRef) {
+      Task.OperationRef operationRef = (Task.OperationRef) action;
+      footprint.addOperation(settings.getConfiguration().getOperationDefs()
+          .get(operationRef.getRef()).getOperation());
+    } else if (action instanceof Task.Operation) {
+      footprint.addOperation((Task.Operation) action);
+    } else {
+      // We should never be here
+      String errorMessage = String.format(
+          "Program failure. Action has an unknown final type %s.", action.getClass().getName());
+      throw new AssertionError(errorMessage);
+    }
+    return footprint;
+  }
+
+  /**
+   * Computes the footprint of a whole task, i.e. of all its actions.
+   *
+   * @param task
+   * @param settings
+   * @return new footprint
+   */
+  static Footprint of(Task task, Settings settings) {
+    Footprint footprint = new Footprint();
+    task.getActions().forEach((action) -> footprint.addAll(of(action, settings)));
+    return footprint;
+  }
+
+  static Path normalize(String path) {
+    return Paths.get(path).toAbsolutePath().normalize();
+  }
+
+  void read(Path path, boolean deep) {
+    reads.add(new Entry(path, deep));
+  }
+
+  void write(Path path, boolean deep) {
+    writes.add(new Entry(path, deep));
+  }
+
+  Set<Entry> getReads() {
+    return Collections.unmodifiableSet(reads);
+  }
+
+  Set<Entry> getWrites() {
+    return Collections.unmodifiableSet(writes);
+  }
+
+  /**
+   * Adds all paths of another footprint to this one, e.g. to get the footprint of a whole task.
+   *
+   * @param other
+   */
+  void addAll(Footprint other) {
+    reads.addAll(other.reads);
+    writes.addAll(other.writes);
+  }
+
+  /**
+   * @param path absolute normalized path
+   * @return true if the action reads the path
+   */
+  boolean reads(Path path) {
+    return reads.stream().anyMatch((entry) -> entry.contains(path));
+  }
+
+  /**
+   * @param path absolute normalized path
+   * @return true if the action writes the path
+   */
+  boolean writes(Path path) {
+    return writes.stream().anyMatch((entry) -> entry.contains(path));
+  }
+
+  /**
+   * @return every path of this footprint, read or written
+   */
+  List<Path> getPaths() {
+    List<Path> result = new ArrayList<>();
+    reads.forEach((entry) -> result.add(entry.path));
+    writes.stream().filter((entry) -> !result.contains(entry.path))
+        .forEach((entry) -> result.add(entry.path));
+    return result;
+  }
+
+  /**
+   * @param other footprint of another action
+   * @return true if one of the actions writes what the other one reads or writes
+   */
+  boolean conflictsWith(Footprint other) {
+    return overlaps(writes, other.reads) || overlaps(writes, other.writes)
+        || overlaps(reads, other.writes);
+  }
+
+  /**
+   * @param other footprint of another action
+   * @return true if this action writes what the other one reads
+   */
+  boolean writesWhatReads(Footprint other) {
+    return overlaps(writes, other.reads);
+  }
+
+  private static boolean overlaps(Set<Entry> a, Set<Entry> b) {
+    for (Entry x : a) {
+      for (Entry y : b) {
+        if (x.overlaps(y)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void addApplication(Task.Application application) {
+    read(normalize(application.getExecutablePath()), false);
+    write(normalize("."), false);
+    application.getOutputDir().ifPresent((dir) -> write(normalize(dir), false));
+    for (List<Task.Application.ApplicationInput> execute : application.getExecuteList()) {
+      for (Task.Application.ApplicationInput input : execute) {
+        if (input instanceof FileNameBase) {
+          Path in = normalize(((FileNameBase) input).getIn());
+          read(in, false);
+          write(in, false);
+        } else if (input instanceof Task.Application.FilesArg) {
+          Path in = normalize(((Task.Application.FilesArg) input).getFileNames().getIn());
+          read(in, false);
+          write(in, false);
+        } else if (input instanceof Task.Application.StringArg) {
+          // A path, which doesn't exist yet, may be the output of the application
+          String value = ((Task.Application.StringArg) input).getValue().replace("\"", "");
+          try {
+            Path path = normalize(value);
+            if (!value.isEmpty()) {
+              read(path, true);
+              write(path, true);
+            }
+          } catch (InvalidPathException e) {
+            // Not a path
+          }
+        }
+      }
+    }
+  }
+
+  private void addOperation(Task.Operation operation) {
+    for (Task.Operation.InternalOp internalOp : operation.getInternals()) {
+      if (internalOp instanceof Task.Operation.Rename) {
+        Path in = normalize(((Task.Operation.Rename) internalOp).getFileNames().getIn());
+        read(in, true);
+        write(in, true);
+      } else if (internalOp instanceof Task.Operation.MoveOrCopy) {
+        Task.Operation.MoveOrCopy moveOrCopy = (Task.Operation.MoveOrCopy) internalOp;
+        boolean move = internalOp instanceof Task.Operation.Move;
+        for (FileNameBase fileNameBase : moveOrCopy.getFileNames()) {
+          Path in = normalize(fileNameBase.getIn());
+          read(in, true);
+          if (move) {
+            write(in, true);
+          }
+        }
+        write(normalize(moveOrCopy.getTo()), true);
+      } else if (internalOp instanceof Task.Operation.Pack) {
+        Task.Operation.Pack pack = (Task.Operation.Pack) internalOp;
+        for (FileNameBase fileNameBase : pack.getFileNames()) {
+          read(normalize(fileNameBase.getIn()), true);
+        }
+        write(normalize(pack.getTo()), true);
+      } else if (internalOp instanceof Task.Operation.Unpack) {
+        Task.Operation.Unpack unpack = (Task.Operation.Unpack) internalOp;
+        for (FileNameBase fileNameBase : unpack.getFileNames()) {
+          read(normalize(fileNameBase.getIn()), true);
+        }
+        write(normalize(unpack.getTo()), true);
+      } else if (internalOp instanceof Task.Operation.PatchBytes) {
+        Task.Operation.PatchBytes patchBytes = (Task.Operation.PatchBytes) internalOp;
+        for (FileNameBase fileNameBase : patchBytes.getFileNames()) {
+          Path in = normalize(fileNameBase.getIn());
+          read(in, true);
+          if (!patchBytes.getTo().isPresent()) {
+            write(in, true);
+          }
+        }
+        patchBytes.getTo().ifPresent((to) -> write(normalize(to), true));
+      } else if (internalOp instanceof Task.Operation.Delete) {
+        for (FileNameBase fileNameBase : ((Task.Operation.Delete) internalOp).getFileNames()) {
+          Path in = normalize(fileNameBase.getIn());
+          read(in, true);
+          write(in, true);
+        }
+      } else {
+        // We should never be here
+        String errorMessage =
+            String.format("Program failure. InternalOp has an unknown final type %s.",
+                internalOp.getClass().getName());
+        throw new AssertionError(errorMessage);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("reads %s, writes %s", reads, writes);
+  }
+}
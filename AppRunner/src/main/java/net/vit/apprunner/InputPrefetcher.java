@@ -0,0 +1,255 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.vit.apprunner.Settings.FileNameBase;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.DaemonThreadFactory;
+
+/**
+ * Reads the input files of upcoming actions into the page cache, while the disk is idle because
+ * external applications run.
+ * <p/>
+ * {@link ActionScheduler} asks for the next actions to be prefetched whenever an application is
+ * running. Files are read on a single low priority thread through a buffer, which is discarded.
+ * Files, which a running action writes, are skipped: they may not be final yet. Reading stops once
+ * the budget is used up by files of actions, which haven't started yet. Prefetching of an action
+ * is cancelled, when it starts, and when an action, which writes its inputs, finishes: then it is
+ * prefetched again, if it is still ahead. Only contents of files copied, packed, unpacked or
+ * patched and of files passed to applications are read; renames, moves and deletes don't read
+ * contents.
+ *
+ * @author vit
+ */
+class InputPrefetcher {
+  private static final Logger logger = AppRunner.logger;
+
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * Prefetching of one action.
+   */
+  private static class Target {
+    private final ActionScheduler.Unit unit;
+    private final AtomicLong bytes;
+    private volatile boolean cancelled;
+
+    Target(ActionScheduler.Unit unit) {
+      this.unit = unit;
+      this.bytes = new AtomicLong();
+    }
+  }
+
+  private final Settings settings;
+  private final long budget;
+  private final Map<ActionScheduler.Unit, Target> targets;
+  private final AtomicLong outstanding;
+  private final AtomicLong files;
+  private final AtomicLong bytes;
+  private ExecutorService executor;
+
+  /**
+   * @param settings resolved settings
+   * @param budget maximum number of bytes read ahead for actions, which haven't started yet; 0
+   *        disables prefetching
+   */
+  InputPrefetcher(Settings settings, long budget) {
+    this.settings = settings;
+    this.budget = budget;
+    this.targets = new LinkedHashMap<>();
+    this.outstanding = new AtomicLong();
+    this.files = new AtomicLong();
+    this.bytes = new AtomicLong();
+  }
+
+  /**
+   * Starts prefetching the inputs of an action, unless it is already prefetched.
+   *
+   * @param unit action, which hasn't started yet
+   * @param busy footprint of the running actions
+   */
+  void prefetch(ActionScheduler.Unit unit, Footprint busy) {
+    if (budget <= 0 || targets.containsKey(unit)) {
+      return;
+    }
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor((r) -> {
+        Thread thread = new DaemonThreadFactory("apprunner-prefetch").newThread(r);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+    }
+    Target target = new Target(unit);
+    targets.put(unit, target);
+    executor.execute(() -> warm(target, busy));
+  }
+
+  /**
+   * Stops prefetching for an action, which is starting, and releases its part of the budget.
+   *
+   * @param unit
+   */
+  void started(ActionScheduler.Unit unit) {
+    cancel(targets.remove(unit));
+  }
+
+  /**
+   * Cancels prefetching of actions, whose inputs a finished action has changed.
+   *
+   * @param written footprint of the finished action
+   */
+  void changed(Footprint written) {
+    List<ActionScheduler.Unit> stale = targets.keySet().stream()
+        .filter((unit) -> written.writesWhatReads(unit.getFootprint()))
+        .collect(Collectors.toList());
+    stale.forEach(this::started);
+  }
+
+  /**
+   * Cancels all prefetching and logs what was done.
+   */
+  void close() {
+    new ArrayList<>(targets.keySet()).forEach(this::started);
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (files.get() > 0) {
+      logger.info(String.format("Prefetched %d file(s), %d KB of inputs while applications ran.",
+          files.get(), bytes.get() / 1024));
+    }
+  }
+
+  private void cancel(Target target) {
+    if (target != null) {
+      target.cancelled = true;
+      outstanding.addAndGet(-target.bytes.getAndSet(0));
+    }
+  }
+
+  private void warm(Target target, Footprint busy) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    try {
+      for (Path root : inputs(target.unit.getAction())) {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (target.cancelled || Thread.currentThread().isInterrupted()) {
+              return FileVisitResult.TERMINATE;
+            }
+            if (!attrs.isRegularFile() || busy.writes(file.toAbsolutePath().normalize())) {
+              return FileVisitResult.CONTINUE;
+            }
+            if (outstanding.addAndGet(attrs.size()) > budget) {
+              outstanding.addAndGet(-attrs.size());
+              return FileVisitResult.TERMINATE;
+            }
+            target.bytes.addAndGet(attrs.size());
+            if (target.cancelled) {
+              // Released by cancel() before the bytes were added
+              outstanding.addAndGet(-target.bytes.getAndSet(0));
+              return FileVisitResult.TERMINATE;
+            }
+            read(file, buffer, target);
+            files.incrementAndGet();
+            bytes.addAndGet(attrs.size());
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            return FileVisitResult.CONTINUE;
+          }
+        });
+        if (target.cancelled) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      // The inputs are being changed, the action itself will report any problem
+      logger.finer(() -> String.format("Prefetching stopped: %s", e.getMessage()));
+    }
+  }
+
+  private static void read(Path file, ByteBuffer buffer, Target target) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (!target.cancelled) {
+        ((Buffer) buffer).clear();
+        if (channel.read(buffer) < 0) {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return existing files and directories, whose contents the action reads
+   */
+  private List<Path> inputs(Task.Action action) throws IOException {
+    List<FileNameBase> selectors = new ArrayList<>();
+    List<Task.Application> applications = action instanceof Task.Pipeline
+        ? ((Task.Pipeline) action).getStages()
+        : action instanceof Task.Application ? Collections.singletonList((Task.Application) action)
+            : Collections.emptyList();
+    for (Task.Application application : applications) {
+      for (List<Task.Application.ApplicationInput> execute : application.getExecuteList()) {
+        for (Task.Application.ApplicationInput input : execute) {
+          if (input instanceof FileNameBase) {
+            selectors.add((FileNameBase) input);
+          } else if (input instanceof Task.Application.FilesArg) {
+            selectors.add(((Task.Application.FilesArg) input).getFileNames());
+          }
+        }
+      }
+    }
+    if (applications.isEmpty()) {
+      Task.Operation operation = action instanceof Task.OperationRef
+          ? settings.getConfiguration().getOperationDefs()
+              .get(((Task.OperationRef) action).getRef()).getOperation()
+          : (Task.Operation) action;
+      for (Task.Operation.InternalOp internalOp : operation.getInternals()) {
+        if (internalOp instanceof Task.Operation.Copy) {
+          selectors.addAll(((Task.Operation.Copy) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.Pack) {
+          selectors.addAll(((Task.Operation.Pack) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.Unpack) {
+          selectors.addAll(((Task.Operation.Unpack) internalOp).getFileNames());
+        } else if (internalOp instanceof Task.Operation.PatchBytes) {
+          selectors.addAll(((Task.Operation.PatchBytes) internalOp).getFileNames());
+        }
+      }
+    }
+    List<Path> result = new ArrayList<>();
+    for (FileNameBase selector : selectors) {
+      Path dir = Paths.get(selector.getIn());
+      if (!Files.isDirectory(dir)) {
+        continue;
+      }
+      try (Stream<Path> stream = Files.list(dir)) {
+        stream.filter((path) -> TaskExecuteHelper.matches(selector,
+            path.toAbsolutePath().normalize())).sorted().forEach(result::add);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,379 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.DaemonThreadFactory;
+
+/**
+ * Limits the bandwidth and the rate of file operations of copies, moves and deletes, so that a
+ * build doesn't starve other users of a disk.
+ * <p/>
+ * Every limit is a token bucket. Stores get theirs from {@link CliArgs#ioRates} and
+ * {@link CliArgs#ioOps}, tasks from their {@code max-io-rate} and {@code max-io-ops} attributes;
+ * a request has to get tokens from every bucket it falls under. A bucket holds at most one second
+ * worth of tokens. A request larger than that takes the tokens on credit and waits until the debt
+ * is paid off, so requests are never split and the average rate still holds. Copies are read in
+ * chunks of {@link #CHUNK_SIZE} when a byte limit applies, so that a large file doesn't stall
+ * others for long.
+ * <p/>
+ * While actions run, the utilization of every bucket is logged every
+ * {@link #REPORT_INTERVAL_SECONDS} seconds, which had any traffic. Waits are recorded as
+ * {@link AppRunnerEvents.ThrottleEvent JFR events}.
+ *
+ * @author vit
+ */
+class IoThrottle {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Size of the chunks throttled copies are made of.
+   */
+  static final int CHUNK_SIZE = 256 * 1024;
+
+  static final long REPORT_INTERVAL_SECONDS = 5;
+
+  /**
+   * Token bucket.
+   */
+  static class Bucket {
+    private final String name;
+    private final boolean bytes;
+    private final double rate;
+    private double tokens;
+    private long updated;
+    private long used;
+    private long waitedNanos;
+    private long reportedUsed;
+    private long reportedWaitedNanos;
+    private long reported;
+
+    /**
+     * @param name what the bucket limits, used for reporting
+     * @param bytes true if tokens are bytes, false if they are file operations
+     * @param rate tokens per second
+     */
+    Bucket(String name, boolean bytes, long rate) {
+      this.name = name;
+      this.bytes = bytes;
+      this.rate = rate;
+      this.tokens = rate;
+      this.updated = System.nanoTime();
+      this.reported = updated;
+    }
+
+    /**
+     * Takes tokens, possibly on credit.
+     *
+     * @param amount
+     * @return nanoseconds to wait until the debt is paid off, 0 if there is none
+     */
+    synchronized long take(long amount) {
+      long now = System.nanoTime();
+      tokens = Math.min(rate, tokens + (now - updated) * rate / TimeUnit.SECONDS.toNanos(1));
+      updated = now;
+      tokens -= amount;
+      used += amount;
+      long wait = tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+      waitedNanos += wait;
+      return wait;
+    }
+
+    /**
+     * @return utilization since the previous call, or null if there was no traffic
+     */
+    synchronized String report() {
+      long now = System.nanoTime();
+      long amount = used - reportedUsed;
+      long waited = waitedNanos - reportedWaitedNanos;
+      double seconds = Math.max(1e-9, (now - reported) / 1e9);
+      reportedUsed = used;
+      reportedWaitedNanos = waitedNanos;
+      reported = now;
+      if (amount == 0) {
+        return null;
+      }
+      // Tokens taken on credit are paid off after the period, so the rate is at most the limit
+      double actual = Math.min(rate, amount / seconds);
+      return String.format(Locale.ROOT, "%s %s of %s (%d%%), waited %.1f s", name,
+          format(actual), format(rate), Math.round(100 * actual / rate), waited / 1e9);
+    }
+
+    private String format(double value) {
+      if (!bytes) {
+        return String.format(Locale.ROOT, "%.0f op/s", value);
+      }
+      if (value >= 1024 * 1024) {
+        return String.format(Locale.ROOT, "%.1f MB/s", value / (1024 * 1024));
+      }
+      return String.format(Locale.ROOT, "%.1f KB/s", value / 1024);
+    }
+  }
+
+  private final Map<FileStore, Bucket> storeBytes;
+  private final Map<FileStore, Bucket> storeOps;
+  private final Map<String, Optional<Bucket>> taskBytes;
+  private final Map<String, Optional<Bucket>> taskOps;
+  private final Map<Path, FileStore> stores;
+  private ScheduledExecutorService reporter;
+
+  /**
+   * @param bytesPerSecond byte limits of stores
+   * @param opsPerSecond file operation limits of stores
+   */
+  IoThrottle(Map<FileStore, Long> bytesPerSecond, Map<FileStore, Long> opsPerSecond) {
+    this.storeBytes = new LinkedHashMap<>();
+    bytesPerSecond.forEach((store, rate) -> storeBytes.put(store,
+        new Bucket(String.format("\"%s\"", store), true, rate)));
+    this.storeOps = new LinkedHashMap<>();
+    opsPerSecond.forEach((store, rate) -> storeOps.put(store,
+        new Bucket(String.format("\"%s\"", store), false, rate)));
+    this.taskBytes = new ConcurrentHashMap<>();
+    this.taskOps = new ConcurrentHashMap<>();
+    this.stores = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Reads limits from {@link CliArgs#ioRates} and {@link CliArgs#ioOps}.
+   *
+   * @param cliArgs
+   * @return new throttle
+   * @throws IOException if the store of a path can't be determined
+   */
+  static IoThrottle of(CliArgs cliArgs) throws IOException {
+    return new IoThrottle(perStore(cliArgs.ioRates, "bytes per second"),
+        perStore(cliArgs.ioOps, "operations per second"));
+  }
+
+  private static Map<FileStore, Long> perStore(List<String> values, String unit)
+      throws IOException {
+    Map<FileStore, Long> result = new LinkedHashMap<>();
+    for (String value : values) {
+      int separator = value.lastIndexOf('=');
+      if (separator <= 0) {
+        String errorMessage = String.format(
+            "I/O limit \"%s\" has to be of the form <path>=<%s>.", value, unit);
+        throw new IllegalArgumentException(errorMessage);
+      }
+      Path path = Footprint.normalize(value.substring(0, separator));
+      result.put(ActionScheduler.fileStoreOf(path), parseRate(value.substring(separator + 1)));
+    }
+    return result;
+  }
+
+  /**
+   * @param value positive number, optionally followed by K, M or G for multiples of 1024
+   * @return parsed number
+   */
+  static long parseRate(String value) {
+    String number = value.trim();
+    long multiplier = 1;
+    switch (number.isEmpty() ? ' ' : Character.toUpperCase(number.charAt(number.length() - 1))) {
+      case 'K':
+        multiplier = 1024;
+        break;
+      case 'M':
+        multiplier = 1024 * 1024;
+        break;
+      case 'G':
+        multiplier = 1024 * 1024 * 1024;
+        break;
+      default:
+        break;
+    }
+    if (multiplier > 1) {
+      number = number.substring(0, number.length() - 1);
+    }
+    long rate;
+    try {
+      rate = Long.parseLong(number) * multiplier;
+    } catch (NumberFormatException e) {
+      rate = 0;
+    }
+    if (rate <= 0) {
+      String errorMessage = String.format(
+          "Rate \"%s\" has to be a positive number, optionally followed by K, M or G.", value);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    return rate;
+  }
+
+  /**
+   * @param task
+   * @param paths files read or written
+   * @return true if a byte limit applies to the task or to any of the paths
+   */
+  boolean limitsBytes(Task task, Path... paths) throws IOException {
+    if (taskBucket(taskBytes, task, true).isPresent()) {
+      return true;
+    }
+    if (storeBytes.isEmpty()) {
+      return false;
+    }
+    for (Path path : paths) {
+      if (storeBytes.containsKey(storeOf(path))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Waits until the given number of bytes may be read from and written to the paths.
+   *
+   * @param task task doing the transfer
+   * @param amount number of bytes
+   * @param paths files read or written, each store is charged once
+   * @throws IOException if interrupted while waiting
+   */
+  void transfer(Task task, long amount, Path... paths) throws IOException {
+    acquire(taskBucket(taskBytes, task, true), storeBuckets(storeBytes, paths), amount);
+  }
+
+  /**
+   * Waits until a file operation (creating, moving or deleting a file) may be done.
+   *
+   * @param task task doing the operation
+   * @param path file the operation is done on
+   * @throws IOException if interrupted while waiting
+   */
+  void operation(Task task, Path path) throws IOException {
+    acquire(taskBucket(taskOps, task, false), storeBuckets(storeOps, path), 1);
+  }
+
+  /**
+   * @return true if the paths are on the same store
+   */
+  boolean sameStore(Path a, Path b) throws IOException {
+    return storeOf(a).equals(storeOf(b));
+  }
+
+  private void acquire(Optional<Bucket> taskBucket, List<Bucket> buckets, long amount)
+      throws IOException {
+    if (!taskBucket.isPresent() && buckets.isEmpty()) {
+      return;
+    }
+    long wait = taskBucket.map((bucket) -> bucket.take(amount)).orElse(0L);
+    for (Bucket bucket : buckets) {
+      wait = Math.max(wait, bucket.take(amount));
+    }
+    if (wait == 0) {
+      return;
+    }
+    AppRunnerEvents.ThrottleEvent event = new AppRunnerEvents.ThrottleEvent();
+    event.begin();
+    long deadline = System.nanoTime() + wait;
+    for (long left = wait; left > 0; left = deadline - System.nanoTime()) {
+      LockSupport.parkNanos(left);
+      if (Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while throttling file operations.");
+      }
+    }
+    if (event.shouldCommit()) {
+      List<String> names = new ArrayList<>();
+      taskBucket.ifPresent((bucket) -> names.add(bucket.name));
+      buckets.forEach((bucket) -> names.add(bucket.name));
+      event.limits = String.join(", ", names);
+      event.amount = amount;
+      event.commit();
+    }
+  }
+
+  private Optional<Bucket> taskBucket(Map<String, Optional<Bucket>> buckets, Task task,
+      boolean bytes) {
+    if (task == null) {
+      return Optional.empty();
+    }
+    return buckets.computeIfAbsent(task.getName(),
+        (name) -> (bytes ? task.getMaxIoRate() : task.getMaxIoOps())
+            .map((rate) -> new Bucket(String.format("task \"%s\"", name), bytes, rate)));
+  }
+
+  private List<Bucket> storeBuckets(Map<FileStore, Bucket> buckets, Path... paths)
+      throws IOException {
+    if (buckets.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Bucket> result = new ArrayList<>();
+    for (Path path : paths) {
+      Bucket bucket = buckets.get(storeOf(path));
+      if (bucket != null && !result.contains(bucket)) {
+        result.add(bucket);
+      }
+    }
+    return result;
+  }
+
+  private FileStore storeOf(Path path) throws IOException {
+    Path dir = Footprint.normalize(path.toString()).getParent();
+    if (dir == null) {
+      return ActionScheduler.fileStoreOf(Footprint.normalize(path.toString()));
+    }
+    FileStore store = stores.get(dir);
+    if (store == null) {
+      store = ActionScheduler.fileStoreOf(dir);
+      stores.put(dir, store);
+    }
+    return store;
+  }
+
+  /**
+   * Starts logging utilization periodically, unless nothing is limited.
+   *
+   * @param tasks tasks about to run
+   */
+  synchronized void startReporting(List<Task> tasks) {
+    boolean limited = !storeBytes.isEmpty() || !storeOps.isEmpty();
+    for (Task task : tasks) {
+      limited |= taskBucket(taskBytes, task, true).isPresent();
+      limited |= taskBucket(taskOps, task, false).isPresent();
+    }
+    if (reporter != null || !limited) {
+      return;
+    }
+    reporter = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("apprunner-throttle"));
+    reporter.scheduleAtFixedRate(this::report, REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS,
+        TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stops logging utilization and logs it one last time.
+   */
+  synchronized void stopReporting() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+      reporter = null;
+    }
+    report();
+  }
+
+  private void report() {
+    List<Bucket> buckets = new ArrayList<>();
+    buckets.addAll(storeBytes.values());
+    buckets.addAll(storeOps.values());
+    taskBytes.values().forEach((bucket) -> bucket.ifPresent(buckets::add));
+    taskOps.values().forEach((bucket) -> bucket.ifPresent(buckets::add));
+    String utilization = buckets.stream().map(Bucket::report).filter((line) -> line != null)
+        .collect(Collectors.joining("; "));
+    if (!utilization.isEmpty()) {
+      logger.info(String.format("I/O throttle: %s.", utilization));
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package net.vit.apprunner;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder counterparts of {@link AppRunnerEvents}. Only {@link AppRunnerEvents} refers
+ * to this class, and only if the JRE has the Flight Recorder API, so that an older JRE never
+ * loads {@code jdk.jfr}.
+ * <p/>
+ * In JDK Mission Control the events appear under the "AppRunner" category and can be correlated
+ * with GC and file I/O events on the same thread.
+ *
+ * @author vit
+ */
+final class JfrEvents {
+  private JfrEvents() {}
+
+  /**
+   * A recorded event, which takes its fields from the {@link AppRunnerEvents.AppRunnerEvent} it
+   * records.
+   */
+  private abstract static class Recorded<T extends AppRunnerEvents.AppRunnerEvent> extends Event {
+    abstract void fill(T event);
+  }
+
+  /**
+   * Creates and begins the recorded counterpart of an event.
+   *
+   * @param event event, which has just begun
+   * @return the recorded event, to pass to {@link #shouldCommit(Object)} and
+   *         {@link #commit(Object, AppRunnerEvents.AppRunnerEvent)}
+   */
+  static Object begin(AppRunnerEvents.AppRunnerEvent event) {
+    Recorded<?> recorded;
+    if (event instanceof AppRunnerEvents.TaskEvent) {
+      recorded = new TaskEvent();
+    } else if (event instanceof AppRunnerEvents.OperationEvent) {
+      recorded = new OperationEvent();
+    } else if (event instanceof AppRunnerEvents.SearchFilesEvent) {
+      recorded = new SearchFilesEvent();
+    } else if (event instanceof AppRunnerEvents.NameResolutionEvent) {
+      recorded = new NameResolutionEvent();
+    } else if (event instanceof AppRunnerEvents.ChildProcessEvent) {
+      recorded = new ChildProcessEvent();
+    } else if (event instanceof AppRunnerEvents.ThrottleEvent) {
+      recorded = new ThrottleEvent();
+    } else {
+      // We should never be here
+      String errorMessage = String.format("Program failure. Event has an unknown final type %s.",
+          event.getClass().getName());
+      throw new AssertionError(errorMessage);
+    }
+    recorded.begin();
+    return recorded;
+  }
+
+  /**
+   * @param recorded
+   * @return true if a recording is running, which wants the event
+   */
+  static boolean shouldCommit(Object recorded) {
+    return ((Event) recorded).shouldCommit();
+  }
+
+  /**
+   * Copies the fields of the event to the recorded one and commits it.
+   *
+   * @param recorded
+   * @param event
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends AppRunnerEvents.AppRunnerEvent> void commit(Object recorded, T event) {
+    Recorded<T> target = (Recorded<T>) recorded;
+    target.fill(event);
+    target.commit();
+  }
+
+  /**
+   * One task requested with -t key.
+   */
+  @Name("net.vit.apprunner.Task")
+  @Label("Task")
+  @Description("Execution of one task from the module")
+  @Category({"AppRunner", "Task"})
+  @StackTrace(false)
+  @Threshold("0 ms")
+  private static class TaskEvent extends Recorded<AppRunnerEvents.TaskEvent> {
+    @Label("Task Name")
+    String taskName;
+
+    @Label("Module")
+    String module;
+
+    @Label("Actions")
+    @Description("Number of actions declared in the task")
+    int actionCount;
+
+    @Override
+    void fill(AppRunnerEvents.TaskEvent event) {
+      taskName = event.taskName;
+      module = event.module;
+      actionCount = event.actionCount;
+    }
+  }
+
+  /**
+   * One {@link Settings.Task.Operation.InternalOp}, i.e. {@literal <rename>, <move>, <copy>} or
+   * {@literal <delete>}.
+   */
+  @Name("net.vit.apprunner.Operation")
+  @Label("Operation")
+  @Description("Execution of one internal operation such as move, copy, rename or delete")
+  @Category({"AppRunner", "Operation"})
+  @StackTrace(false)
+  @Threshold("1 ms")
+  private static class OperationEvent extends Recorded<AppRunnerEvents.OperationEvent> {
+    @Label("Task Name")
+    String taskName;
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Files")
+    @Description("Number of top level files or directories the operation was applied to")
+    int fileCount;
+
+    @Override
+    void fill(AppRunnerEvents.OperationEvent event) {
+      taskName = event.taskName;
+      kind = event.kind;
+      destination = event.destination;
+      fileCount = event.fileCount;
+    }
+  }
+
+  /**
+   * One directory scan performed for a {@literal <file> or <files>} tag.
+   */
+  @Name("net.vit.apprunner.SearchFiles")
+  @Label("Search Files")
+  @Description("Scan of a directory for files matching a <file> or <files> tag")
+  @Category({"AppRunner", "File System"})
+  @StackTrace(false)
+  @Threshold("1 ms")
+  private static class SearchFilesEvent extends Recorded<AppRunnerEvents.SearchFilesEvent> {
+    @Label("Directory")
+    String directory;
+
+    @Label("Pattern")
+    @Description("starts-with, contains and ends-with arguments joined with '*'")
+    String pattern;
+
+    @Label("Entries Scanned")
+    int entriesScanned;
+
+    @Label("Matches")
+    int matches;
+
+    @Override
+    void fill(AppRunnerEvents.SearchFilesEvent event) {
+      directory = event.directory;
+      pattern = event.pattern;
+      entriesScanned = event.entriesScanned;
+      matches = event.matches;
+    }
+  }
+
+  /**
+   * Resolution of all name references of one task.
+   */
+  @Name("net.vit.apprunner.NameResolution")
+  @Label("Name Resolution")
+  @Description("Resolution of constant references inside one task")
+  @Category({"AppRunner", "Task"})
+  @StackTrace(false)
+  @Threshold("0 ms")
+  private static class NameResolutionEvent extends Recorded<AppRunnerEvents.NameResolutionEvent> {
+    @Label("Task Name")
+    String taskName;
+
+    @Label("Actions")
+    int actionCount;
+
+    @Override
+    void fill(AppRunnerEvents.NameResolutionEvent event) {
+      taskName = event.taskName;
+      actionCount = event.actionCount;
+    }
+  }
+
+  /**
+   * Lifetime of one external process started for an {@literal <execute>} tag.
+   */
+  @Name("net.vit.apprunner.ChildProcess")
+  @Label("Child Process")
+  @Description("Lifetime of an external process from start until exit")
+  @Category({"AppRunner", "Process"})
+  @StackTrace(false)
+  @Threshold("0 ms")
+  private static class ChildProcessEvent extends Recorded<AppRunnerEvents.ChildProcessEvent> {
+    @Label("Task Name")
+    String taskName;
+
+    @Label("Executable")
+    String executable;
+
+    @Label("Command Line")
+    String commandLine;
+
+    @Label("Exit Code")
+    int exitCode;
+
+    @Label("Output Lines")
+    @Description("Number of lines read from stdout and stderr, 0 if redirected to files")
+    long outputLines;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+
+    @Override
+    void fill(AppRunnerEvents.ChildProcessEvent event) {
+      taskName = event.taskName;
+      executable = event.executable;
+      commandLine = event.commandLine;
+      exitCode = event.exitCode;
+      outputLines = event.outputLines;
+      outputBytes = event.outputBytes;
+    }
+  }
+
+  /**
+   * Wait of a file operation for tokens of {@link IoThrottle}.
+   */
+  @Name("net.vit.apprunner.Throttle")
+  @Label("I/O Throttle")
+  @Description("Time a copy, move or delete waited for the bandwidth or operation limits")
+  @Category({"AppRunner", "Operation"})
+  @StackTrace(false)
+  @Threshold("0 ms")
+  private static class ThrottleEvent extends Recorded<AppRunnerEvents.ThrottleEvent> {
+    @Label("Limits")
+    @Description("Stores and tasks whose limits were exceeded")
+    String limits;
+
+    @Label("Amount")
+    @Description("Bytes or file operations requested")
+    long amount;
+
+    @Override
+    void fill(AppRunnerEvents.ThrottleEvent event) {
+      limits = event.limits;
+      amount = event.amount;
+    }
+  }
+}
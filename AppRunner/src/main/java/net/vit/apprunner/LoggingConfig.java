@@ -5,25 +5,50 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.util.logging.StreamHandler;
+import net.vit.apprunner.util.AsyncLogHandler;
 import net.vit.apprunner.util.DebugLoggingFormatter;
+import net.vit.apprunner.util.LogTagFilter;
 import net.vit.apprunner.util.SysoutLoggingFormatter;
 
 /**
  * Responsible for attaching handlers to logger(s) and cleaning up.
+ * <p/>
+ * Log file and stdout are written by {@link AsyncLogHandler}s, so that logging threads never wait
+ * for I/O. Logger level is kept equal to the lowest handler level, which makes supplier-based calls
+ * like {@code logger.finest(() -> String.format(...))} free when the message would be discarded. A
+ * {@link LogTagFilter} on the logger tags records of runs going on at the same time.
  * 
  * @author vit
  */
 public class LoggingConfig {
   static Logger logger = AppRunner.logger;
 
-  private FileHandler logFileHandler;
-  private StreamHandler logStdOutHandler;
+  /**
+   * Number of log records the ring buffer of each asynchronous handler can hold.
+   */
+  static final int LOG_BUFFER_CAPACITY = 8192;
+
+  /**
+   * Log file, relative to the working directory.
+   */
+  static final String LOG_FILE = "apprunner_log.txt";
+
+  /**
+   * Log file of a remote worker, relative to the working directory. The argument is the id the
+   * coordinator gave the worker.
+   */
+  static final String WORKER_LOG_FILE = "apprunner_log_worker-%s.txt";
+
+  private AsyncLogHandler logFileHandler;
+  private AsyncLogHandler.OverflowPolicy overflowPolicy = AsyncLogHandler.OverflowPolicy.BLOCK;
+  private AsyncLogHandler logStdOutHandler;
   private StreamHandler debugHandler;
 
   /**
@@ -36,21 +61,12 @@ public class LoggingConfig {
     logger.setUseParentHandlers(false);
     
     if (logFileHandler == null) {
-      String logFileName = "apprunner_log.txt";
-      Path logFilePath = Paths.get(logFileName);
-      if (!Files.exists(logFilePath)) {
-        Files.createFile(logFilePath);
-      }
-      logFileHandler = new FileHandler("apprunner_log.txt", true);
-      // String.format(format, date, source, logger, level, message, thrown);
-      logFileHandler.setFormatter(new SimpleFormatter());
-      // PUBLISH this level
-      logFileHandler.setLevel(Level.INFO);
-      logger.addHandler(logFileHandler);
+      openLogFile(LOG_FILE);
     }
 
     if (logStdOutHandler == null && !AppRunner.isDebug) {
-      logStdOutHandler = new StreamHandler(System.out, new SysoutLoggingFormatter());
+      logStdOutHandler = new AsyncLogHandler(System.out, new SysoutLoggingFormatter(),
+          LOG_BUFFER_CAPACITY, false);
       logStdOutHandler.setLevel(Level.INFO);
       logger.addHandler(logStdOutHandler);
     }
@@ -66,21 +82,96 @@ public class LoggingConfig {
       debugHandler.setLevel(Level.ALL);
       logger.addHandler(debugHandler);
     }
+
+    logger.setFilter(new LogTagFilter());
+    updateLoggerLevel();
+  }
+
+  /**
+   * Sets what happens to log records, when the buffer of an asynchronous handler is full.
+   * 
+   * @param overflowPolicy
+   */
+  void setOverflowPolicy(AsyncLogHandler.OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+    if (logFileHandler != null) {
+      logFileHandler.setOverflowPolicy(overflowPolicy);
+    }
+    if (logStdOutHandler != null) {
+      logStdOutHandler.setOverflowPolicy(overflowPolicy);
+    }
+  }
+
+  /**
+   * Replaces the log file. Several processes must not append to the same file, since their
+   * records would interleave in the middle of lines.
+   * 
+   * @param fileName log file relative to the working directory, null to write none
+   * @throws IOException
+   */
+  void setLogFile(String fileName) throws IOException {
+    if (logFileHandler != null) {
+      logFileHandler.close();
+      logger.removeHandler(logFileHandler);
+      logFileHandler = null;
+    }
+    if (fileName != null) {
+      openLogFile(fileName);
+    }
+    updateLoggerLevel();
+  }
+
+  private void openLogFile(String fileName) throws IOException {
+    Path logFilePath = Paths.get(fileName);
+    // String.format(format, date, source, logger, level, message, thrown);
+    logFileHandler = new AsyncLogHandler(
+        Files.newOutputStream(logFilePath, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+        new SimpleFormatter(), LOG_BUFFER_CAPACITY, true);
+    logFileHandler.setOverflowPolicy(overflowPolicy);
+    // PUBLISH this level
+    logFileHandler.setLevel(Level.INFO);
+    logger.addHandler(logFileHandler);
+  }
+
+  /**
+   * Shows a line below the records written to stdout, see
+   * {@link AsyncLogHandler#setStatusLine(String)}. Does nothing in debug mode.
+   * 
+   * @param statusLine null removes the line
+   */
+  void setStatusLine(String statusLine) {
+    if (logStdOutHandler != null) {
+      logStdOutHandler.setStatusLine(statusLine);
+    }
+  }
+
+  /**
+   * Sets the level of the logger to the lowest level of its handlers, so that records nobody
+   * publishes are not even created.
+   */
+  private void updateLoggerLevel() {
+    Level level = Level.OFF;
+    for (Handler handler : logger.getHandlers()) {
+      if (handler.getLevel().intValue() < level.intValue()) {
+        level = handler.getLevel();
+      }
+    }
+    logger.setLevel(level);
   }
 
   /**
    * Closes IO.
    */
   void cleanup() {
+    logger.setFilter(null);
+
     if (logFileHandler != null) {
-      logFileHandler.flush();
       logFileHandler.close();
       logger.removeHandler(logFileHandler);
       logFileHandler = null;
     }
 
     if (logStdOutHandler != null) {
-      logStdOutHandler.flush();
       logStdOutHandler.close();
       logger.removeHandler(logStdOutHandler);
       logStdOutHandler = null;
@@ -171,7 +171,7 @@ public class NameReferenceResolver {
     }
 
     String[] s_arr = valueToResolve.split("\\|");
-    logger.finer(String.format("-> Resolving: %s.", Arrays.asList(s_arr)));
+    logger.finer(() -> String.format("-> Resolving: %s.", Arrays.asList(s_arr)));
     Set<String> unresolvedConstants = new HashSet<>();
     String result = null;
     OPTION: for (int s_i = 0; s_i < s_arr.length; ++s_i) {
@@ -202,7 +202,10 @@ public class NameReferenceResolver {
       if (result.equals(s_arr[s_i])) {
         logger.finer("Nothing to resolve.");
       } else {
-        logger.finer(String.format("<- Option %d: \"%s\" resolved as: \"%s\".", s_i, s, result));
+        final int option = s_i;
+        final String resolvedValue = result;
+        logger.finer(() -> String.format("<- Option %d: \"%s\" resolved as: \"%s\".", option, s,
+            resolvedValue));
       }
       return result;
     }
@@ -289,7 +292,8 @@ public class NameReferenceResolver {
     Scope scopeOfConstantToResolve = maybeValue.get().scope;
     stack.get(scopeOfConstantToResolve).add(constantToResolve);
     String[] s_arr = valueOfConstantToResolve.split("\\|");
-    logger.finer(String.format("-> Constant ${%s}: resolving %s.", constantToResolve, Arrays.asList(s_arr)));
+    logger.finer(() -> String.format("-> Constant ${%s}: resolving %s.", constantToResolve,
+        Arrays.asList(s_arr)));
     String result = null;
     OPTION: for (int s_i = 0; s_i < s_arr.length; ++s_i) {
       String s = s_arr[s_i].trim();
@@ -319,7 +323,10 @@ public class NameReferenceResolver {
       if (result.equals(s_arr[s_i])) {
         logger.finer("Nothing to resolve.");
       } else {
-        logger.finer(String.format("<- Option %d: \"%s\" resolved as: \"%s\".", s_i, s, result));
+        final int option = s_i;
+        final String resolvedValue = result;
+        logger.finer(() -> String.format("<- Option %d: \"%s\" resolved as: \"%s\".", option, s,
+            resolvedValue));
       }
       return result;
     }
@@ -0,0 +1,197 @@
+package net.vit.apprunner;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs one output stream of a child process.
+ * <p/>
+ * At most the given number of lines per second is logged, the rest is counted and reported as
+ * suppressed once the second is over. Whatever was logged or not, the last lines stay in a ring
+ * buffer, so that they can be shown if the process fails.
+ *
+ * @author vit
+ */
+class ProcessOutput {
+  private static final Logger logger = AppRunner.logger;
+
+  private static final int BLOCK_SIZE = 8 * 1024;
+
+  /**
+   * Counts the bytes read through it.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        ++count;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+
+  private final Level level;
+  private final int tailLines;
+  private final int maxLinesPerSecond;
+  private final Deque<String> tail;
+  private long suppressed;
+
+  /**
+   * @param level level to log lines at
+   * @param tailLines number of last lines to keep
+   * @param maxLinesPerSecond number of lines logged per second at most
+   */
+  ProcessOutput(Level level, int tailLines, int maxLinesPerSecond) {
+    this.level = level;
+    this.tailLines = tailLines;
+    this.maxLinesPerSecond = maxLinesPerSecond;
+    this.tail = new ArrayDeque<>(tailLines);
+  }
+
+  /**
+   * Logs the lines of the stream until it ends.
+   *
+   * @param stream stdout or stderr of a process
+   * @return number of lines and number of bytes read
+   * @throws IOException
+   */
+  long[] pump(InputStream stream) throws IOException {
+    long lines = 0;
+    long windowStart = System.nanoTime();
+    int logged = 0;
+    long suppressedInWindow = 0;
+    CountingInputStream counted = new CountingInputStream(stream);
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(counted))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        ++lines;
+        if (tailLines > 0) {
+          if (tail.size() == tailLines) {
+            tail.removeFirst();
+          }
+          tail.addLast(line);
+        }
+
+        long now = System.nanoTime();
+        if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+          reportSuppressed(suppressedInWindow);
+          windowStart = now;
+          logged = 0;
+          suppressedInWindow = 0;
+        }
+        if (logged < maxLinesPerSecond) {
+          logger.log(level, line);
+          ++logged;
+        } else {
+          ++suppressedInWindow;
+          ++suppressed;
+        }
+      }
+    }
+    reportSuppressed(suppressedInWindow);
+    return new long[] {lines, counted.count};
+  }
+
+  private void reportSuppressed(long count) {
+    if (count > 0) {
+      logger.log(level, String.format("... %d line(s) of output suppressed.", count));
+    }
+  }
+
+  /**
+   * @return the last lines read, oldest first
+   */
+  List<String> getTail() {
+    return new ArrayList<>(tail);
+  }
+
+  /**
+   * @return number of lines, which weren't logged
+   */
+  long getSuppressed() {
+    return suppressed;
+  }
+
+  /**
+   * Reads the last lines of a file, going backwards from its end block by block, so that only
+   * the tail is read whatever the size of the file.
+   *
+   * @param file
+   * @param lines number of lines
+   * @return the last lines, oldest first
+   * @throws IOException
+   */
+  static List<String> tail(Path file, int lines) throws IOException {
+    if (lines <= 0) {
+      return Collections.emptyList();
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+      long end = in.length();
+      byte[] data = new byte[0];
+      long position = end;
+      int newlines = 0;
+      while (position > 0 && newlines <= lines) {
+        int length = (int) Math.min(BLOCK_SIZE, position);
+        position -= length;
+        byte[] block = new byte[length];
+        in.seek(position);
+        in.readFully(block);
+        for (byte b : block) {
+          if (b == '\n') {
+            ++newlines;
+          }
+        }
+        byte[] joined = Arrays.copyOf(block, length + data.length);
+        System.arraycopy(data, 0, joined, length, data.length);
+        data = joined;
+      }
+      List<String> result = new ArrayList<>();
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(new ByteArrayInputStream(data)))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          result.add(line);
+        }
+      }
+      return result.subList(Math.max(0, result.size() - lines), result.size());
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.DaemonThreadFactory;
+
+/**
+ * Shows how far the run has got: files and bytes done against the totals of the
+ * {@link ExecutionPlanner plan}, the current rate, the expected time left and the number of
+ * running applications.
+ * <p/>
+ * Progress is process wide, like {@link net.vit.apprunner.util.TraceRecorder}. While no monitor
+ * is {@link #start started}, counting costs a single volatile read. Copies and moves count every
+ * file and its bytes as they are done; everything else a task does, e.g. packing or running an
+ * application, is counted at once when the task finishes. A task never counts more than it
+ * planned. Counting only adds to atomic counters and never logs: a single thread samples them
+ * every {@link #SAMPLE_MILLIS} milliseconds, redraws the status line at the bottom of the
+ * console and rewrites the status file, which is replaced atomically, so a reader never sees a
+ * half written one.
+ *
+ * @author vit
+ */
+class ProgressMonitor {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Milliseconds between two samples.
+   */
+  static final long SAMPLE_MILLIS = 1000;
+
+  /**
+   * Number of samples the rate is averaged over.
+   */
+  static final int RATE_WINDOW = 10;
+
+  /**
+   * Planned and done work of the tasks of one name, in all variants running it.
+   */
+  private static class TaskProgress {
+    private final AtomicLong plannedFiles = new AtomicLong();
+    private final AtomicLong plannedBytes = new AtomicLong();
+    private final AtomicLong doneFiles = new AtomicLong();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+  }
+
+  private static volatile ProgressMonitor current;
+
+  private final Path statusFile;
+  private final Consumer<String> statusLine;
+  private final long startNanos;
+  private final Map<String, TaskProgress> tasks;
+  private final AtomicLong totalFiles;
+  private final AtomicLong totalBytes;
+  private final AtomicLong doneFiles;
+  private final AtomicLong doneBytes;
+  private final AtomicInteger totalProcesses;
+  private final AtomicInteger startedProcesses;
+  private final AtomicInteger activeProcesses;
+  private final AtomicInteger totalTasks;
+  private final AtomicInteger doneTasks;
+  private final Deque<long[]> samples;
+  private final ScheduledExecutorService sampler;
+  private boolean statusFileFailed;
+
+  private ProgressMonitor(Path statusFile, Consumer<String> statusLine) {
+    this.statusFile = statusFile;
+    this.statusLine = statusLine;
+    this.startNanos = System.nanoTime();
+    this.tasks = new ConcurrentHashMap<>();
+    this.totalFiles = new AtomicLong();
+    this.totalBytes = new AtomicLong();
+    this.doneFiles = new AtomicLong();
+    this.doneBytes = new AtomicLong();
+    this.totalProcesses = new AtomicInteger();
+    this.startedProcesses = new AtomicInteger();
+    this.activeProcesses = new AtomicInteger();
+    this.totalTasks = new AtomicInteger();
+    this.doneTasks = new AtomicInteger();
+    this.samples = new ArrayDeque<>();
+    this.sampler = Executors
+        .newSingleThreadScheduledExecutor(new DaemonThreadFactory("apprunner-progress"));
+  }
+
+  /**
+   * Starts showing progress, unless it has already been started.
+   *
+   * @param statusFile JSON file to rewrite on every sample, may be null
+   * @param statusLine receives the status line on every sample, may be null
+   */
+  static synchronized void start(Path statusFile, Consumer<String> statusLine) {
+    if (current != null || statusFile == null && statusLine == null) {
+      return;
+    }
+    ProgressMonitor monitor = new ProgressMonitor(statusFile, statusLine);
+    monitor.sampler.scheduleAtFixedRate(() -> monitor.sample("running"), 0, SAMPLE_MILLIS,
+        TimeUnit.MILLISECONDS);
+    current = monitor;
+  }
+
+  /**
+   * Stops showing progress. The status file is written one last time, the status line is
+   * removed.
+   *
+   * @param failed whether the run failed
+   */
+  static synchronized void stop(boolean failed) {
+    ProgressMonitor monitor = current;
+    current = null;
+    if (monitor == null) {
+      return;
+    }
+    monitor.sampler.shutdown();
+    try {
+      monitor.sampler.awaitTermination(SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    monitor.sample(failed ? "failed" : "finished");
+    if (monitor.statusLine != null) {
+      monitor.statusLine.accept(null);
+    }
+  }
+
+  /**
+   * @return whether progress is being shown, so that the totals of the plan are needed
+   */
+  static boolean isStarted() {
+    return current != null;
+  }
+
+  /**
+   * Adds the planned work of the tasks, which are going to run, to the totals.
+   *
+   * @param plan plan of the requested tasks
+   * @param runTasks tasks, which are going to run
+   */
+  static void planned(ExecutionPlanner.Plan plan, List<Task> runTasks) {
+    ProgressMonitor monitor = current;
+    if (monitor == null) {
+      return;
+    }
+    Set<String> names = runTasks.stream().map(Task::getName).collect(Collectors.toSet());
+    for (ExecutionPlanner.TaskPlan taskPlan : plan.getTasks()) {
+      if (!names.contains(taskPlan.getTaskName())) {
+        continue;
+      }
+      TaskProgress task =
+          monitor.tasks.computeIfAbsent(taskPlan.getTaskName(), (name) -> new TaskProgress());
+      task.plannedFiles.addAndGet(taskPlan.getFiles());
+      task.plannedBytes.addAndGet(taskPlan.getBytes());
+      task.pending.incrementAndGet();
+      monitor.totalFiles.addAndGet(taskPlan.getFiles());
+      monitor.totalBytes.addAndGet(taskPlan.getBytes());
+      monitor.totalProcesses.addAndGet(taskPlan.getProcesses());
+      monitor.totalTasks.incrementAndGet();
+    }
+  }
+
+  /**
+   * Counts a file copied or moved by a task.
+   *
+   * @param taskName
+   * @param bytes size of the file
+   */
+  static void transferred(String taskName, long bytes) {
+    ProgressMonitor monitor = current;
+    if (monitor == null) {
+      return;
+    }
+    TaskProgress task = monitor.tasks.get(taskName);
+    if (task != null) {
+      monitor.credit(task, 1, bytes);
+    }
+  }
+
+  /**
+   * Counts an application, which has been started.
+   */
+  static void processStarted() {
+    ProgressMonitor monitor = current;
+    if (monitor != null) {
+      monitor.startedProcesses.incrementAndGet();
+      monitor.activeProcesses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Counts an application, which has exited.
+   */
+  static void processExited() {
+    ProgressMonitor monitor = current;
+    if (monitor != null) {
+      monitor.activeProcesses.decrementAndGet();
+    }
+  }
+
+  /**
+   * Counts the rest of the planned work of a task as done.
+   *
+   * @param taskName
+   */
+  static void taskFinished(String taskName) {
+    ProgressMonitor monitor = current;
+    if (monitor == null) {
+      return;
+    }
+    TaskProgress task = monitor.tasks.get(taskName);
+    if (task == null) {
+      return;
+    }
+    monitor.doneTasks.incrementAndGet();
+    if (task.pending.decrementAndGet() == 0) {
+      monitor.credit(task, task.plannedFiles.get(), task.plannedBytes.get());
+    }
+  }
+
+  private void credit(TaskProgress task, long files, long bytes) {
+    doneFiles.addAndGet(add(task.doneFiles, files, task.plannedFiles.get()));
+    doneBytes.addAndGet(add(task.doneBytes, bytes, task.plannedBytes.get()));
+  }
+
+  /**
+   * Adds to a counter, but not beyond the limit.
+   *
+   * @return how much was actually added
+   */
+  private static long add(AtomicLong counter, long delta, long limit) {
+    long before = counter.getAndAccumulate(delta, (done, d) -> Math.min(limit, done + d));
+    return Math.max(0, Math.min(limit, before + delta) - before);
+  }
+
+  /**
+   * Called on the sampler thread, and once more by {@link #stop(boolean)} after it has stopped.
+   */
+  private synchronized void sample(String state) {
+    long now = System.nanoTime();
+    long bytes = doneBytes.get();
+    samples.addLast(new long[] {now, bytes});
+    if (samples.size() > RATE_WINDOW) {
+      samples.removeFirst();
+    }
+    long[] oldest = samples.getFirst();
+    double rate = now > oldest[0] ? (bytes - oldest[1]) * 1e9 / (now - oldest[0]) : 0;
+    long remaining = Math.max(0, totalBytes.get() - bytes);
+    long eta = remaining == 0 ? 0 : rate > 0 ? Math.round(remaining / rate) : -1;
+    double elapsed = (now - startNanos) / 1e9;
+
+    if (statusLine != null && state.equals("running")) {
+      statusLine.accept(formatLine(rate, eta));
+    }
+    if (statusFile != null) {
+      writeStatusFile(formatJson(state, elapsed, rate, eta));
+    }
+  }
+
+  private String formatLine(double rate, long eta) {
+    long files = doneFiles.get(), filesTotal = totalFiles.get();
+    long bytes = doneBytes.get(), bytesTotal = totalBytes.get();
+    long percent = bytesTotal > 0 ? 100 * bytes / bytesTotal
+        : filesTotal > 0 ? 100 * files / filesTotal : 0;
+    return String.format("[%3d%%] %d/%d file(s), %s/%s, %s/s, ETA %s, %d process(es), "
+        + "%d/%d task(s)", percent, files, filesTotal, formatSize(bytes), formatSize(bytesTotal),
+        formatSize(Math.round(rate)), eta < 0 ? "?" : formatDuration(eta), activeProcesses.get(),
+        doneTasks.get(), totalTasks.get());
+  }
+
+  private String formatJson(String state, double elapsed, double rate, long eta) {
+    return String.format(Locale.ROOT,
+        "{\"state\":\"%s\",\"elapsedSeconds\":%.1f,"
+            + "\"files\":{\"done\":%d,\"total\":%d},\"bytes\":{\"done\":%d,\"total\":%d},"
+            + "\"bytesPerSecond\":%d,\"etaSeconds\":%s,"
+            + "\"processes\":{\"active\":%d,\"started\":%d,\"total\":%d},"
+            + "\"tasks\":{\"done\":%d,\"total\":%d}}%n",
+        state, elapsed, doneFiles.get(), totalFiles.get(), doneBytes.get(), totalBytes.get(),
+        Math.round(rate), eta < 0 ? "null" : String.valueOf(eta), activeProcesses.get(),
+        startedProcesses.get(), totalProcesses.get(), doneTasks.get(), totalTasks.get());
+  }
+
+  private void writeStatusFile(String json) {
+    Path temp = statusFile.resolveSibling(statusFile.getFileName() + ".tmp");
+    try {
+      Files.write(temp, json.getBytes(StandardCharsets.UTF_8));
+      Files.move(temp, statusFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // Once is enough, the run goes on anyway
+      if (!statusFileFailed) {
+        statusFileFailed = true;
+        logger.warning(String.format("Couldn't write the progress file \"%s\": %s", statusFile,
+            e.getMessage()));
+      }
+    }
+  }
+
+  private static String formatSize(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    }
+    int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+    return String.format("%.1f %sB", bytes / (double) (1L << (10 * unit)),
+        "KMGTPE".charAt(unit - 1));
+  }
+
+  private static String formatDuration(long seconds) {
+    return seconds >= 3600
+        ? String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60)
+        : String.format("%d:%02d", seconds / 60, seconds % 60);
+  }
+}
@@ -0,0 +1,258 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Renames a batch of files in a single pass.
+ * <p/>
+ * All {@link Task.Operation.Rename.RenameOption}s are first applied in memory to every file name,
+ * so each file is moved at most once no matter how many options there are. Then the plan is
+ * checked for collisions (two files getting the same name, or a file getting the name of an
+ * existing file, which stays where it is) and for files, whose new name is the current name of
+ * another file in the batch (chains like {@code a->b, b->c} and swap cycles like
+ * {@code a->b, b->a}). The latter are moved to temporary names first. Large batches are moved in
+ * parallel.
+ *
+ * @author vit
+ * @see #plan(List)
+ */
+class RenamePlanner {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Batches of at least this many moves are executed by a parallel stream.
+   */
+  static final int PARALLEL_THRESHOLD = 64;
+
+  private static final String TMP_SUFFIX = ".apprunner-rename";
+
+  /**
+   * One planned rename.
+   */
+  static class Move {
+    private final Path source;
+    private final Path target;
+
+    Move(Path source, Path target) {
+      this.source = source;
+      this.target = target;
+    }
+
+    Path getSource() {
+      return source;
+    }
+
+    Path getTarget() {
+      return target;
+    }
+  }
+
+  /**
+   * Result of {@link RenamePlanner#plan(List)}.
+   */
+  static class Plan {
+    private final List<Move> moves;
+    private final List<Move> entangled;
+    private final int unchanged;
+
+    private Plan(List<Move> moves, List<Move> entangled, int unchanged) {
+      this.moves = moves;
+      this.entangled = entangled;
+      this.unchanged = unchanged;
+    }
+
+    /**
+     * @return every rename of the plan, including {@link #getEntangled() entangled} ones
+     */
+    List<Move> getMoves() {
+      return Collections.unmodifiableList(moves);
+    }
+
+    /**
+     * @return renames, whose target is the current name of another file in the batch. They go
+     *         through a temporary name
+     */
+    List<Move> getEntangled() {
+      return Collections.unmodifiableList(entangled);
+    }
+
+    String summary() {
+      return String.format(
+          "Rename plan: %d file(s) to rename, %d unchanged, %d via temporary names.",
+          moves.size(), unchanged, entangled.size());
+    }
+
+    /**
+     * Performs the renames.
+     *
+     * @throws IOException
+     */
+    void execute() throws IOException {
+      logger.info(summary());
+      // Phase 1: free the names other files of the batch are going to take
+      Map<Move, Path> tmpPaths = new HashMap<>();
+      for (Move move : entangled) {
+        tmpPaths.put(move, tmpPath(move.source));
+      }
+      forEach(entangled, (move) -> Files.move(move.source, tmpPaths.get(move)));
+      // Phase 2: exactly one move per file to its final name
+      forEach(moves, (move) -> {
+        logger.info(String.format("Renaming: \"%s\" -> \"%s\".", move.source.getFileName(),
+            move.target.getFileName()));
+        Path source = tmpPaths.getOrDefault(move, move.source);
+        Files.move(source, move.target, StandardCopyOption.REPLACE_EXISTING);
+      });
+    }
+
+    private static Path tmpPath(Path source) {
+      String name = source.getFileName().toString() + TMP_SUFFIX;
+      Path tmp = source.resolveSibling(name);
+      for (int i = 1; Files.exists(tmp); ++i) {
+        tmp = source.resolveSibling(name + i);
+      }
+      return tmp;
+    }
+
+    private static interface MoveConsumer {
+      void accept(Move move) throws IOException;
+    }
+
+    private static void forEach(List<Move> moves, MoveConsumer consumer) throws IOException {
+      Stream<Move> stream =
+          moves.size() >= PARALLEL_THRESHOLD ? moves.parallelStream() : moves.stream();
+      try {
+        stream.forEach((move) -> {
+          try {
+            consumer.accept(move);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  private final List<Function<String, String>> renameFunctions;
+
+  /**
+   * Precompiles all rename options.
+   *
+   * @param renameOptions options to apply in the given order
+   */
+  RenamePlanner(List<Task.Operation.Rename.RenameOption> renameOptions) {
+    renameFunctions = new ArrayList<>();
+    for (Task.Operation.Rename.RenameOption renameOption : renameOptions) {
+      if (renameOption instanceof Task.Operation.Rename.ReplaceAll) {
+        Task.Operation.Rename.ReplaceAll replaceAll =
+            (Task.Operation.Rename.ReplaceAll) renameOption;
+        Pattern pattern = Pattern.compile(replaceAll.getSubstring());
+        String with = replaceAll.getWith();
+        renameFunctions.add((fileName) -> pattern.matcher(fileName).replaceAll(with));
+      } else {
+        // We should never be here
+        String errorMessage =
+            String.format("Program failure. RenameOption has an unknown final type %s.",
+                renameOption.getClass().getName());
+        throw new AssertionError(errorMessage);
+      }
+    }
+  }
+
+  /**
+   * Computes the final name of a file.
+   *
+   * @param fileName current file name
+   * @return file name after applying all rename options
+   */
+  String rename(String fileName) {
+    String result = fileName;
+    for (Function<String, String> renameFunction : renameFunctions) {
+      result = renameFunction.apply(result);
+    }
+    return result;
+  }
+
+  /**
+   * Builds a plan for renaming the given files.
+   *
+   * @param files files to rename
+   * @return the plan
+   * @throws FileAlreadyExistsException if two files would get the same name, or a file would get
+   *         the name of an existing file, which isn't renamed by the batch
+   * @throws IOException
+   */
+  Plan plan(List<Path> files) throws IOException {
+    List<Move> moves = new ArrayList<>();
+    int unchanged = 0;
+    for (Path file : files) {
+      String fileName = file.getFileName().toString();
+      String newFileName = rename(fileName);
+      if (newFileName.equals(fileName)) {
+        ++unchanged;
+      } else {
+        moves.add(new Move(file, file.resolveSibling(newFileName)));
+      }
+    }
+
+    // Collisions inside the batch
+    Map<Path, List<Move>> byTarget =
+        moves.stream().collect(Collectors.groupingBy(Move::getTarget, LinkedHashMap::new,
+            Collectors.toList()));
+    for (Map.Entry<Path, List<Move>> entry : byTarget.entrySet()) {
+      if (entry.getValue().size() > 1) {
+        String sources = entry.getValue().stream().map((move) -> move.source.toString())
+            .collect(Collectors.joining("\", \""));
+        String errorMessage =
+            String.format("Files \"%s\" would all be renamed to the same name.", sources);
+        throw new FileAlreadyExistsException(entry.getKey().toString(), null, errorMessage);
+      }
+    }
+
+    Map<Path, Move> bySource = new HashMap<>();
+    moves.forEach((move) -> bySource.put(move.source, move));
+
+    // Collisions with files, which stay where they are. A target, which is the same file as its
+    // source, is a case-only rename on a case-insensitive file system.
+    for (Move move : moves) {
+      if (!bySource.containsKey(move.target)
+          && Files.exists(move.target, LinkOption.NOFOLLOW_LINKS)
+          && !Files.isSameFile(move.target, move.source)) {
+        String errorMessage = String.format("File \"%s\" would be renamed to an existing file.",
+            move.source);
+        throw new FileAlreadyExistsException(move.target.toString(), null, errorMessage);
+      }
+    }
+
+    // Targets, which currently belong to another file of the batch (chains and swap cycles). A
+    // path equal to its own source is a case-only rename on a case-insensitive file system.
+    List<Move> entangled = new ArrayList<>();
+    for (Move move : moves) {
+      Move owner = bySource.get(move.target);
+      if (owner != null && owner != move) {
+        entangled.add(owner);
+      }
+    }
+
+    return new Plan(moves, entangled, unchanged);
+  }
+}
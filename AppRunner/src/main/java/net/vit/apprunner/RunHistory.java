@@ -0,0 +1,252 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import net.vit.apprunner.ActionScheduler.ResourceClass;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Remembers how long tasks and their actions took in earlier runs of a module, so that
+ * {@link ActionScheduler} can start the longest chains first.
+ * <p/>
+ * The history of a module is a properties file under {@link #HISTORY_DIR}. Every action is
+ * keyed by its resource class, its task and its number in the task, e.g.
+ * {@code io:copy_123#0}, every task by its name. Tasks also keep the processes and, if known, the
+ * input bytes of their {@link ExecutionPlanner plan}. A new duration is averaged with the
+ * recorded one, so a single slow run doesn't throw the estimates off. An action without history
+ * is expected to take as long as the recorded actions of its resource class take on average, or
+ * {@link #DEFAULT_PROCESS_MILLIS} and {@link #DEFAULT_OPERATION_MILLIS} in a module, which has
+ * never run. Variants of a module share its history.
+ *
+ * @author vit
+ */
+class RunHistory {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Directory holding history files, relative to the working directory.
+   */
+  static final Path HISTORY_DIR = Paths.get(".apprunner", "history");
+
+  /**
+   * Expected duration of an application without history, in milliseconds.
+   */
+  static final long DEFAULT_PROCESS_MILLIS = 1000;
+
+  /**
+   * Expected duration of an operation without history, in milliseconds.
+   */
+  static final long DEFAULT_OPERATION_MILLIS = 100;
+
+  /**
+   * Weight of the latest duration against the recorded one.
+   */
+  private static final double WEIGHT = 0.5;
+
+  private static final String TASK_PREFIX = "task:";
+  private static final String BYTES_PREFIX = "bytes:";
+  private static final String PROCESSES_PREFIX = "processes:";
+
+  private final Path file;
+  private final Properties recorded;
+  private final Properties updates;
+  private final Map<ResourceClass, Long> defaultEstimates;
+
+  /**
+   * @param file history file, which may not exist yet
+   * @param recorded contents of the file
+   */
+  RunHistory(Path file, Properties recorded) {
+    this.file = file;
+    this.recorded = recorded;
+    this.updates = new Properties();
+    this.defaultEstimates = new EnumMap<>(ResourceClass.class);
+  }
+
+  /**
+   * @param module module name as given in the command line
+   * @return history file of the module
+   */
+  static Path fileOf(String module) {
+    return HISTORY_DIR.toAbsolutePath()
+        .resolve(UpToDateChecker.fileName(module) + ".properties");
+  }
+
+  /**
+   * Reads the history of a module. A history, which can't be read, is treated as empty.
+   *
+   * @param module module name as given in the command line
+   * @return history, empty if the module has never run
+   */
+  static RunHistory load(String module) {
+    Path file = fileOf(module);
+    return new RunHistory(file, read(file));
+  }
+
+  /**
+   * Keeps the processes of the planned tasks and their input bytes, if the plan is sized.
+   *
+   * @param plan
+   */
+  void planned(ExecutionPlanner.Plan plan) {
+    for (ExecutionPlanner.TaskPlan taskPlan : plan.getTasks()) {
+      if (plan.isSized()) {
+        set(BYTES_PREFIX + taskPlan.getTaskName(), taskPlan.getBytes());
+      }
+      set(PROCESSES_PREFIX + taskPlan.getTaskName(), taskPlan.getProcesses());
+    }
+  }
+
+  /**
+   * @param task
+   * @param actionIndex number of the action in the task
+   * @param resourceClass
+   * @return expected duration of the action in milliseconds
+   */
+  synchronized long estimate(Task task, int actionIndex, ResourceClass resourceClass) {
+    long millis = get(actionKey(task, actionIndex, resourceClass));
+    return millis >= 0 ? millis
+        : defaultEstimates.computeIfAbsent(resourceClass, this::defaultEstimate);
+  }
+
+  /**
+   * @param task
+   * @return recorded duration of the task in milliseconds, or -1 if it has never run
+   */
+  synchronized long estimate(Task task) {
+    return get(TASK_PREFIX + task.getName());
+  }
+
+  /**
+   * @param task
+   * @param actionIndex number of the action in the task
+   * @param resourceClass
+   * @return true if the action has run before
+   */
+  synchronized boolean isKnown(Task task, int actionIndex, ResourceClass resourceClass) {
+    return get(actionKey(task, actionIndex, resourceClass)) >= 0;
+  }
+
+  /**
+   * Records the duration of an action, which has finished successfully.
+   *
+   * @param task
+   * @param actionIndex number of the action in the task
+   * @param resourceClass
+   * @param millis
+   */
+  void actionFinished(Task task, int actionIndex, ResourceClass resourceClass, long millis) {
+    average(actionKey(task, actionIndex, resourceClass), millis);
+  }
+
+  /**
+   * Records the duration of a task, all of whose actions have finished successfully.
+   *
+   * @param task
+   * @param millis
+   */
+  void taskFinished(Task task, long millis) {
+    average(TASK_PREFIX + task.getName(), millis);
+  }
+
+  /**
+   * Writes what was recorded during this run into the history file. The file is read again
+   * first, so that variants running at the same time don't lose each other's durations, and
+   * replaced atomically. A history, which can't be written, is only logged.
+   */
+  void save() {
+    synchronized (RunHistory.class) {
+      Properties merged;
+      synchronized (this) {
+        if (updates.isEmpty()) {
+          return;
+        }
+        merged = read(file);
+        merged.putAll(updates);
+        updates.clear();
+      }
+      Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+      try {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(temp)) {
+          merged.store(out, "Durations in milliseconds of tasks and actions");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        logger.warning(String.format("Couldn't write the run history \"%s\": %s", file,
+            e.getMessage()));
+      }
+    }
+  }
+
+  private static String actionKey(Task task, int actionIndex, ResourceClass resourceClass) {
+    return resourceClass.name().toLowerCase() + ":" + task.getName() + "#" + actionIndex;
+  }
+
+  /**
+   * @return mean duration of the recorded actions of the resource class, or the default one
+   */
+  private long defaultEstimate(ResourceClass resourceClass) {
+    String prefix = resourceClass.name().toLowerCase() + ":";
+    long sum = 0;
+    int count = 0;
+    for (String key : recorded.stringPropertyNames()) {
+      long millis = key.startsWith(prefix) ? get(key) : -1;
+      if (millis >= 0) {
+        sum += millis;
+        ++count;
+      }
+    }
+    if (count > 0) {
+      return sum / count;
+    }
+    return resourceClass == ResourceClass.PROCESS ? DEFAULT_PROCESS_MILLIS
+        : DEFAULT_OPERATION_MILLIS;
+  }
+
+  private synchronized void average(String key, long value) {
+    long previous = get(key);
+    long averaged = previous < 0 ? value : Math.round(WEIGHT * value + (1 - WEIGHT) * previous);
+    set(key, averaged);
+  }
+
+  /**
+   * @return recorded value, or -1 if there is none or it isn't a number
+   */
+  private long get(String key) {
+    String value = recorded.getProperty(key);
+    try {
+      return value == null ? -1 : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private synchronized void set(String key, long value) {
+    updates.setProperty(key, String.valueOf(value));
+  }
+
+  private static Properties read(Path file) {
+    Properties properties = new Properties();
+    if (Files.isRegularFile(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        properties.load(in);
+      } catch (IOException | IllegalArgumentException e) {
+        logger.warning(String.format("Couldn't read the run history \"%s\": %s", file,
+            e.getMessage()));
+        return new Properties();
+      }
+    }
+    return properties;
+  }
+}
@@ -0,0 +1,92 @@
+package net.vit.apprunner;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.vit.apprunner.Settings.FileNameBase;
+
+/**
+ * Results of file searches shared by all actions of one run, so that several actions searching
+ * for the same files in a row list the directory only once.
+ * <p/>
+ * A result stays valid until an action writes into the searched directory: every operation on
+ * files and every application invalidates the results its {@link Footprint} writes to, as well as
+ * those of directories above what it writes, since e.g. a copy deep down creates the directories
+ * on the way there. Actions writing what another one searches never run at the same time (see
+ * {@link ActionScheduler}), so an action always sees the same files as it would without the cache.
+ *
+ * @author vit
+ */
+class SearchCache {
+  private final boolean enabled;
+  private final Map<List<Object>, List<Path>> results;
+  private final AtomicInteger hits;
+
+  /**
+   * @param enabled false makes every search list the directory
+   */
+  SearchCache(boolean enabled) {
+    this.enabled = enabled;
+    this.results = new ConcurrentHashMap<>();
+    this.hits = new AtomicInteger();
+  }
+
+  /**
+   * @param fileNameBase
+   * @return files found by an earlier search for the same files, or null
+   */
+  List<Path> get(FileNameBase fileNameBase) {
+    if (!enabled) {
+      return null;
+    }
+    List<Path> result = results.get(key(fileNameBase));
+    if (result == null) {
+      return null;
+    }
+    hits.incrementAndGet();
+    return new ArrayList<>(result);
+  }
+
+  /**
+   * @param fileNameBase
+   * @param result files found
+   */
+  void put(FileNameBase fileNameBase, List<Path> result) {
+    if (enabled) {
+      results.put(key(fileNameBase), new ArrayList<>(result));
+    }
+  }
+
+  /**
+   * Forgets results of searches in directories the footprint writes to or above them.
+   *
+   * @param footprint footprint of an action, which has just changed files
+   */
+  void invalidate(Footprint footprint) {
+    if (enabled && !results.isEmpty()) {
+      results.keySet().removeIf((key) -> {
+        Path dir = (Path) key.get(0);
+        return footprint.writes(dir)
+            || footprint.getWrites().stream().anyMatch((entry) -> entry.getPath().startsWith(dir));
+      });
+    }
+  }
+
+  /**
+   * @return number of searches answered from the cache
+   */
+  int getHits() {
+    return hits.get();
+  }
+
+  private static List<Object> key(FileNameBase fileNameBase) {
+    return Arrays.asList(Footprint.normalize(fileNameBase.getIn()),
+        fileNameBase.getStartsWith().orElse("").toLowerCase(),
+        fileNameBase.getEndsWith().orElse("").toLowerCase(),
+        fileNameBase.getContains().orElse("").toLowerCase());
+  }
+}
@@ -204,8 +204,45 @@ public class Settings {
         }
       }
 
+      /**
+       * Model for {@literal <files>} tag inside {@literal <execute>}. Expands to every matching
+       * file, each optionally preceded by {@link #getKey() key}.
+       */
+      static class FilesArg implements ApplicationInput, Resolvable {
+        private final FileNames fileNames;
+        private Optional<String> key = Optional.empty();
+
+        FilesArg(FileNames fileNames) {
+          this.fileNames = fileNames;
+        }
+
+        FileNames getFileNames() {
+          return fileNames;
+        }
+
+        Optional<String> getKey() {
+          return key;
+        }
+
+        void setKey(String val) {
+          this.key = Optional.of(val);
+        }
+
+        @Override
+        public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+          fileNames.resolveNames(resolver, scope);
+          key.ifPresent((val) -> setKey(resolver.resolve(val, scope)));
+        }
+      }
+
       private String executablePath;
       private final List<List<ApplicationInput>> executeList;
+      private boolean batch;
+      private Optional<Integer> maxArgs = Optional.empty();
+      private boolean parallel;
+      private Optional<String> outputDir = Optional.empty();
+      private int tailLines = 20;
+      private int maxLogRate = 200;
 
       Application(String executablePath) {
         this.executablePath = executablePath;
@@ -232,15 +269,122 @@ public class Settings {
         this.executeList.addAll(executeList);
       }
 
+      /**
+       * @return true if the files of every {@literal <execute>} have to be split into as many
+       *         invocations as needed to fit the command line limit or {@link #getMaxArgs()}
+       */
+      boolean isBatch() {
+        return batch;
+      }
+
+      void setBatch(boolean batch) {
+        this.batch = batch;
+      }
+
+      Optional<Integer> getMaxArgs() {
+        return maxArgs;
+      }
+
+      void setMaxArgs(int val) {
+        this.maxArgs = Optional.of(val);
+      }
+
+      /**
+       * @return true if invocations of one batch may run concurrently
+       */
+      boolean isParallel() {
+        return parallel;
+      }
+
+      void setParallel(boolean parallel) {
+        this.parallel = parallel;
+      }
+
+      /**
+       * @return directory, which stdout and stderr of every invocation are redirected to instead
+       *         of the log
+       */
+      Optional<String> getOutputDir() {
+        return outputDir;
+      }
+
+      void setOutputDir(String val) {
+        this.outputDir = Optional.of(val);
+      }
+
+      /**
+       * @return number of last output lines shown if the application exits with an error
+       */
+      int getTailLines() {
+        return tailLines;
+      }
+
+      void setTailLines(int val) {
+        this.tailLines = val;
+      }
+
+      /**
+       * @return number of output lines logged per second at most
+       */
+      int getMaxLogRate() {
+        return maxLogRate;
+      }
+
+      void setMaxLogRate(int val) {
+        this.maxLogRate = val;
+      }
+
       @Override
       public void resolveNames(NameReferenceResolver resolver, Scope scope) {
         setExecutablePath(Util.correctFileSeparator(resolver.resolve(executablePath, scope)));
+        outputDir.ifPresent(
+            (val) -> setOutputDir(Util.correctFileSeparator(resolver.resolve(val, scope))));
         executeList.stream().flatMap(List::stream).filter(Resolvable.class::isInstance)
             .map(Resolvable.class::cast)
             .forEach((resolvable) -> resolvable.resolveNames(resolver, scope));
       }
     }
 
+    /**
+     * Model for {@literal <pipeline>} tag: applications running at the same time, the standard
+     * output of each one being connected to the standard input of the next one.
+     */
+    static class Pipeline implements Action, Resolvable {
+      private final List<Application> stages;
+      private Optional<String> output = Optional.empty();
+
+      Pipeline(List<Application> stages) {
+        this.stages = new ArrayList<>(stages);
+      }
+
+      /**
+       * @return applications in the order the data flows through them, each with exactly one
+       *         {@literal <execute>}
+       */
+      List<Application> getStages() {
+        return Collections.unmodifiableList(stages);
+      }
+
+      /**
+       * @return file, which the standard output of the last stage is written to instead of the
+       *         log
+       */
+      Optional<String> getOutput() {
+        return output;
+      }
+
+      void setOutput(String val) {
+        this.output = Optional.of(val);
+      }
+
+      @Override
+      public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+        output.ifPresent(
+            (val) -> setOutput(Util.correctFileSeparator(resolver.resolve(val, scope))));
+        stages.forEach((stage) -> stage.resolveNames(resolver, scope));
+      }
+    }
+
     /**
      * Model for {@literal <operation>} tag.
      */
@@ -330,6 +474,8 @@ public class Settings {
       static abstract class MoveOrCopy implements InternalOp {
         private final List<FileNameBase> fileNames;
         private String to;
+        private boolean verify;
+        private Optional<String> durability = Optional.empty();
 
         MoveOrCopy(Collection<? extends FileNameBase> fileNames, String to) {
           this.fileNames = new ArrayList<>(fileNames);
@@ -340,6 +486,25 @@ public class Settings {
           return to;
         }
 
+        boolean isVerify() {
+          return verify;
+        }
+
+        void setVerify(boolean verify) {
+          this.verify = verify;
+        }
+
+        /**
+         * @return "none", "operation" or "file", see {@link DurabilityBarrier.Mode}
+         */
+        Optional<String> getDurability() {
+          return durability;
+        }
+
+        void setDurability(String durability) {
+          this.durability = Optional.of(durability);
+        }
+
         List<FileNameBase> getFileNames() {
           return Collections.unmodifiableList(fileNames);
         }
@@ -364,9 +529,22 @@ public class Settings {
        * Model for {@literal <copy>} tag.
        */
       static class Copy extends MoveOrCopy {
+        private Optional<String> mode = Optional.empty();
+
         public Copy(Collection<? extends FileNameBase> fileNames, String to) {
           super(fileNames, to);
         }
+
+        /**
+         * @return "copy", "link", "reflink" or "auto", see {@link FileLinker.Mode}
+         */
+        Optional<String> getMode() {
+          return mode;
+        }
+
+        void setMode(String mode) {
+          this.mode = Optional.of(mode);
+        }
       }
       
       /**
@@ -389,6 +567,164 @@ public class Settings {
         }
       }
 
+      /**
+       * Model for {@literal <pack>} tag.
+       */
+      static class Pack implements InternalOp {
+        private final List<FileNameBase> fileNames;
+        private String to;
+        private Optional<String> format = Optional.empty();
+        private Optional<Integer> level = Optional.empty();
+
+        Pack(Collection<? extends FileNameBase> fileNames, String to) {
+          this.fileNames = new ArrayList<>(fileNames);
+          this.to = to;
+        }
+
+        List<FileNameBase> getFileNames() {
+          return Collections.unmodifiableList(fileNames);
+        }
+
+        /**
+         * @return path to the archive
+         */
+        String getTo() {
+          return to;
+        }
+
+        Optional<String> getFormat() {
+          return format;
+        }
+
+        void setFormat(String format) {
+          this.format = Optional.of(format);
+        }
+
+        Optional<Integer> getLevel() {
+          return level;
+        }
+
+        void setLevel(int level) {
+          this.level = Optional.of(level);
+        }
+
+        @Override
+        public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+          fileNames.forEach((fileName) -> fileName.resolveNames(resolver, scope));
+          to = Util.correctFileSeparator(resolver.resolve(to, scope));
+        }
+      }
+
+      /**
+       * Model for {@literal <unpack>} tag.
+       */
+      static class Unpack implements InternalOp {
+        private final List<FileNameBase> fileNames;
+        private String to;
+
+        Unpack(Collection<? extends FileNameBase> fileNames, String to) {
+          this.fileNames = new ArrayList<>(fileNames);
+          this.to = to;
+        }
+
+        /**
+         * @return archives to unpack
+         */
+        List<FileNameBase> getFileNames() {
+          return Collections.unmodifiableList(fileNames);
+        }
+
+        /**
+         * @return directory to unpack to
+         */
+        String getTo() {
+          return to;
+        }
+
+        @Override
+        public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+          fileNames.forEach((fileName) -> fileName.resolveNames(resolver, scope));
+          to = Util.correctFileSeparator(resolver.resolve(to, scope));
+        }
+      }
+
+      /**
+       * Model for {@literal <patch-bytes>} tag.
+       */
+      static class PatchBytes implements InternalOp {
+        /**
+         * Model for {@literal <replace>} tag.
+         */
+        static class Replace implements Resolvable {
+          private String find;
+          private String with;
+          private final boolean hex;
+
+          Replace(String find, String with, boolean hex) {
+            this.find = find;
+            this.with = with;
+            this.hex = hex;
+          }
+
+          String getFind() {
+            return find;
+          }
+
+          String getWith() {
+            return with;
+          }
+
+          /**
+           * @return true if {@link #getFind()} and {@link #getWith()} are hexadecimal byte values,
+           *         otherwise they are text encoded as UTF-8
+           */
+          boolean isHex() {
+            return hex;
+          }
+
+          @Override
+          public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+            find = resolver.resolve(find, scope);
+            with = resolver.resolve(with, scope);
+          }
+        }
+
+        private final List<FileNameBase> fileNames;
+        private final List<Replace> replaces;
+        private Optional<String> to = Optional.empty();
+
+        PatchBytes(Collection<? extends FileNameBase> fileNames, List<Replace> replaces) {
+          this.fileNames = new ArrayList<>(fileNames);
+          this.replaces = new ArrayList<>(replaces);
+        }
+
+        List<FileNameBase> getFileNames() {
+          return Collections.unmodifiableList(fileNames);
+        }
+
+        List<Replace> getReplaces() {
+          return Collections.unmodifiableList(replaces);
+        }
+
+        /**
+         * @return directory to write patched files to. If empty, files are patched in place
+         */
+        Optional<String> getTo() {
+          return to;
+        }
+
+        void setTo(String to) {
+          this.to = Optional.of(to);
+        }
+
+        @Override
+        public void resolveNames(NameReferenceResolver resolver, Scope scope) {
+          fileNames.forEach((fileName) -> fileName.resolveNames(resolver, scope));
+          replaces.forEach((replace) -> replace.resolveNames(resolver, scope));
+          to = to.map((path) -> Util.correctFileSeparator(resolver.resolve(path, scope)));
+        }
+      }
+
       private final List<InternalOp> internals;
 
       Operation(List<InternalOp> internals) {
@@ -432,6 +768,8 @@ public class Settings {
     private final String name;
     private final Map<String, String> constants;
     private final List<Action> actions;
+    private Optional<Long> maxIoRate = Optional.empty();
+    private Optional<Long> maxIoOps = Optional.empty();
 
     Task(String name, Action... actions) {
       this.name = name;
@@ -469,6 +807,36 @@ public class Settings {
     void addAllActions(Collection<? extends Action> actions) {
       this.actions.addAll(actions);
     }
+
+    /**
+     * @return bytes per second copies and moves of the task may transfer, see {@link IoThrottle}
+     */
+    Optional<Long> getMaxIoRate() {
+      return maxIoRate;
+    }
+
+    void setMaxIoRate(String val) {
+      this.maxIoRate = Optional.of(IoThrottle.parseRate(val));
+    }
+
+    /**
+     * @return file operations per second the task may do, see {@link IoThrottle}
+     */
+    Optional<Long> getMaxIoOps() {
+      return maxIoOps;
+    }
+
+    void setMaxIoOps(String val) {
+      this.maxIoOps = Optional.of(IoThrottle.parseRate(val));
+    }
+
+    /**
+     * @param task task to take the I/O limits from
+     */
+    void copyIoLimits(Task task) {
+      this.maxIoRate = task.maxIoRate;
+      this.maxIoOps = task.maxIoOps;
+    }
   }
 
   private Configuration configuration;
@@ -0,0 +1,1068 @@
+package net.vit.apprunner;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import net.vit.apprunner.Settings.FileName;
+import net.vit.apprunner.Settings.FileNameBase;
+import net.vit.apprunner.Settings.FileNames;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.ExecutorBackend;
+import net.vit.apprunner.util.TraceRecorder;
+
+/**
+ * For convenience contains methods which perform the tasks, requested by user. They can launch
+ * external processes, perform operations on files etc.
+ * 
+ * @author vit
+ */
+class TaskExecuteHelper {
+  private static final Logger logger = AppRunner.logger;
+
+  private static final int PIPE_BUFFER_SIZE = 256 * 1024;
+
+  private final Settings settings;
+  private final String taskName;
+  private final ExecutorBackend backend;
+  private final ToIntFunction<FileStore> ioLanes;
+  private final SearchCache searchCache;
+  private final IoThrottle throttle;
+  private final ChunkedFileCopier chunkedCopier;
+  private final Task task;
+  private final AtomicInteger invocations;
+
+  /**
+   * @param settings resolved settings
+   * @param taskName task the actions belong to, used for reporting
+   * @param backend threads to copy files, run processes and pump their output on
+   * @param ioLanes number of I/O lanes of a store, which also caps how many files one copy or
+   *        move writes to it at the same time
+   * @param searchCache results of file searches shared by all actions of the run
+   * @param throttle bandwidth and file operation limits of copies, moves and deletes
+   * @param chunkedCopier copier of large files
+   */
+  TaskExecuteHelper(Settings settings, String taskName, ExecutorBackend backend,
+      ToIntFunction<FileStore> ioLanes, SearchCache searchCache, IoThrottle throttle,
+      ChunkedFileCopier chunkedCopier) {
+    this.settings = settings;
+    this.taskName = taskName;
+    this.backend = backend;
+    this.ioLanes = ioLanes;
+    this.searchCache = searchCache;
+    this.throttle = throttle;
+    this.chunkedCopier = chunkedCopier;
+    this.task = settings.getTasks().get(taskName);
+    this.invocations = new AtomicInteger();
+  }
+
+  /**
+   * Performs the given action of the task.
+   * 
+   * @param action {@link Task.Application}, {@link Task.Pipeline}, {@link Task.Operation} or
+   *        {@link Task.OperationRef}
+   */
+  // Trace spans are only opened and closed, so the resources are never referenced
+  @SuppressWarnings("try")
+  void launchAction(Task.Action action) {
+    if (action instanceof Task.Application) {
+      Task.Application application = (Task.Application) action;
+      try (TraceRecorder.Span span = TraceRecorder.span("application", "action")) {
+        span.arg("executable", application.getExecutablePath());
+        launchApplication(application);
+      }
+    } else if (action instanceof Task.Pipeline) {
+      try (TraceRecorder.Span span = TraceRecorder.span("pipeline", "action")) {
+        launchPipeline((Task.Pipeline) action);
+      }
+    } else if (action instanceof Task.OperationRef) {
+      Task.OperationRef operationRef = (Task.OperationRef) action;
+      Task.Operation operation = settings.getConfiguration().getOperationDefs()
+          .get(operationRef.getRef()).getOperation();
+      try (TraceRecorder.Span span =
+          TraceRecorder.span("operation " + operationRef.getRef(), "action")) {
+        launchOperation(operation, action);
+      }
+    } else if (action instanceof Task.Operation) {
+      Task.Operation operation = (Task.Operation) action;
+      try (TraceRecorder.Span span = TraceRecorder.span("operation", "action")) {
+        launchOperation(operation, action);
+      }
+    } else {
+      // We should never be here
+      String errorMessage = String.format(
+          "Program failure. Action has an unknown final type %s.", action.getClass().getName());
+      throw new AssertionError(errorMessage);
+    }
+  }
+
+  /**
+   * For a given {@link FileNameBase} initiates a search inside {@link FileNameBase#getIn()}
+   * directory.
+   * 
+   * @param fileNameBase files to search
+   * @return paths to found files
+   */
+  private List<Path> searchFiles(FileNameBase fileNameBase) throws FileNotFoundException {
+    List<Path> cached = searchCache.get(fileNameBase);
+    if (cached != null) {
+      logger.finer(() -> String.format("Reusing the search in \"%s\".", fileNameBase.getIn()));
+      return cached;
+    }
+    String startsWith = fileNameBase.getStartsWith().isPresent()
+        ? fileNameBase.getStartsWith().get().toLowerCase()
+        : "";
+    String endsWith =
+        fileNameBase.getEndsWith().isPresent() ? fileNameBase.getEndsWith().get().toLowerCase()
+            : "";
+    String contains =
+        fileNameBase.getContains().isPresent() ? fileNameBase.getContains().get().toLowerCase()
+            : "";
+
+    AppRunnerEvents.SearchFilesEvent event = new AppRunnerEvents.SearchFilesEvent();
+    event.begin();
+    try (Stream<Path> stream = Files.walk(Paths.get(fileNameBase.getIn()), 1)) {
+      int[] entriesScanned = {0};
+      List<Path> result = stream.peek((path) -> ++entriesScanned[0]).filter((path) -> {
+        String s = path.getFileName().toString().toLowerCase();
+        return s.startsWith(startsWith) && s.endsWith(endsWith) && s.contains(contains);
+      }).sorted().collect(Collectors.toList());
+
+      if (event.shouldCommit()) {
+        event.directory = fileNameBase.getIn();
+        event.pattern = startsWith + "*" + contains + "*" + endsWith;
+        event.entriesScanned = entriesScanned[0];
+        event.matches = result.size();
+        event.commit();
+      }
+
+      if (!result.isEmpty()) {
+        searchCache.put(fileNameBase, result);
+        return result;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    List<String> filesInDir = null;
+    try (Stream<Path> stream = Files.walk(Paths.get(fileNameBase.getIn()), 1)) {
+      filesInDir = stream.map(Path::getFileName).map(String::valueOf).map(String::toLowerCase)
+          .filter((s) -> {
+            return s.startsWith(startsWith) && s.endsWith(endsWith);
+          }).sorted().collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    String errorMessage = String.format(
+        "Couldn't find any file in \"%s\" such that starts with \"%s\", contains \"%s\" and ends with \"%s\"",
+        fileNameBase.getIn(), startsWith, contains, endsWith);
+    FileNotFoundException x;
+    if (fileNameBase.getContains().isPresent() && !filesInDir.isEmpty()) {
+      x = new FileNotFoundException(errorMessage, fileNameBase.getContains().get(), filesInDir);
+    } else {
+      x = new FileNotFoundException(errorMessage);
+    }
+
+    throw x;
+  }
+
+  /**
+   * For a given {@link FileName} initiates a search inside {@link FileName#getIn()} directory.
+   * 
+   * @param fileName file to search
+   * @return path of the file
+   */
+  private Path searchFile(FileName fileName) throws FileNotFoundException {
+    return searchFiles(fileName).get(0);
+  }
+
+  /**
+   * Runs the given application. In batch mode every {@literal <execute>} may result in several
+   * invocations, which run concurrently if the application is marked as parallel.
+   * 
+   * @param application
+   */
+  void launchApplication(Task.Application application) {
+    for (List<Task.Application.ApplicationInput> execute : application.getExecuteList()) {
+      List<List<String>> commands = createCommands(application, execute);
+      if (application.isParallel() && commands.size() > 1) {
+        runProcessesInParallel(application, commands);
+      } else {
+        commands.forEach((command) -> runProcess(application, command));
+      }
+      searchCache.invalidate(Footprint.of(application, settings));
+    }
+  }
+
+  /**
+   * Turns one {@literal <execute>} into command lines. Without batch mode this is always a
+   * single command line with every file of a {@literal <files>} tag in place. In batch mode
+   * files are split across as many command lines as needed, each command line having the
+   * arguments declared before the first {@literal <files>} tag in front of the files, and the
+   * remaining ones after them.
+   * 
+   * @param application
+   * @param execute
+   * @return command lines, the executable being the first element of each
+   */
+  private List<List<String>> createCommands(Task.Application application,
+      List<Task.Application.ApplicationInput> execute) {
+    List<String> leading = new ArrayList<>();
+    List<String> trailing = new ArrayList<>();
+    List<List<String>> units = new ArrayList<>();
+    leading.add(application.getExecutablePath());
+    boolean filesSeen = false;
+
+    try {
+      for (Task.Application.ApplicationInput input : execute) {
+        List<String> args = filesSeen && application.isBatch() ? trailing : leading;
+        if (input instanceof FileName) {
+          args.add((searchFile((FileName) input)).toString());
+        } else if (input instanceof Task.Application.StringArg) {
+          args.add(((Task.Application.StringArg) input).getValue());
+        } else if (input instanceof Task.Application.FilesArg) {
+          Task.Application.FilesArg filesArg = (Task.Application.FilesArg) input;
+          filesSeen = true;
+          for (Path filePath : searchFiles(filesArg.getFileNames())) {
+            List<String> unit = new ArrayList<>();
+            filesArg.getKey().ifPresent(unit::add);
+            unit.add(filePath.toString());
+            if (application.isBatch()) {
+              units.add(unit);
+            } else {
+              args.addAll(unit);
+            }
+          }
+        }
+      }
+    } catch (FileNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+
+    if (!application.isBatch()) {
+      return Collections.singletonList(leading);
+    }
+    List<List<String>> commands = new CommandLineBatcher(leading, trailing,
+        application.getMaxArgs(), CommandLineBatcher.defaultMaxLength()).split(units);
+    logger.info(String.format("Batch of %d argument(s) split into %d invocation(s).",
+        units.size(), commands.size()));
+    return commands;
+  }
+
+  /**
+   * Runs the given command lines concurrently and waits for all of them to finish.
+   * 
+   * @param application
+   * @param commands
+   */
+  private void runProcessesInParallel(Task.Application application,
+      List<List<String>> commands) {
+    int threads = Math.min(commands.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService executor = backend.newExecutor("apprunner-process", threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (List<String> command : commands) {
+        futures.add(executor.submit(() -> runProcess(application, command)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Starts one process and waits for it to exit. Its output is either logged or, if the
+   * application has an output directory, redirected to files by the OS without passing through
+   * the JVM. Standard error is pumped on a thread of its own, so that a process filling one pipe
+   * never blocks on the other. If the process exits with an error, the last lines of its output
+   * are logged, unless all of them have been logged already.
+   * 
+   * @param application
+   * @param command executable followed by arguments
+   */
+  private void runProcess(Task.Application application, List<String> command) {
+    String commandLine = command.stream().collect(Collectors.joining(" "));
+    String executableName = Paths.get(application.getExecutablePath()).getFileName().toString();
+    AppRunnerEvents.ChildProcessEvent event = new AppRunnerEvents.ChildProcessEvent();
+    event.begin();
+    try (TraceRecorder.Span span = TraceRecorder.span(executableName, "process")) {
+      ProgressMonitor.processStarted();
+      span.arg("command", commandLine);
+      long outputLines, outputBytes;
+      int exitCode;
+      if (application.getOutputDir().isPresent()) {
+        Path dir = Paths.get(application.getOutputDir().get());
+        Files.createDirectories(dir);
+        // Task, number of the action in the task, executable and number of the invocation
+        String prefix = String.format("%s_%d_%s_%d", taskName,
+            settings.getTasks().get(taskName).getActions().indexOf(application) + 1,
+            executableName, invocations.incrementAndGet());
+        Path stdOut = dir.resolve(prefix + ".stdout.log");
+        Path stdErr = dir.resolve(prefix + ".stderr.log");
+        logger.info(String.format("Running [%s]. Output goes to \"%s\" and \"%s\".",
+            commandLine, stdOut, stdErr));
+        Process process = new ProcessBuilder(command).redirectOutput(stdOut.toFile())
+            .redirectError(stdErr.toFile()).start();
+        exitCode = process.waitFor();
+        outputLines = 0;
+        outputBytes = Files.size(stdOut) + Files.size(stdErr);
+        if (exitCode != 0) {
+          logTail(commandLine, exitCode, "stdout",
+              ProcessOutput.tail(stdOut, application.getTailLines()));
+          logTail(commandLine, exitCode, "stderr",
+              ProcessOutput.tail(stdErr, application.getTailLines()));
+        }
+      } else {
+        String processInfo = String.format("Running [%s]. Output is:", commandLine);
+        logger.info(processInfo);
+        Process process = new ProcessBuilder(command).start();
+
+        ProcessOutput stdOut = new ProcessOutput(Level.INFO, application.getTailLines(),
+            application.getMaxLogRate());
+        ProcessOutput stdErr = new ProcessOutput(Level.SEVERE, application.getTailLines(),
+            application.getMaxLogRate());
+        ExecutorService pumps = backend.newExecutor("apprunner-pump", 1);
+        try {
+          Future<long[]> stdErrCounts = pumps.submit(() -> stdErr.pump(process.getErrorStream()));
+          long[] stdOutCounts = stdOut.pump(process.getInputStream());
+          outputLines = stdOutCounts[0] + stdErrCounts.get()[0];
+          outputBytes = stdOutCounts[1] + stdErrCounts.get()[1];
+        } finally {
+          pumps.shutdownNow();
+        }
+
+        exitCode = process.waitFor();
+        if (exitCode != 0 && stdOut.getSuppressed() + stdErr.getSuppressed() > 0) {
+          logTail(commandLine, exitCode, "stdout", stdOut.getTail());
+          logTail(commandLine, exitCode, "stderr", stdErr.getTail());
+        }
+      }
+      span.arg("exit code", exitCode);
+      event.taskName = taskName;
+      event.executable = application.getExecutablePath();
+      event.commandLine = commandLine;
+      event.exitCode = exitCode;
+      event.outputLines = outputLines;
+      event.outputBytes = outputBytes;
+      event.commit();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      ProgressMonitor.processExited();
+    }
+  }
+
+  /**
+   * Runs the stages of a pipeline at the same time. The standard output of every stage is pumped
+   * into the standard input of the next one through a large buffer, so no data touches the disk.
+   * The standard output of the last stage is either logged or, if the pipeline has an output
+   * file, redirected to it by the OS. Standard error of every stage is logged. If a stage exits,
+   * the stage in front of it gets a broken pipe, just like in a shell.
+   * 
+   * @param pipeline
+   */
+  void launchPipeline(Task.Pipeline pipeline) {
+    List<Task.Application> stages = pipeline.getStages();
+    List<String> commandLines = new ArrayList<>();
+    List<Process> processes = new ArrayList<>();
+    int exited = 0;
+    ExecutorService pumps = backend.newExecutor("apprunner-pump", 2 * stages.size() - 1);
+    try {
+      List<List<String>> commands = new ArrayList<>();
+      for (Task.Application stage : stages) {
+        List<String> command = createCommands(stage, stage.getExecuteList().get(0)).get(0);
+        commands.add(command);
+        commandLines.add(command.stream().collect(Collectors.joining(" ")));
+      }
+      Optional<Path> output = pipeline.getOutput().map(Paths::get);
+      logger.info(String.format("Running [%s]. Output %s", String.join(" | ", commandLines),
+          output.isPresent() ? String.format("goes to \"%s\".", output.get()) : "is:"));
+      if (output.isPresent() && output.get().toAbsolutePath().getParent() != null) {
+        Files.createDirectories(output.get().toAbsolutePath().getParent());
+      }
+
+      List<AppRunnerEvents.ChildProcessEvent> events = new ArrayList<>();
+      List<ProcessOutput> stdErrs = new ArrayList<>();
+      List<Future<long[]>> stdErrCounts = new ArrayList<>();
+      List<Future<Long>> transferred = new ArrayList<>();
+      for (int i = 0; i < stages.size(); ++i) {
+        AppRunnerEvents.ChildProcessEvent event = new AppRunnerEvents.ChildProcessEvent();
+        event.begin();
+        events.add(event);
+        ProcessBuilder builder = new ProcessBuilder(commands.get(i));
+        if (i == stages.size() - 1 && output.isPresent()) {
+          builder.redirectOutput(output.get().toFile());
+        }
+        Process process = builder.start();
+        processes.add(process);
+        ProgressMonitor.processStarted();
+        ProcessOutput stdErr = new ProcessOutput(Level.SEVERE, stages.get(i).getTailLines(),
+            stages.get(i).getMaxLogRate());
+        stdErrs.add(stdErr);
+        stdErrCounts.add(pumps.submit(() -> stdErr.pump(process.getErrorStream())));
+        if (i == 0) {
+          process.getOutputStream().close();
+        } else {
+          Process upstream = processes.get(i - 1);
+          transferred.add(pumps.submit(
+              () -> transfer(upstream.getInputStream(), process.getOutputStream())));
+        }
+      }
+
+      Task.Application last = stages.get(stages.size() - 1);
+      ProcessOutput stdOut =
+          new ProcessOutput(Level.INFO, last.getTailLines(), last.getMaxLogRate());
+      long[] stdOutCounts = output.isPresent() ? new long[2]
+          : stdOut.pump(processes.get(processes.size() - 1).getInputStream());
+      for (int i = 0; i < stages.size(); ++i) {
+        int exitCode = processes.get(i).waitFor();
+        ProgressMonitor.processExited();
+        ++exited;
+        long[] counts = stdErrCounts.get(i).get();
+        boolean isLast = i == stages.size() - 1;
+        if (exitCode != 0 && stdErrs.get(i).getSuppressed() > 0) {
+          logTail(commandLines.get(i), exitCode, "stderr", stdErrs.get(i).getTail());
+        }
+        AppRunnerEvents.ChildProcessEvent event = events.get(i);
+        event.taskName = taskName;
+        event.executable = stages.get(i).getExecutablePath();
+        event.commandLine = commandLines.get(i);
+        event.exitCode = exitCode;
+        event.outputLines = counts[0] + (isLast ? stdOutCounts[0] : 0);
+        event.outputBytes = counts[1] + (isLast
+            ? output.isPresent() ? Files.size(output.get()) : stdOutCounts[1]
+            : transferred.get(i).get());
+        event.commit();
+      }
+      if (!output.isPresent() && stdOut.getSuppressed() > 0
+          && processes.get(processes.size() - 1).exitValue() != 0) {
+        logTail(commandLines.get(commandLines.size() - 1),
+            processes.get(processes.size() - 1).exitValue(), "stdout", stdOut.getTail());
+      }
+      searchCache.invalidate(Footprint.of(pipeline, settings));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pumps.shutdownNow();
+      processes.stream().filter(Process::isAlive).forEach(Process::destroy);
+      for (int i = exited; i < processes.size(); ++i) {
+        ProgressMonitor.processExited();
+      }
+    }
+  }
+
+  /**
+   * Pumps the standard output of one stage of a pipeline into the standard input of the next
+   * one until the first ends or the second stops reading.
+   * 
+   * @return number of bytes passed on
+   */
+  private static long transfer(InputStream from, OutputStream to) throws IOException {
+    long total = 0;
+    byte[] buffer = new byte[PIPE_BUFFER_SIZE];
+    try (InputStream in = from; OutputStream out = to) {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        try {
+          out.write(buffer, 0, read);
+          out.flush();
+        } catch (IOException e) {
+          // The next stage has exited, closing the input gives the broken pipe to this one
+          logger.finer(() -> String.format("Pipe closed: %s", e.getMessage()));
+          break;
+        }
+        total += read;
+      }
+    } catch (IOException e) {
+      // Closing a pipe, whose reader has exited, fails the same way
+      logger.finer(() -> String.format("Pipe closed: %s", e.getMessage()));
+    }
+    return total;
+  }
+
+  private static void logTail(String commandLine, int exitCode, String streamName,
+      List<String> lines) {
+    if (lines.isEmpty()) {
+      return;
+    }
+    logger.severe(String.format("[%s] exited with code %d. Last %d line(s) of %s:", commandLine,
+        exitCode, lines.size(), streamName));
+    lines.forEach(logger::severe);
+  }
+
+  /**
+   * Waits for all the futures.
+   * 
+   * @param futures
+   * @throws IOException the first failure
+   */
+  private static void awaitAll(List<Future<?>> futures) throws IOException {
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for file operations.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      futures.clear();
+    }
+  }
+
+  /**
+   * @param fileNameBase {@link FileName} or {@link FileNames}
+   * @return the matching file or files
+   * @throws FileNotFoundException
+   */
+  private List<Path> searchFileNameBase(FileNameBase fileNameBase) throws FileNotFoundException {
+    if (fileNameBase instanceof FileName) {
+      return Collections.singletonList(searchFile((FileName) fileNameBase));
+    }
+    return searchFiles((FileNames) fileNameBase);
+  }
+
+  /**
+   * Deletes a file or a directory with all its contents.
+   * 
+   * @param path
+   * @throws IOException
+   */
+  private void deleteTree(Path path) throws IOException {
+    if (Files.isDirectory(path)) {
+      Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          throttle.operation(task, file);
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+          throttle.operation(task, dir);
+          Files.delete(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } else {
+      throttle.operation(task, path);
+      Files.delete(path);
+    }
+  }
+
+  /**
+   * Copies a file, replacing the target. Large files are copied in ranges by
+   * {@link ChunkedFileCopier}. Under a byte limit of {@link IoThrottle} the file is copied chunk
+   * by chunk, each chunk waiting for its tokens.
+   * 
+   * @param source
+   * @param target
+   * @throws IOException
+   */
+  private void copyFile(Path source, Path target) throws IOException {
+    throttle.operation(task, target);
+    boolean limitsBytes = throttle.limitsBytes(task, source, target);
+    if (chunkedCopier.isEnabled() && chunkedCopier.applies(Files.size(source))) {
+      chunkedCopier.copy(source, target,
+          limitsBytes ? (bytes) -> throttle.transfer(task, bytes, source, target) : null);
+      copyPermissions(source, target);
+      return;
+    }
+    if (!limitsBytes) {
+      Files.copy(source, target, REPLACE_EXISTING);
+      return;
+    }
+    // Like Files.copy, replace the target instead of writing through a hard link to it
+    Files.deleteIfExists(target);
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel out =
+            FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        long chunk = Math.min(IoThrottle.CHUNK_SIZE, size - position);
+        throttle.transfer(task, chunk, source, target);
+        long transferred = in.transferTo(position, chunk, out);
+        if (transferred == 0) {
+          // The source has shrunk meanwhile
+          break;
+        }
+        position += transferred;
+      }
+    }
+    copyPermissions(source, target);
+  }
+
+  /**
+   * Copies a file under the name the barrier gives to it and tells the barrier when the data is
+   * written.
+   * 
+   * @return path the data is at
+   */
+  private Path copyFile(Path source, Path target, DurabilityBarrier barrier)
+      throws IOException {
+    copyFile(source, barrier.pathFor(target));
+    return barrier.written(target);
+  }
+
+  private static void copyPermissions(Path source, Path target) throws IOException {
+    try {
+      Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system, nothing to keep
+    }
+  }
+
+  /**
+   * Moves a file, replacing the target. A move to another store copies the data, which counts
+   * against byte limits of {@link IoThrottle}.
+   * 
+   * @param source
+   * @param target
+   * @throws IOException
+   */
+  private void moveFile(Path source, Path target) throws IOException {
+    throttle.operation(task, source);
+    if (throttle.limitsBytes(task, source, target) && !throttle.sameStore(source, target)) {
+      throttle.transfer(task, Files.size(source), source, target);
+    }
+    Files.move(source, target, REPLACE_EXISTING);
+  }
+
+  /**
+   * Tells, which files renames, byte patches, unpacking and applications following the given
+   * internal operation in this task modify. Files there are modified in place, so they must not
+   * share data with other files. Renames and byte patches select files by name, unpacking and
+   * applications may touch anything inside the directories they write to.
+   * 
+   * @param action action of the task, which the operation belongs to
+   * @param operation
+   * @param internalOp
+   * @return test taking an absolute normalized path
+   */
+  private Predicate<Path> modifiedLater(Task.Action action, Task.Operation operation,
+      Task.Operation.InternalOp internalOp) {
+    Footprint footprint = new Footprint();
+    List<FileNameBase> selected = new ArrayList<>();
+    List<Task.Operation.InternalOp> internals = operation.getInternals();
+    addInPlaceWrites(footprint, selected,
+        internals.subList(internals.indexOf(internalOp) + 1, internals.size()));
+    List<Task.Action> actions = settings.getTasks().get(taskName).getActions();
+    for (Task.Action later : actions.subList(actions.indexOf(action) + 1, actions.size())) {
+      if (later instanceof Task.Application || later instanceof Task.Pipeline) {
+        footprint.addAll(Footprint.of(later, settings));
+      } else if (later instanceof Task.OperationRef) {
+        addInPlaceWrites(footprint, selected, settings.getConfiguration().getOperationDefs()
+            .get(((Task.OperationRef) later).getRef()).getOperation().getInternals());
+      } else if (later instanceof Task.Operation) {
+        addInPlaceWrites(footprint, selected, ((Task.Operation) later).getInternals());
+      }
+    }
+    return (path) -> footprint.writes(path)
+        || selected.stream().anyMatch((fileNameBase) -> matches(fileNameBase, path));
+  }
+
+  private void addInPlaceWrites(Footprint footprint, List<FileNameBase> selected,
+      List<Task.Operation.InternalOp> internals) {
+    for (Task.Operation.InternalOp internalOp : internals) {
+      if (internalOp instanceof Task.Operation.Rename) {
+        selected.add(((Task.Operation.Rename) internalOp).getFileNames());
+      } else if (internalOp instanceof Task.Operation.PatchBytes) {
+        Task.Operation.PatchBytes patchBytes = (Task.Operation.PatchBytes) internalOp;
+        if (!patchBytes.getTo().isPresent()) {
+          selected.addAll(patchBytes.getFileNames());
+        }
+      } else if (internalOp instanceof Task.Operation.Unpack) {
+        footprint.addAll(Footprint
+            .of(new Task.Operation(Collections.singletonList(internalOp)), settings));
+      }
+    }
+  }
+
+  /**
+   * @param path absolute normalized path
+   * @return true if {@link #searchFiles(FileNameBase)} would find the path
+   */
+  static boolean matches(FileNameBase fileNameBase, Path path) {
+    if (!Footprint.normalize(fileNameBase.getIn()).equals(path.getParent())) {
+      return false;
+    }
+    String s = path.getFileName().toString().toLowerCase();
+    return s.startsWith(fileNameBase.getStartsWith().orElse("").toLowerCase())
+        && s.endsWith(fileNameBase.getEndsWith().orElse("").toLowerCase())
+        && s.contains(fileNameBase.getContains().orElse("").toLowerCase());
+  }
+
+  /**
+   * Forgets results of searches, which the internal operation may have changed.
+   * 
+   * @param internalOp
+   */
+  private void invalidateSearches(Task.Operation.InternalOp internalOp) {
+    searchCache.invalidate(
+        Footprint.of(new Task.Operation(Collections.singletonList(internalOp)), settings));
+  }
+
+  /**
+   * Performs the given operation.
+   * 
+   * @param operation
+   * @param action action of the task, which the operation belongs to
+   */
+  // Trace spans are only opened and closed, so the resources are never referenced
+  @SuppressWarnings("try")
+  void launchOperation(Task.Operation operation, Task.Action action) {
+    try {
+      for (Task.Operation.InternalOp internalOp : operation.getInternals()) {
+        TraceRecorder.Span span = TraceRecorder.span(
+            internalOp.getClass().getSimpleName().toLowerCase(), "operation");
+        AppRunnerEvents.OperationEvent event = new AppRunnerEvents.OperationEvent();
+        try {
+          event.begin();
+          event.taskName = taskName;
+          if (internalOp instanceof Task.Operation.Rename) {
+            Task.Operation.Rename rename = (Task.Operation.Rename) internalOp;
+            List<Path> filePaths = searchFiles(rename.getFileNames());
+            event.kind = "rename";
+            event.fileCount = filePaths.size();
+            new RenamePlanner(rename.getRenameOptions()).plan(filePaths).execute();
+          } else if (internalOp instanceof Task.Operation.Move
+              || internalOp instanceof Task.Operation.Copy) {
+            Task.Operation.MoveOrCopy moveOrCopyOp = (Task.Operation.MoveOrCopy) internalOp;
+            final boolean move = internalOp instanceof Task.Operation.Move;
+            event.kind = move ? "move" : "copy";
+            event.destination = moveOrCopyOp.getTo();
+            Path toDirPath = Paths.get(moveOrCopyOp.getTo());
+            Files.createDirectories(toDirPath);
+            // Copies are verified in the background while the next files are being copied. A move
+            // to another store copies the files and deletes the sources once all of them match.
+            ChecksumVerifier verifier = moveOrCopyOp.isVerify() ? new ChecksumVerifier() : null;
+            List<Path> sourcesToDelete = new ArrayList<>();
+            // Files are copied concurrently, at most as many as the target store has lanes, so that
+            // one copy doesn't get around --io-lanes. Directories are created by the walking thread
+            // before their files are copied. Copies to the same target run in the declared order.
+            ExecutorService copyExecutor = backend.newExecutor("apprunner-copy", Math.min(
+                backend.getIoParallelism(),
+                ioLanes.applyAsInt(ActionScheduler.fileStoreOf(toDirPath.toAbsolutePath()))));
+            List<Future<?>> copies = new ArrayList<>();
+            Set<Path> copyTargets = new HashSet<>();
+            // Copies are written under temporary names, if they have to survive a crash
+            DurabilityBarrier barrier = new DurabilityBarrier(
+                DurabilityBarrier.Mode.of(moveOrCopyOp.getDurability()), copyExecutor);
+            // Within one store a copy may share data with its source, unless it is modified later
+            FileLinker.Mode mode = move ? FileLinker.Mode.COPY
+                : FileLinker.Mode.of(((Task.Operation.Copy) internalOp).getMode());
+            FileLinker linker = mode == FileLinker.Mode.COPY ? null : new FileLinker(mode);
+            Predicate<Path> modifiedLater =
+                linker == null ? null : modifiedLater(action, operation, internalOp);
+            try {
+              barrier.changed(toDirPath);
+              for (FileNameBase fileNameBase : moveOrCopyOp.getFileNames()) {
+                List<Path> filePaths = new ArrayList<>();
+                if (fileNameBase instanceof FileName) {
+                  filePaths.add(searchFile((FileName) fileNameBase));
+                } else {
+                  filePaths = searchFiles((FileNames) fileNameBase);
+                }
+
+                class TreeCopier implements FileVisitor<Path> {
+                  private final Path source;
+                  private final Path target;
+                  private final boolean moveFiles;
+                  private final boolean shareData;
+
+                  TreeCopier(Path source, Path target, boolean moveFiles, boolean shareData) {
+                    this.source = source;
+                    this.target = target;
+                    this.moveFiles = moveFiles;
+                    this.shareData = shareData;
+                  }
+
+                  @Override
+                  public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                      throws IOException {
+                    Path newdir = target.resolve(source.relativize(dir));
+                    logger.finest(() -> String.format("[dir]=%s [newdir]=%s", dir, newdir));
+                    try {
+                      throttle.operation(task, newdir);
+                      Files.copy(dir, newdir);
+                      barrier.changed(newdir);
+                    } catch (FileAlreadyExistsException x) {
+                      // ignore
+                    } catch (IOException x) {
+                      String errorMessage = String.format("Unable to create: %s: %s", newdir, x);
+                      throw new RuntimeException(errorMessage);
+                    }
+                    return CONTINUE;
+                  }
+
+                  @Override
+                  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                      throws IOException {
+                    try {
+                      Path dest = target.resolve(source.relativize(file));
+                      logger.finest(() -> String.format("[file]=%s [newfile]=%s", file, dest));
+                      if (moveFiles) {
+                        moveFile(file, dest);
+                        barrier.moved(file, dest);
+                        ProgressMonitor.transferred(taskName, attrs.size());
+                      } else {
+                        if (!copyTargets.add(dest)) {
+                          if (linker != null) {
+                            for (Path[] pair : linker.flush()) {
+                              copyFile(pair[0], pair[1], barrier);
+                            }
+                          }
+                          awaitAll(copies);
+                          copyTargets.clear();
+                          copyTargets.add(dest);
+                        }
+                        if (shareData && !modifiedLater.test(dest.toAbsolutePath().normalize())
+                            && linker.share(file, dest)) {
+                          barrier.shared(dest);
+                          ProgressMonitor.transferred(taskName, attrs.size());
+                          return CONTINUE;
+                        }
+                        copies.add(copyExecutor.submit(() -> {
+                          Path copied;
+                          try {
+                            copied = copyFile(file, dest, barrier);
+                          } catch (IOException x) {
+                            String errorMessage =
+                                String.format("Unable to copy: %s: %s", source, x);
+                            throw new IOException(errorMessage);
+                          }
+                          ProgressMonitor.transferred(taskName, attrs.size());
+                          if (verifier != null) {
+                            verifier.submit(file, copied);
+                          }
+                          return null;
+                        }));
+                      }
+                    } catch (IOException x) {
+                      String errorMessage =
+                          String.format("Unable to %s: %s: %s", move ? "move" : "copy", source, x);
+                      throw new IOException(errorMessage);
+                    }
+                    return CONTINUE;
+                  }
+
+                  @Override
+                  public FileVisitResult postVisitDirectory(Path dir, IOException exc)
+                      throws IOException {
+                    logger.finest(() -> String.format("[dir]=%s", dir));
+                    if (moveFiles) {
+                      try {
+                        logger.finest(() -> String.format("Deleting %s", dir));
+                        throttle.operation(task, dir);
+                        Files.delete(dir);
+                        barrier.changed(dir);
+                      } catch (IOException x) {
+                        String errorMessage = String.format("Failed to delete directory %s", dir);
+                        throw new IOException(errorMessage);
+                      }
+                    }
+                    return CONTINUE;
+                  }
+
+                  @Override
+                  public FileVisitResult visitFileFailed(Path file, IOException exc)
+                      throws IOException {
+                    String errorMessage = (exc instanceof FileSystemLoopException)
+                        ? String.format("Cycle detected: %s" + file)
+                        : String.format("Unable to %s: %s: %s", move ? "move" : "copy", file, exc);
+                    throw new IOException(errorMessage);
+                  }
+                }
+
+                event.fileCount += filePaths.size();
+                for (Path filePath : filePaths) {
+                  Path newFilePath = toDirPath.resolve(filePath.getFileName());
+                  // Within one store a move is a rename, which leaves the bytes alone. Otherwise a
+                  // verified or durable move copies first and deletes the sources at the end.
+                  boolean moveFiles = move && (verifier == null && !barrier.isEnabled()
+                      || Files.getFileStore(filePath).equals(Files.getFileStore(toDirPath)));
+                  if (move && !moveFiles) {
+                    sourcesToDelete.add(filePath);
+                  }
+                  boolean shareData = linker != null
+                      && Files.getFileStore(filePath).equals(Files.getFileStore(toDirPath));
+                  TreeCopier treeCopier =
+                      new TreeCopier(filePath, newFilePath, moveFiles, shareData);
+                  logger.info(String.format("%s: \"%s\" -> \"%s\".", move ? "Moving" : "Copying",
+                      filePath, newFilePath));
+                  Files.walkFileTree(filePath, treeCopier);
+                }
+                invalidateSearches(internalOp);
+              }
+              if (linker != null) {
+                for (Path[] pair : linker.flush()) {
+                  copies.add(copyExecutor.submit(() -> {
+                    copyFile(pair[0], pair[1], barrier);
+                    return null;
+                  }));
+                }
+                if (linker.getLinks() + linker.getClones() > 0) {
+                  logger.info(String.format(
+                      "%d file(s) hard-linked and %d cloned instead of copied.", linker.getLinks(),
+                      linker.getClones()));
+                }
+              }
+              awaitAll(copies);
+              if (verifier != null) {
+                try (TraceRecorder.Span verifySpan = TraceRecorder.span("verify", "operation")) {
+                  verifier.verify();
+                }
+              }
+              try (TraceRecorder.Span commitSpan = TraceRecorder.span("commit", "operation")) {
+                barrier.commit();
+                for (Path source : sourcesToDelete) {
+                  logger.fine(() -> String.format("Deleting copied source \"%s\".", source));
+                  deleteTree(source);
+                  barrier.changed(source);
+                }
+                barrier.commit();
+              }
+            } finally {
+              copyExecutor.shutdownNow();
+              barrier.abort();
+              if (verifier != null) {
+                verifier.close();
+              }
+            }
+          } else if (internalOp instanceof Task.Operation.Pack) {
+            Task.Operation.Pack pack = (Task.Operation.Pack) internalOp;
+            event.kind = "pack";
+            event.destination = pack.getTo();
+            List<Path> filePaths = new ArrayList<>();
+            for (FileNameBase fileNameBase : pack.getFileNames()) {
+              filePaths.addAll(searchFileNameBase(fileNameBase));
+            }
+            Path archive = Paths.get(pack.getTo());
+            ArchivePacker packer =
+                new ArchivePacker(ArchivePacker.Format.of(pack.getFormat(), archive),
+                    pack.getLevel().orElse(Deflater.DEFAULT_COMPRESSION));
+            event.fileCount = packer.pack(filePaths, archive);
+          } else if (internalOp instanceof Task.Operation.Unpack) {
+            Task.Operation.Unpack unpack = (Task.Operation.Unpack) internalOp;
+            event.kind = "unpack";
+            event.destination = unpack.getTo();
+            ArchiveUnpacker unpacker = new ArchiveUnpacker(backend);
+            for (FileNameBase fileNameBase : unpack.getFileNames()) {
+              for (Path archive : searchFileNameBase(fileNameBase)) {
+                event.fileCount += unpacker.unpack(archive, Paths.get(unpack.getTo()));
+                invalidateSearches(internalOp);
+              }
+            }
+          } else if (internalOp instanceof Task.Operation.PatchBytes) {
+            Task.Operation.PatchBytes patchBytes = (Task.Operation.PatchBytes) internalOp;
+            event.kind = "patch-bytes";
+            patchBytes.getTo().ifPresent((to) -> event.destination = to);
+            List<Path> filePaths = new ArrayList<>();
+            for (FileNameBase fileNameBase : patchBytes.getFileNames()) {
+              filePaths.addAll(searchFileNameBase(fileNameBase));
+            }
+            List<BytePatcher.Replacement> replacements = patchBytes.getReplaces().stream()
+                .map((replace) -> BytePatcher.Replacement.of(replace.getFind(), replace.getWith(),
+                    replace.isHex()))
+                .collect(Collectors.toList());
+            event.fileCount = filePaths.size();
+            new BytePatcher(replacements).patch(filePaths, patchBytes.getTo().map(Paths::get));
+          } else if (internalOp instanceof Task.Operation.Delete) {
+            Task.Operation.Delete delete = (Task.Operation.Delete) internalOp;
+            event.kind = "delete";
+            DELETE: for (FileNameBase fileNameBase : delete.getFileNames()) {
+              List<Path> filePaths = new ArrayList<>();
+              try {
+                if (fileNameBase instanceof FileName) {
+                  filePaths.add(searchFile((FileName) fileNameBase));
+                } else {
+                  filePaths = searchFiles((FileNames) fileNameBase);
+                }
+              } catch (FileNotFoundException e) {
+                logger.warning(
+                    String.format("Trying to delete non-existing file. %s", e.getMessage()));
+                continue DELETE;
+              }
+              event.fileCount += filePaths.size();
+              for (Path filePath : filePaths) {
+                logger.info(String.format("Deleting: \"%s\".", filePath));
+                deleteTree(filePath);
+              }
+              invalidateSearches(internalOp);
+            }
+          } else {
+            // We should never be here
+            String errorMessage =
+                String.format("Program failure. InternalOp has an unknown final type %s.",
+                    internalOp.getClass().getName());
+            throw new AssertionError(errorMessage);
+          }
+          invalidateSearches(internalOp);
+          event.commit();
+        } finally {
+          span.arg("files", event.fileCount).close();
+        }
+      }
+    } catch (FileNotFoundException | IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
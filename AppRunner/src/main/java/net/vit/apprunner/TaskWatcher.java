@@ -0,0 +1,269 @@
+package net.vit.apprunner;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Keeps re-running tasks, whose inputs change.
+ * <p/>
+ * Watches the module chain, the properties file and every path the requested tasks read (see
+ * {@link Footprint}). Events are debounced: after the first one the watcher waits until no new
+ * event arrives for the debounce period. Then
+ * <ul>
+ * <li>if a module or the properties file changed, everything is parsed and resolved again and all
+ * tasks are re-run;</li>
+ * <li>otherwise the parsed and resolved settings are reused and only the tasks reading a changed
+ * path are re-run, along with later tasks reading what those write.</li>
+ * </ul>
+ * Events caused by the run itself are discarded, so a task writing into its own input directory
+ * doesn't trigger itself again.
+ *
+ * @author vit
+ */
+class TaskWatcher {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Parses and resolves the configuration.
+   */
+  static interface Loader {
+    Settings load() throws Exception;
+  }
+
+  /**
+   * Runs the given tasks.
+   */
+  static interface Runner {
+    void run(Settings settings, List<Task> tasks) throws Exception;
+  }
+
+  private final List<String> taskNames;
+  private final long debounceMillis;
+  private final Loader loader;
+  private final Runner runner;
+  private final Supplier<List<Path>> configFilesSupplier;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirs;
+  private Settings settings;
+  private Set<Path> configFiles;
+
+  /**
+   * @param taskNames tasks requested by user in the order they have to run
+   * @param debounceMillis quiet period after the last event before tasks are re-run
+   * @param settings already parsed and resolved settings
+   * @param loader reloads settings when a configuration file changes
+   * @param runner runs tasks
+   * @param configFilesSupplier module files and the properties file of the latest load
+   * @throws IOException
+   */
+  TaskWatcher(List<String> taskNames, long debounceMillis, Settings settings, Loader loader,
+      Runner runner, Supplier<List<Path>> configFilesSupplier) throws IOException {
+    this.taskNames = taskNames;
+    this.debounceMillis = debounceMillis;
+    this.settings = settings;
+    this.loader = loader;
+    this.runner = runner;
+    this.configFilesSupplier = configFilesSupplier;
+    this.configFiles = normalize(configFilesSupplier.get());
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.watchedDirs = new HashMap<>();
+  }
+
+  /**
+   * Runs all tasks once and then keeps re-running affected ones until {@link #stop()} is called.
+   * Failures of a run are logged and watching goes on.
+   */
+  void watch() {
+    run(tasks());
+    try {
+      while (true) {
+        register();
+        logger.info("Watching for changes. Press Ctrl+C to stop.");
+        Set<Path> changed = awaitChanges();
+
+        long start = System.nanoTime();
+        List<Task> affected;
+        if (changed.stream().anyMatch(configFiles::contains)) {
+          logger.info("Configuration changed. Reloading.");
+          try {
+            settings = loader.load();
+          } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getMessage(), e);
+            continue;
+          } finally {
+            configFiles = normalize(configFilesSupplier.get());
+          }
+          affected = tasks();
+        } else {
+          affected = affectedTasks(changed);
+        }
+        if (affected.isEmpty()) {
+          logger.fine(() -> String.format("Changes of %s don't affect any task.", changed));
+          continue;
+        }
+
+        logger.info(String.format("%d path(s) changed. Re-running %s.", changed.size(),
+            affected.stream().map(Task::getName).collect(Collectors.toList())));
+        run(affected);
+        logger.info(String.format("Re-run finished in %d ms.",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        discardPendingEvents();
+      }
+    } catch (ClosedWatchServiceException e) {
+      // Stopped
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Makes {@link #watch()} return. May be called from any thread.
+   */
+  void stop() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Couldn't close the watch service.", e);
+    }
+  }
+
+  private List<Task> tasks() {
+    return taskNames.stream().map((taskName) -> settings.getTasks().get(taskName))
+        .collect(Collectors.toList());
+  }
+
+  private void run(List<Task> tasks) {
+    try {
+      runner.run(settings, tasks);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return tasks reading a changed path and later tasks depending on them, in the original order
+   */
+  private List<Task> affectedTasks(Set<Path> changed) {
+    List<Task> affected = new ArrayList<>();
+    List<Footprint> affectedFootprints = new ArrayList<>();
+    for (Task task : tasks()) {
+      Footprint footprint = Footprint.of(task, settings);
+      boolean isAffected = changed.stream().anyMatch(footprint::reads)
+          || affectedFootprints.stream().anyMatch(footprint::conflictsWith);
+      if (isAffected && !affected.contains(task)) {
+        affected.add(task);
+        affectedFootprints.add(footprint);
+      }
+    }
+    return affected;
+  }
+
+  /**
+   * Registers directories of configuration files and of every path read by the tasks. Deep reads
+   * register the whole directory tree. Directories created since the previous call are picked up.
+   */
+  private void register() {
+    Set<Path> dirs = new LinkedHashSet<>();
+    configFiles.forEach((file) -> dirs.add(file.getParent()));
+    for (Task task : tasks()) {
+      for (Footprint.Entry entry : Footprint.of(task, settings).getReads()) {
+        Path path = entry.getPath();
+        if (!Files.isDirectory(path)) {
+          dirs.add(path.getParent());
+        } else if (entry.isDeep()) {
+          try (Stream<Path> tree = Files.walk(path)) {
+            tree.filter(Files::isDirectory).forEach(dirs::add);
+          } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.FINE, e, () -> String.format("Couldn't walk \"%s\".", path));
+          }
+        } else {
+          dirs.add(path);
+        }
+      }
+    }
+    for (Path dir : dirs) {
+      if (dir != null && Files.isDirectory(dir)) {
+        try {
+          watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+              dir);
+        } catch (IOException e) {
+          logger.log(Level.FINE, e, () -> String.format("Couldn't watch \"%s\".", dir));
+        }
+      }
+    }
+    logger.fine(() -> String.format("Watching %d directories.", dirs.size()));
+  }
+
+  /**
+   * Blocks until something changes, then collects further changes until none arrives for
+   * {@link #debounceMillis}.
+   *
+   * @return changed paths
+   */
+  private Set<Path> awaitChanges() throws InterruptedException {
+    Set<Path> changed = new LinkedHashSet<>();
+    WatchKey key = watchService.take();
+    while (key != null) {
+      collect(key, changed);
+      key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS);
+    }
+    return changed;
+  }
+
+  private void collect(WatchKey key, Set<Path> changed) {
+    Path dir = watchedDirs.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (dir == null) {
+        continue;
+      }
+      if (event.kind() == OVERFLOW) {
+        // Too many events to tell which files changed
+        changed.add(dir);
+      } else {
+        changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+      }
+    }
+    if (!key.reset()) {
+      watchedDirs.remove(key);
+    }
+  }
+
+  private void discardPendingEvents() {
+    WatchKey key;
+    while ((key = watchService.poll()) != null) {
+      key.pollEvents();
+      if (!key.reset()) {
+        watchedDirs.remove(key);
+      }
+    }
+  }
+
+  private static Set<Path> normalize(List<Path> paths) {
+    return paths.stream().map((path) -> path.toAbsolutePath().normalize())
+        .collect(Collectors.toSet());
+  }
+}
@@ -0,0 +1,279 @@
+package net.vit.apprunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import net.vit.apprunner.Settings.Task;
+
+/**
+ * Skips tasks, which are up to date, the way make skips targets whose prerequisites didn't change.
+ * <p/>
+ * As soon as a task has run successfully its state is written to a file under
+ * {@link #STATE_DIR}: a hash of the module chain, the properties file and the resolved constants,
+ * and the size, modification time and CRC-32 of every file the task reads and writes (see
+ * {@link Footprint}). Next time the task is up to date, if all of these are still the same. A file
+ * whose size and modification time didn't change isn't read again, so checking a task costs about
+ * a directory walk. A file, which was only touched, still counts as unchanged.
+ * <p/>
+ * State is taken right after the last action of the task, before any later task, whose footprint
+ * conflicts with it, starts (see {@link ActionScheduler} and {@link Coordinator}). So if a later
+ * task changes the files of an earlier one, e.g. deletes its output, the earlier task is out of
+ * date next time. Once a task has to run, every later task, whose footprint conflicts with it, has
+ * to run too. A task, which doesn't finish, has no state and runs again next time.
+ *
+ * @author vit
+ */
+class UpToDateChecker {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Directory holding state files, relative to the working directory.
+   */
+  static final Path STATE_DIR = Paths.get(".apprunner", "state");
+
+  private static final String CONFIG_KEY = "config";
+  private static final String INPUT_PREFIX = "in:";
+  private static final String OUTPUT_PREFIX = "out:";
+  private static final String DIRECTORY = "dir";
+  private static final String MISSING = "missing";
+
+  private final Settings settings;
+  private final Path stateDir;
+  private final String configHash;
+  private final List<Path> ignored;
+  private final Map<Task, Properties> previousStates;
+
+  /**
+   * @param settings parsed and resolved settings
+   * @param module module name as given in the command line
+   * @param variant name of the properties file, so that variants of one module don't share state
+   * @param configFiles module chain and the properties file
+   * @throws IOException if a configuration file can't be read
+   */
+  UpToDateChecker(Settings settings, String module, String variant, List<Path> configFiles)
+      throws IOException {
+    this.settings = settings;
+    this.stateDir =
+        STATE_DIR.toAbsolutePath().resolve(fileName(module)).resolve(fileName(variant));
+    this.configHash = configHash(settings, configFiles);
+    // Files AppRunner itself writes on every run
+    this.ignored = Arrays.asList(STATE_DIR.toAbsolutePath().getParent(),
+        Footprint.normalize(LoggingConfig.LOG_FILE));
+    this.previousStates = new HashMap<>();
+  }
+
+  /**
+   * Picks the tasks, which have to run, and logs the others as up to date. The state of the picked
+   * tasks is forgotten right away, so that they run next time, if this run fails.
+   *
+   * @param tasks tasks in the order they were requested
+   * @param force whether all tasks have to run anyway
+   * @return tasks to run in the same order
+   * @throws IOException
+   */
+  List<Task> outdated(List<Task> tasks, boolean force) throws IOException {
+    List<Task> result = new ArrayList<>();
+    List<Footprint> outdatedFootprints = new ArrayList<>();
+    for (Task task : tasks) {
+      Footprint footprint = Footprint.of(task, settings);
+      Properties previous = load(task);
+      previousStates.put(task, previous);
+      if (force || result.contains(task)
+          || outdatedFootprints.stream().anyMatch(footprint::conflictsWith)
+          || !isUpToDate(previous, snapshot(footprint, previous))) {
+        result.add(task);
+        outdatedFootprints.add(footprint);
+      } else {
+        logger.info(String.format("Task \"%s\" is up to date.", task.getName()));
+      }
+    }
+    for (Task task : result) {
+      Files.deleteIfExists(stateFile(task));
+    }
+    return result;
+  }
+
+  /**
+   * Writes the state of a task, which has just run successfully. A state, which can't be written,
+   * is only logged: the task runs again next time.
+   *
+   * @param task
+   */
+  void record(Task task) {
+    try {
+      Properties state = snapshot(Footprint.of(task, settings),
+          previousStates.getOrDefault(task, new Properties()));
+      Files.createDirectories(stateDir);
+      try (OutputStream out = Files.newOutputStream(stateFile(task))) {
+        state.store(out, String.format("State of task \"%s\"", task.getName()));
+      }
+    } catch (IOException e) {
+      logger.warning(String.format("Couldn't record the state of task \"%s\": %s",
+          task.getName(), e.getMessage()));
+    }
+  }
+
+  private Path stateFile(Task task) {
+    return stateDir.resolve(fileName(task.getName()) + ".properties");
+  }
+
+  private Properties load(Task task) throws IOException {
+    Properties state = new Properties();
+    Path file = stateFile(task);
+    if (Files.isRegularFile(file)) {
+      try (InputStream in = Files.newInputStream(file)) {
+        state.load(in);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Files match, if their sizes and hashes do. Modification times don't matter.
+   */
+  private static boolean isUpToDate(Properties previous, Properties current) {
+    if (!previous.keySet().equals(current.keySet())) {
+      return false;
+    }
+    for (String key : current.stringPropertyNames()) {
+      if (!Objects.equals(withoutTime(previous.getProperty(key)),
+          withoutTime(current.getProperty(key)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String withoutTime(String value) {
+    String[] parts = value.split(" ");
+    return parts.length == 3 ? parts[0] + " " + parts[2] : value;
+  }
+
+  /**
+   * @param previous earlier state to take hashes of unchanged files from
+   * @return current state of the files of the footprint
+   */
+  private Properties snapshot(Footprint footprint, Properties previous) throws IOException {
+    Properties state = new Properties();
+    state.setProperty(CONFIG_KEY, configHash);
+    Map<Path, String> known = new HashMap<>();
+    for (Footprint.Entry entry : footprint.getReads()) {
+      add(state, INPUT_PREFIX, entry, previous, known);
+    }
+    for (Footprint.Entry entry : footprint.getWrites()) {
+      add(state, OUTPUT_PREFIX, entry, previous, known);
+    }
+    return state;
+  }
+
+  private void add(Properties state, String prefix, Footprint.Entry entry, Properties previous,
+      Map<Path, String> known) throws IOException {
+    Path root = entry.getPath();
+    if (isIgnored(root)) {
+      return;
+    }
+    if (!Files.exists(root)) {
+      state.setProperty(prefix + root, MISSING);
+      return;
+    }
+    int depth = entry.isDeep() ? Integer.MAX_VALUE : 1;
+    Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), depth,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (isIgnored(dir)) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            state.setProperty(prefix + dir, DIRECTORY);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (isIgnored(file)) {
+              return FileVisitResult.CONTINUE;
+            }
+            String value;
+            if (attrs.isDirectory()) {
+              // Beyond the depth limit
+              value = DIRECTORY;
+            } else {
+              value = known.get(file);
+              if (value == null) {
+                value = fingerprint(file, attrs, previous.getProperty(prefix + file));
+                known.put(file, value);
+              }
+            }
+            state.setProperty(prefix + file, value);
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private boolean isIgnored(Path path) {
+    return ignored.stream().anyMatch(path::startsWith);
+  }
+
+  /**
+   * @param previous earlier fingerprint of the file, or null
+   * @return "size modification-time crc"
+   */
+  private static String fingerprint(Path file, BasicFileAttributes attrs, String previous)
+      throws IOException {
+    String sizeAndTime = attrs.size() + " " + attrs.lastModifiedTime().toMillis();
+    if (previous != null && previous.startsWith(sizeAndTime + " ")) {
+      return previous;
+    }
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[64 * 1024];
+    try (InputStream in = Files.newInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+      }
+    }
+    return sizeAndTime + " " + Long.toHexString(crc.getValue());
+  }
+
+  /**
+   * @param settings resolved settings
+   * @param configFiles module chain and the properties file
+   * @return hash of the configuration files and the resolved constants
+   * @throws IOException
+   */
+  static String configHash(Settings settings, List<Path> configFiles)
+      throws IOException {
+    CRC32 crc = new CRC32();
+    for (Path file : configFiles) {
+      crc.update(Files.readAllBytes(file));
+    }
+    Map<String, String> constants = new TreeMap<>(settings.getConfiguration().getConstants());
+    constants.forEach((name, value) -> crc
+        .update((name + "=" + value + "\n").getBytes(StandardCharsets.UTF_8)));
+    return Long.toHexString(crc.getValue());
+  }
+
+  static String fileName(String name) {
+    return name.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+}
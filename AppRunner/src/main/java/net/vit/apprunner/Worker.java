@@ -0,0 +1,230 @@
+package net.vit.apprunner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import net.vit.apprunner.Settings.Task;
+import net.vit.apprunner.util.DaemonThreadFactory;
+import net.vit.apprunner.util.LogTagFilter;
+
+/**
+ * Runs tasks on behalf of a {@link Coordinator}, one at a time, until it says that everything is
+ * done. The worker parses and resolves the same module and properties as the coordinator; the
+ * coordinator rejects it, if the resulting configuration differs. Log records are tagged with the
+ * id the coordinator gave to the worker.
+ * <p/>
+ * A worker, which can't send its heartbeat or hears nothing from the coordinator for longer than
+ * the heartbeat timeout, has lost the coordinator, which gives its task to another worker. If the
+ * worker is running a task, it exits at once with {@link #ABORT_EXIT_CODE}, so that two workers
+ * don't run the same task for long. Applications the task started are not stopped.
+ *
+ * @author vit
+ */
+class Worker {
+  private static final Logger logger = AppRunner.logger;
+
+  /**
+   * Exit code of a worker, which lost the coordinator while running a task.
+   */
+  static final int ABORT_EXIT_CODE = 3;
+
+  /**
+   * Runs one task.
+   */
+  static interface Runner {
+    void run(Task task) throws Exception;
+  }
+
+  /**
+   * Learns the id the coordinator gave the worker.
+   */
+  static interface Welcome {
+    void welcomed(String id) throws IOException;
+  }
+
+  private final Settings settings;
+  private final String coordinator;
+  private final String configHash;
+  private final Runner runner;
+  private final Welcome welcome;
+  /**
+   * Lines from the coordinator, empty once the connection is lost.
+   */
+  private final LinkedBlockingQueue<Optional<String>> lines;
+  private Writer writer;
+  private volatile long lastHeard;
+  private volatile boolean busy;
+  private volatile boolean exiting;
+
+  /**
+   * @param settings resolved settings
+   * @param coordinator address of the coordinator in the form {@code <host>:<port>}
+   * @param configHash hash of the configuration
+   * @param runner runs a task
+   * @param welcome called once the coordinator has accepted the worker, may be null
+   */
+  Worker(Settings settings, String coordinator, String configHash, Runner runner,
+      Welcome welcome) {
+    this.settings = settings;
+    this.coordinator = coordinator;
+    this.configHash = configHash;
+    this.runner = runner;
+    this.welcome = welcome;
+    this.lines = new LinkedBlockingQueue<>();
+  }
+
+  /**
+   * Connects to the coordinator and runs the tasks it sends.
+   *
+   * @throws IOException if the coordinator rejects the worker or the connection breaks
+   */
+  void run() throws IOException {
+    int separator = coordinator.lastIndexOf(':');
+    if (separator <= 0) {
+      String errorMessage = String.format(
+          "Coordinator address \"%s\" has to be of the form <host>:<port>.", coordinator);
+      throw new IllegalArgumentException(errorMessage);
+    }
+    ScheduledExecutorService heartbeat =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("apprunner-heartbeat"));
+    try (Socket socket = new Socket(coordinator.substring(0, separator),
+        Integer.parseInt(coordinator.substring(separator + 1)));
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+      writer = new BufferedWriter(
+          new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+      String key = System.getenv(Coordinator.WORKER_KEY_ENV);
+      send(Coordinator.HELLO + " " + configHash + (key != null ? " " + key : ""));
+      String line = reader.readLine();
+      String[] reply = line == null ? new String[] {""} : line.split(" ", 3);
+      if (!Coordinator.WELCOME.equals(reply[0]) || reply.length < 3 || !reply[2].matches("\\d+")) {
+        String errorMessage = String.format("Coordinator %s rejected the worker: %s", coordinator,
+            line == null ? "the connection was closed" : line);
+        throw new IOException(errorMessage);
+      }
+      long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(reply[2]));
+      LogTagFilter.setTag("worker-" + reply[1]);
+      if (welcome != null) {
+        welcome.welcomed(reply[1]);
+      }
+      logger.info(String.format("Connected to coordinator %s.", coordinator));
+      lastHeard = System.nanoTime();
+      Thread readerThread = new Thread(() -> read(reader), "apprunner-worker-reader");
+      readerThread.setDaemon(true);
+      readerThread.start();
+      heartbeat.scheduleAtFixedRate(() -> {
+        try {
+          send(Coordinator.HEARTBEAT);
+          if (System.nanoTime() - lastHeard > timeoutNanos) {
+            lost("it stopped sending heartbeats");
+          }
+        } catch (IOException e) {
+          lost(e.getMessage());
+        }
+      }, Coordinator.HEARTBEAT_INTERVAL_MILLIS, Coordinator.HEARTBEAT_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
+
+      while (true) {
+        String[] message = take().split(" ", 3);
+        if (Coordinator.HEARTBEAT.equals(message[0])) {
+          continue;
+        }
+        if (Coordinator.EXIT.equals(message[0])) {
+          exiting = true;
+          break;
+        }
+        if (!Coordinator.RUN.equals(message[0]) || message.length < 3) {
+          String errorMessage =
+              String.format("Unexpected message \"%s\".", String.join(" ", message));
+          throw new IOException(errorMessage);
+        }
+        Task task = settings.getTasks().get(message[2]);
+        try {
+          if (task == null) {
+            String errorMessage = String.format("Task \"%s\" isn't resolved by this worker.",
+                message[2]);
+            throw new IllegalArgumentException(errorMessage);
+          }
+          busy = true;
+          runner.run(task);
+          send(Coordinator.DONE + " " + message[1]);
+        } catch (Exception e) {
+          logger.severe(e.getMessage());
+          send(Coordinator.FAILED + " " + message[1] + " "
+              + String.valueOf(e.getMessage()).replaceAll("[\r\n]+", " "));
+        } finally {
+          busy = false;
+        }
+      }
+    } finally {
+      exiting = true;
+      heartbeat.shutdownNow();
+      LogTagFilter.setTag(null);
+    }
+  }
+
+  /**
+   * Called on the heartbeat thread, when the coordinator is lost. A running task is aborted with
+   * the whole worker, an idle worker finishes on its main thread.
+   */
+  private void lost(String reason) {
+    if (exiting) {
+      return;
+    }
+    if (busy) {
+      logger.severe(String.format("Lost coordinator %s: %s. Aborting the running task.",
+          coordinator, reason));
+      System.exit(ABORT_EXIT_CODE);
+    }
+    lines.add(Optional.empty());
+  }
+
+  private void read(BufferedReader reader) {
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lastHeard = System.nanoTime();
+        lines.add(Optional.of(line));
+      }
+    } catch (IOException e) {
+      // Reported as a lost connection
+    }
+    lines.add(Optional.empty());
+  }
+
+  private synchronized void send(String message) throws IOException {
+    writer.write(message + "\n");
+    writer.flush();
+  }
+
+  /**
+   * @return next line from the coordinator
+   * @throws IOException if the connection is lost
+   */
+  private String take() throws IOException {
+    Optional<String> line;
+    try {
+      line = lines.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the coordinator.");
+    }
+    if (!line.isPresent()) {
+      String errorMessage = String.format("Lost coordinator %s.", coordinator);
+      throw new IOException(errorMessage);
+    }
+    return line.get();
+  }
+}
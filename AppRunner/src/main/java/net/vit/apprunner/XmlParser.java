@@ -2,6 +2,8 @@ package net.vit.apprunner;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -17,6 +19,7 @@ import org.jdom2.input.sax.XMLReaderJDOMFactory;
 import org.jdom2.input.sax.XMLReaderXSDFactory;
 import com.github.fge.lambdas.Throwing;
 import net.vit.apprunner.Settings.*;
+import net.vit.apprunner.util.TraceRecorder;
 import net.vit.apprunner.util.Util;
 
 /**
@@ -32,30 +35,51 @@ public class XmlParser {
   private Settings settings;
   private SAXBuilder builder;
   private Set<String> visitedModules;
+  private final Map<String, Document> documents;
 
   public XmlParser(CliArgs cliArgs) {
     this.cliArgs = cliArgs;
     visitedModules = new HashSet<>();
+    documents = new HashMap<>();
   }
 
   /**
    * Parses XML document located in file system under the path {@link CliArgs#module}.
+   * <p/>
+   * Validated documents are kept, so that every further call returns a new independent
+   * {@link Settings} object without reading and validating the files again. This is what runs of
+   * several variants of the same module rely on, since resolving names modifies the settings.
    * 
    * @return new {@link Settings} object, representing the {@literal <module>.xml}
    * @throws JDOMException
    * @throws IOException
    */
-  Settings parseModuleXml() throws JDOMException, IOException {
+  synchronized Settings parseModuleXml() throws JDOMException, IOException {
     settings = new Settings();
+    visitedModules = new HashSet<>();
 
-    XMLReaderJDOMFactory factory = new XMLReaderXSDFactory(new File(
-        Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + "apprunner-module.xsd")));
-    builder = new SAXBuilder(factory);
+    if (builder == null) {
+      XMLReaderJDOMFactory factory = new XMLReaderXSDFactory(new File(
+          Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + "apprunner-module.xsd")));
+      builder = new SAXBuilder(factory);
+    }
     parseModuleRec(cliArgs.module);
 
     return settings;
   }
 
+  /**
+   * @return files of the module and all its ascendant modules parsed by
+   *         {@link #parseModuleXml()}
+   */
+  synchronized List<Path> getModuleFiles() {
+    return visitedModules.stream().map(XmlParser::moduleFile).collect(Collectors.toList());
+  }
+
+  private static Path moduleFile(String module) {
+    return Paths.get(Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + module));
+  }
+
   /**
    * Looks for {@literal <inherits>} tags to determine parent modules and parses them in DFS-order.
    * 
@@ -63,6 +87,8 @@ public class XmlParser {
    * @throws JDOMException
    * @throws IOException
    */
+  // Trace spans are only opened and closed, so the resources are never referenced
+  @SuppressWarnings("try")
   private void parseModuleRec(String module) throws JDOMException, IOException {
     if (!visitedModules.add(module)) {
       String errorMessage =
@@ -70,9 +96,26 @@ public class XmlParser {
       throw new JDOMException(errorMessage);
     }
 
-    Document document = builder
-        .build(new File(Util.correctFileSeparator(Util.CONFIG_DIR + File.separator + module)));
-    logger.finer(String.format("Parsing \"%s\".", module));
+    try (TraceRecorder.Span span = TraceRecorder.span("parse " + module, "xml")) {
+      parseModule(module);
+    }
+  }
+
+  /**
+   * Parses a single module. Parent modules are parsed first by calling
+   * {@link #parseModuleRec(String)}.
+   * 
+   * @param module a valid apprunner's module XML file to parse
+   * @throws JDOMException
+   * @throws IOException
+   */
+  private void parseModule(String module) throws JDOMException, IOException {
+    Document document = documents.get(module);
+    if (document == null) {
+      document = builder.build(moduleFile(module).toFile());
+      documents.put(module, document);
+    }
+    logger.finer(() -> String.format("Parsing \"%s\".", module));
 
     Element rootElement = document.getRootElement();
     // <inherits>
@@ -118,6 +161,10 @@ public class XmlParser {
         Task task = new Task(name);
         task.putAllConstants(constants);
         task.addAllActions(actions);
+        Optional.ofNullable(taskElement.getAttributeValue("max-io-rate"))
+            .ifPresent(task::setMaxIoRate);
+        Optional.ofNullable(taskElement.getAttributeValue("max-io-ops"))
+            .ifPresent(task::setMaxIoOps);
         settings.putTask(name, task);
       });
     });
@@ -154,7 +201,46 @@ public class XmlParser {
         Task.Operation.MoveOrCopy moveOrCopy =
             "move".equals(elementName) ? new Task.Operation.Move(fileNames, to)
                 : new Task.Operation.Copy(fileNames, to);
+        moveOrCopy.setVerify(Boolean.parseBoolean(internalOpElement.getAttributeValue("verify")));
+        Optional.ofNullable(internalOpElement.getAttributeValue("durability"))
+            .ifPresent(moveOrCopy::setDurability);
+        if (moveOrCopy instanceof Task.Operation.Copy) {
+          Optional.ofNullable(internalOpElement.getAttributeValue("mode"))
+              .ifPresent(((Task.Operation.Copy) moveOrCopy)::setMode);
+        }
         internals.add(moveOrCopy);
+      } else if ("pack".equals(elementName)) {
+        String to = internalOpElement.getAttributeValue("to");
+        List<FileNameBase> fileNames = internalOpElement.getChildren().stream()
+            .map((fileElement) -> createFileNameBase(fileElement)).collect(Collectors.toList());
+        Task.Operation.Pack pack = new Task.Operation.Pack(fileNames, to);
+        Optional.ofNullable(internalOpElement.getAttributeValue("format"))
+            .ifPresent(pack::setFormat);
+        Optional.ofNullable(internalOpElement.getAttributeValue("level")).map(Integer::valueOf)
+            .ifPresent(pack::setLevel);
+        internals.add(pack);
+      } else if ("unpack".equals(elementName)) {
+        String to = internalOpElement.getAttributeValue("to");
+        List<FileNameBase> fileNames = internalOpElement.getChildren().stream()
+            .map((fileElement) -> createFileNameBase(fileElement)).collect(Collectors.toList());
+        internals.add(new Task.Operation.Unpack(fileNames, to));
+      } else if ("patch-bytes".equals(elementName)) {
+        List<FileNameBase> fileNames = new ArrayList<>();
+        List<Task.Operation.PatchBytes.Replace> replaces = new ArrayList<>();
+        for (Element childElement : internalOpElement.getChildren()) {
+          if ("replace".equals(childElement.getName())) {
+            replaces.add(new Task.Operation.PatchBytes.Replace(
+                childElement.getAttributeValue("find"), childElement.getAttributeValue("with"),
+                Boolean.parseBoolean(childElement.getAttributeValue("hex"))));
+          } else {
+            fileNames.add(createFileNameBase(childElement));
+          }
+        }
+        Task.Operation.PatchBytes patchBytes =
+            new Task.Operation.PatchBytes(fileNames, replaces);
+        Optional.ofNullable(internalOpElement.getAttributeValue("to"))
+            .ifPresent(patchBytes::setTo);
+        internals.add(patchBytes);
       } else if ("delete".equals(elementName)) {
         List<FileNameBase> fileNames = internalOpElement.getChildren().stream()
             .map((fileElement) -> createFileNameBase(fileElement)).collect(Collectors.toList());
@@ -206,6 +292,17 @@ public class XmlParser {
    */
   private Task.Application createApplication(Element applicationElement) {
     String executablePath = applicationElement.getAttributeValue("executable");
+    Task.Application app = new Task.Application(executablePath);
+    app.setBatch(Boolean.parseBoolean(applicationElement.getAttributeValue("batch")));
+    app.setParallel(Boolean.parseBoolean(applicationElement.getAttributeValue("parallel")));
+    Optional.ofNullable(applicationElement.getAttributeValue("max-args")).map(Integer::valueOf)
+        .ifPresent(app::setMaxArgs);
+    Optional.ofNullable(applicationElement.getAttributeValue("output-dir"))
+        .ifPresent(app::setOutputDir);
+    Optional.ofNullable(applicationElement.getAttributeValue("tail-lines")).map(Integer::valueOf)
+        .ifPresent(app::setTailLines);
+    Optional.ofNullable(applicationElement.getAttributeValue("max-log-rate"))
+        .map(Integer::valueOf).ifPresent(app::setMaxLogRate);
     List<List<Task.Application.ApplicationInput>> executeList = new ArrayList<>();
     for (Element executeElement : applicationElement.getChildren()) {
       List<Task.Application.ApplicationInput> inputs = new ArrayList<>();
@@ -221,6 +318,13 @@ public class XmlParser {
           case "file":
             inputs.add(createFileNameBase(cliInputElement));
             break;
+          case "files":
+            Task.Application.FilesArg filesArg =
+                new Task.Application.FilesArg((FileNames) createFileNameBase(cliInputElement));
+            Optional.ofNullable(cliInputElement.getAttributeValue("key"))
+                .ifPresent(filesArg::setKey);
+            inputs.add(filesArg);
+            break;
           default:
             String errorMessage = "Default case was met. We should never be here.";
             throw new AssertionError(errorMessage);
@@ -229,11 +333,36 @@ public class XmlParser {
       executeList.add(inputs);
     }
 
-    Task.Application app = new Task.Application(executablePath);
     app.addAllExecutes(executeList);
     return app;
   }
 
+  /**
+   * Parses {@literal <pipeline>} tag.
+   * 
+   * @param pipelineElement
+   * @return {@link Task.Pipeline} object
+   */
+  private Task.Pipeline createPipeline(Element pipelineElement) {
+    List<Task.Application> stages = new ArrayList<>();
+    for (Element applicationElement : pipelineElement.getChildren()) {
+      Task.Application stage = createApplication(applicationElement);
+      if (stage.getExecuteList().size() != 1 || stage.isBatch()
+          || stage.getOutputDir().isPresent()) {
+        String errorMessage = String.format(
+            "Application \"%s\" of a <pipeline> must have exactly one <execute> and can't be "
+                + "batched or have an \"output-dir\".",
+            stage.getExecutablePath());
+        throw new IllegalArgumentException(errorMessage);
+      }
+      stages.add(stage);
+    }
+    Task.Pipeline pipeline = new Task.Pipeline(stages);
+    Optional.ofNullable(pipelineElement.getAttributeValue("output"))
+        .ifPresent(pipeline::setOutput);
+    return pipeline;
+  }
+
   /**
    * For the given element representing {@literal <actions>} tag, parses all actions within it.
    * 
@@ -247,6 +376,9 @@ public class XmlParser {
         case "application":
           actions.add(createApplication(actionElement));
           break;
+        case "pipeline":
+          actions.add(createPipeline(actionElement));
+          break;
         case "operation":
           String ref = actionElement.getAttributeValue("ref");
           if (ref != null) {
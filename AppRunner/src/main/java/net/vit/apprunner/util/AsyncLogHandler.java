@@ -0,0 +1,308 @@
+package net.vit.apprunner.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Logging handler, which never performs I/O on the thread that logs.
+ * <p/>
+ * Records are put into a bounded lock-free ring buffer. One writer thread drains it, formats
+ * records and writes them in batches, flushing once per batch. What happens when the buffer is full
+ * is decided by {@link OverflowPolicy}. {@link #close()} waits until every record accepted so far
+ * has been written.
+ * <p/>
+ * A {@link #setStatusLine(String) status line} may be kept below the records, e.g. to show
+ * progress on a console. The writer erases it before writing records and draws it again after
+ * them, so records never end up on the same line as the status.
+ *
+ * @author vit
+ */
+public class AsyncLogHandler extends Handler {
+  /**
+   * What to do with a record, when the ring buffer is full.
+   */
+  public static enum OverflowPolicy {
+    /**
+     * Logging thread waits until the writer frees a slot. Nothing is lost.
+     */
+    BLOCK,
+    /**
+     * Record is dropped. The number of dropped records is written to the log later on.
+     */
+    DROP,
+    /**
+     * Records of level {@link Level#WARNING} and above block, the rest are dropped.
+     */
+    DROP_BELOW_WARNING
+  }
+
+  /**
+   * Bounded multi-producer single-consumer queue. Every slot carries a sequence number, so
+   * producers only contend on the tail counter and never take a lock.
+   */
+  private static class RingBuffer {
+    private final LogRecord[] records;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    private final int mask;
+    private long head;
+
+    RingBuffer(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      records = new LogRecord[size];
+      sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; ++i) {
+        sequences.set(i, i);
+      }
+      tail = new AtomicLong();
+      mask = size - 1;
+    }
+
+    boolean offer(LogRecord record) {
+      while (true) {
+        long pos = tail.get();
+        int index = (int) pos & mask;
+        long diff = sequences.get(index) - pos;
+        if (diff == 0) {
+          if (tail.compareAndSet(pos, pos + 1)) {
+            records[index] = record;
+            sequences.lazySet(index, pos + 1);
+            return true;
+          }
+        } else if (diff < 0) {
+          // Full
+          return false;
+        }
+      }
+    }
+
+    /**
+     * Called by the writer thread only.
+     */
+    LogRecord poll() {
+      int index = (int) head & mask;
+      if (sequences.get(index) != head + 1) {
+        return null;
+      }
+      LogRecord record = records[index];
+      records[index] = null;
+      sequences.lazySet(index, head + records.length);
+      ++head;
+      return record;
+    }
+
+    boolean isEmpty() {
+      return tail.get() == head;
+    }
+  }
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  /**
+   * Moves to the start of the line and erases it.
+   */
+  private static final String ERASE_LINE = "\r\u001B[K";
+
+  private final RingBuffer buffer;
+  private final Writer writer;
+  private final boolean closeStream;
+  private final Thread writerThread;
+  private final AtomicLong dropped;
+  private volatile OverflowPolicy overflowPolicy;
+  private volatile boolean writerIdle;
+  private volatile boolean closed;
+  private volatile String statusLine;
+  private String shownStatusLine;
+
+  /**
+   * @param out stream to write formatted records to
+   * @param formatter formatter to apply on the writer thread
+   * @param capacity number of records the ring buffer can hold
+   * @param closeStream whether {@code out} has to be closed along with this handler. Should be
+   *        false for {@link System#out}
+   */
+  public AsyncLogHandler(OutputStream out, Formatter formatter, int capacity,
+      boolean closeStream) {
+    setFormatter(formatter);
+    this.buffer = new RingBuffer(capacity);
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()), 1 << 16);
+    this.closeStream = closeStream;
+    this.dropped = new AtomicLong();
+    this.overflowPolicy = OverflowPolicy.BLOCK;
+    this.writerThread = new Thread(this::drainLoop, "apprunner-log-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Sets the line shown below the records. The writer thread draws it soon.
+   *
+   * @param statusLine single line without a line break, null removes the line
+   */
+  public void setStatusLine(String statusLine) {
+    this.statusLine = statusLine;
+    LockSupport.unpark(writerThread);
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record)) {
+      return;
+    }
+
+    if (!buffer.offer(record)) {
+      OverflowPolicy policy = overflowPolicy;
+      boolean block = policy == OverflowPolicy.BLOCK || (policy == OverflowPolicy.DROP_BELOW_WARNING
+          && record.getLevel().intValue() >= Level.WARNING.intValue());
+      if (!block) {
+        dropped.incrementAndGet();
+        return;
+      }
+      do {
+        LockSupport.unpark(writerThread);
+        LockSupport.parkNanos(this, 10_000);
+      } while (!buffer.offer(record));
+    }
+
+    if (writerIdle) {
+      LockSupport.unpark(writerThread);
+    }
+  }
+
+  /**
+   * Records are flushed by the writer thread at the end of every batch. There is nothing to do
+   * here, so that callers never wait for disk.
+   */
+  @Override
+  public void flush() {}
+
+  /**
+   * Writes out every record accepted so far, stops the writer thread and closes the stream.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writerThread);
+    boolean interrupted = false;
+    while (writerThread.isAlive()) {
+      try {
+        writerThread.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      eraseStatusLine();
+      if (closeStream) {
+        writer.close();
+      } else {
+        writer.flush();
+      }
+    } catch (IOException e) {
+      reportError(null, e, ErrorManager.CLOSE_FAILURE);
+    }
+  }
+
+  private void drainLoop() {
+    while (true) {
+      // Read the flag before draining, so that records published before close() are not missed
+      boolean closing = closed;
+      int written = drainBatch();
+      if (written == 0) {
+        if (closing && buffer.isEmpty()) {
+          return;
+        }
+        writerIdle = true;
+        if (buffer.isEmpty() && !closed) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        writerIdle = false;
+      }
+    }
+  }
+
+  private int drainBatch() {
+    int written = 0;
+    LogRecord record;
+    try {
+      while ((record = buffer.poll()) != null) {
+        eraseStatusLine();
+        write(record);
+        ++written;
+      }
+      long droppedNow = dropped.getAndSet(0);
+      if (droppedNow > 0) {
+        LogRecord notice = new LogRecord(Level.WARNING, String.format(
+            "%d log records were dropped because the log buffer was full.", droppedNow));
+        eraseStatusLine();
+        write(notice);
+        ++written;
+      }
+      String wanted = closed ? null : statusLine;
+      boolean redraw = wanted == null ? shownStatusLine != null
+          : !wanted.equals(shownStatusLine);
+      if (redraw) {
+        eraseStatusLine();
+        if (wanted != null) {
+          writer.write(wanted);
+          shownStatusLine = wanted;
+        }
+      }
+      if (written > 0 || redraw) {
+        writer.flush();
+      }
+    } catch (IOException e) {
+      reportError(null, e, ErrorManager.WRITE_FAILURE);
+    }
+    return written;
+  }
+
+  /**
+   * Called by the writer thread only, or after it has stopped.
+   */
+  private void eraseStatusLine() throws IOException {
+    if (shownStatusLine != null) {
+      writer.write(ERASE_LINE);
+      shownStatusLine = null;
+    }
+  }
+
+  private void write(LogRecord record) throws IOException {
+    String message;
+    try {
+      message = getFormatter().format(record);
+    } catch (RuntimeException e) {
+      reportError(null, e, ErrorManager.FORMAT_FAILURE);
+      return;
+    }
+    writer.write(message);
+  }
+}
@@ -0,0 +1,29 @@
+package net.vit.apprunner.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named {@code <prefix>-1}, {@code <prefix>-2} etc., so that pools are easy
+ * to tell apart in thread dumps, JFR recordings and timeline traces, and never keep the JVM alive.
+ *
+ * @author vit
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+  private final String prefix;
+  private final AtomicInteger counter = new AtomicInteger();
+
+  /**
+   * @param prefix thread name prefix, e.g. "apprunner-worker"
+   */
+  public DaemonThreadFactory(String prefix) {
+    this.prefix = prefix;
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
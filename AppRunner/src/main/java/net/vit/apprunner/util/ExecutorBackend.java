@@ -0,0 +1,157 @@
+package net.vit.apprunner.util;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kind of threads blocking work runs on.
+ * <p/>
+ * {@link #PLATFORM} runs tasks on a fixed pool of daemon threads. {@link #VIRTUAL} starts a virtual
+ * thread per task, which costs next to nothing while it waits for the disk or a pipe, and lets at
+ * most the given number of them run at the same time by means of a semaphore. Virtual threads need
+ * Java 21. They are looked up reflectively, so the classes still compile for and run on Java 8,
+ * where {@link #isAvailable()} is false.
+ *
+ * @author vit
+ */
+public enum ExecutorBackend {
+  PLATFORM(Runtime.getRuntime().availableProcessors()),
+  VIRTUAL(Math.max(64, 8 * Runtime.getRuntime().availableProcessors()));
+
+  private final int ioParallelism;
+
+  ExecutorBackend(int ioParallelism) {
+    this.ioParallelism = ioParallelism;
+  }
+
+  /**
+   * @return number of blocking file operations worth running at the same time, e.g. copies of small
+   *         files. Waiting virtual threads are cheap, so this is larger for {@link #VIRTUAL}
+   */
+  public int getIoParallelism() {
+    return ioParallelism;
+  }
+
+  /**
+   * @return false if this backend can't be used on the running JVM
+   */
+  public boolean isAvailable() {
+    return this == PLATFORM || VirtualThreads.FACTORY_BUILDER != null;
+  }
+
+  /**
+   * Creates an executor running at most {@code parallelism} tasks at the same time.
+   *
+   * @param name thread name prefix, e.g. "apprunner-copy"
+   * @param parallelism maximum number of tasks running at the same time
+   * @return new executor. Shut it down after use
+   * @throws IllegalStateException if the backend is not {@link #isAvailable() available}
+   */
+  public ExecutorService newExecutor(String name, int parallelism) {
+    int permits = Math.max(1, parallelism);
+    if (this == PLATFORM) {
+      return Executors.newFixedThreadPool(permits, new DaemonThreadFactory(name));
+    }
+    return new GatedExecutorService(VirtualThreads.newThreadPerTaskExecutor(name), permits);
+  }
+
+  /**
+   * Reflective access to the Java 21 virtual thread API.
+   */
+  private static class VirtualThreads {
+    private static final Method FACTORY_BUILDER = method(Thread.class, "ofVirtual");
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+      try {
+        return type.getMethod(name, parameterTypes);
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+      if (FACTORY_BUILDER == null) {
+        throw new IllegalStateException("Virtual threads require Java 21 or newer.");
+      }
+      try {
+        // Thread.ofVirtual().name(name + "-", 1).factory()
+        Object builder = FACTORY_BUILDER.invoke(null);
+        Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+        builder = builderType.getMethod("name", String.class, long.class).invoke(builder,
+            name + "-", 1L);
+        ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        return (ExecutorService) Executors.class
+            .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Couldn't create a virtual thread executor.", e);
+      }
+    }
+  }
+
+  /**
+   * Lets at most a given number of tasks of the underlying executor run at the same time. Tasks
+   * over the limit wait for a permit on their own thread, which is fine for virtual threads.
+   */
+  private static class GatedExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+
+    GatedExecutorService(ExecutorService delegate, int permits) {
+      this.delegate = delegate;
+      this.permits = new Semaphore(permits);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      delegate.execute(() -> {
+        try {
+          permits.acquire();
+        } catch (InterruptedException e) {
+          // Shut down before the task got its turn. Don't let anybody wait for it forever
+          if (command instanceof Future) {
+            ((Future<?>) command).cancel(false);
+          }
+          Thread.currentThread().interrupt();
+          return;
+        }
+        try {
+          command.run();
+        } finally {
+          permits.release();
+        }
+      });
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package net.vit.apprunner.util;
+
+import java.util.logging.Filter;
+import java.util.logging.LogRecord;
+
+/**
+ * Prefixes messages with the tag of the logging thread, e.g. {@code [variant-a] Running task}, so
+ * that interleaved output of several runs in one process can be told apart.
+ * <p/>
+ * The tag is inherited by threads created by a tagged thread, so pools started on behalf of a run
+ * are tagged as well. The filter has to sit on the logger rather than on a handler, since it has
+ * to see the record on the logging thread, before an asynchronous handler hands it over.
+ *
+ * @author vit
+ */
+public class LogTagFilter implements Filter {
+  private static final InheritableThreadLocal<String> tag = new InheritableThreadLocal<>();
+
+  /**
+   * Tags records logged by the current thread and threads it creates from now on.
+   *
+   * @param value tag, or null to remove it
+   */
+  public static void setTag(String value) {
+    if (value == null) {
+      tag.remove();
+    } else {
+      tag.set(value);
+    }
+  }
+
+  @Override
+  public boolean isLoggable(LogRecord record) {
+    String value = tag.get();
+    if (value != null && record.getMessage() != null) {
+      record.setMessage("[" + value + "] " + record.getMessage());
+    }
+    return true;
+  }
+}
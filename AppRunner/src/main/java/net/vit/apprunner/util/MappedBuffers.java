@@ -0,0 +1,71 @@
+package net.vit.apprunner.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases memory-mapped regions without waiting for the garbage collector.
+ * <p/>
+ * A mapped region keeps its file locked on Windows until the buffer is collected, so a file that
+ * was just verified couldn't be renamed, moved or deleted by the next operation. There is no
+ * public API to unmap a buffer, so the JDK internal cleaner is invoked reflectively: through
+ * {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later, through
+ * {@code DirectByteBuffer.cleaner} on Java 8. If neither is available, the buffer is left to the
+ * garbage collector.
+ *
+ * @author vit
+ */
+public final class MappedBuffers {
+  private static interface Unmapper {
+    void unmap(MappedByteBuffer buffer) throws Exception;
+  }
+
+  private static final Unmapper UNMAPPER = findUnmapper();
+
+  private MappedBuffers() {}
+
+  /**
+   * Unmaps the buffer. It must not be accessed afterwards.
+   *
+   * @param buffer
+   */
+  public static void unmap(MappedByteBuffer buffer) {
+    if (UNMAPPER == null || buffer == null) {
+      return;
+    }
+    try {
+      UNMAPPER.unmap(buffer);
+    } catch (Exception e) {
+      // Left to the garbage collector
+    }
+  }
+
+  private static Unmapper findUnmapper() {
+    try {
+      // Java 9+
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", java.nio.ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      return (buffer) -> invokeCleaner.invoke(unsafe, buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Not Java 9+
+    }
+    try {
+      // Java 8
+      Class<?> directBufferClass = Class.forName("sun.nio.ch.DirectBuffer");
+      Method cleaner = directBufferClass.getMethod("cleaner");
+      Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return (buffer) -> {
+        Object bufferCleaner = cleaner.invoke(buffer);
+        if (bufferCleaner != null) {
+          clean.invoke(bufferCleaner);
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package net.vit.apprunner.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a raw deflate stream, compressing blocks of input on several threads the way {@code pigz}
+ * does.
+ * <p/>
+ * Input is cut into blocks of {@link #BLOCK_SIZE} bytes. Every block is compressed by its own
+ * {@link Deflater} primed with the last 32 KiB of the previous block, so the compression ratio
+ * stays close to that of a single deflater. A block other than the last one ends with a sync flush,
+ * which aligns it to a byte boundary, so the compressed blocks are simply concatenated in order.
+ * Only a bounded number of blocks is in flight at a time.
+ * <p/>
+ * The stream doesn't write any header or trailer. Callers wrap it into gzip or zip framing using
+ * {@link #getCrc()}, {@link #getBytesIn()} and {@link #getBytesOut()}.
+ *
+ * @author vit
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+  /**
+   * Size of one block of input.
+   */
+  public static final int BLOCK_SIZE = 128 * 1024;
+
+  /**
+   * Size of the deflate window.
+   */
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private final OutputStream out;
+  private final ExecutorService executor;
+  private final int level;
+  private final int maxInFlight;
+  private final ArrayDeque<Future<byte[]>> inFlight;
+  private final CRC32 crc;
+  private byte[] block;
+  private int blockLength;
+  private byte[] dictionary;
+  private long bytesIn;
+  private long bytesOut;
+  private boolean finished;
+
+  /**
+   * @param out stream to write compressed data to. It is not closed by {@link #finish()}
+   * @param executor pool to compress blocks on
+   * @param threads number of threads of the pool. Twice as many blocks may be in flight
+   * @param level compression level from 0 to 9, see {@link Deflater}
+   */
+  public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads,
+      int level) {
+    this.out = out;
+    this.executor = executor;
+    this.level = level;
+    this.maxInFlight = 2 * Math.max(1, threads);
+    this.inFlight = new ArrayDeque<>();
+    this.crc = new CRC32();
+    this.block = new byte[BLOCK_SIZE];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    block[blockLength++] = (byte) b;
+    if (blockLength == BLOCK_SIZE) {
+      submitBlock(false);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, BLOCK_SIZE - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+      if (blockLength == BLOCK_SIZE) {
+        submitBlock(false);
+      }
+    }
+  }
+
+  /**
+   * Compresses the remaining input, ends the deflate stream and writes everything out. Further
+   * writes are not allowed.
+   *
+   * @throws IOException
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    submitBlock(true);
+    while (!inFlight.isEmpty()) {
+      writeOldest();
+    }
+  }
+
+  /**
+   * Finishes the stream and closes the underlying one.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return CRC-32 of the input so far
+   */
+  public long getCrc() {
+    return crc.getValue();
+  }
+
+  /**
+   * @return number of bytes of input so far
+   */
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  /**
+   * @return number of compressed bytes written to the underlying stream so far
+   */
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  private void submitBlock(boolean last) throws IOException {
+    byte[] input = block;
+    int length = blockLength;
+    byte[] previous = dictionary;
+    crc.update(input, 0, length);
+    bytesIn += length;
+    if (!last) {
+      // Blocks other than the last one are full, so their tail is a complete window
+      dictionary = Arrays.copyOfRange(input, length - DICTIONARY_SIZE, length);
+      block = new byte[BLOCK_SIZE];
+      blockLength = 0;
+    }
+    inFlight.add(executor.submit(() -> compress(input, length, previous, last)));
+    while (inFlight.size() > maxInFlight) {
+      writeOldest();
+    }
+  }
+
+  private byte[] compress(byte[] input, int length, byte[] previous, boolean last) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (previous != null) {
+        deflater.setDictionary(previous);
+      }
+      deflater.setInput(input, 0, length);
+      ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+      byte[] buffer = new byte[16 * 1024];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buffer);
+          result.write(buffer, 0, n);
+        }
+      } else {
+        int n;
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          result.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+      return result.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeOldest() throws IOException {
+    byte[] compressed;
+    try {
+      compressed = inFlight.remove().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing.");
+    } catch (ExecutionException e) {
+      throw new IOException("Compression of a block failed.", e.getCause());
+    }
+    out.write(compressed);
+    bytesOut += compressed.length;
+  }
+}
@@ -0,0 +1,275 @@
+package net.vit.apprunner.util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records spans of work and writes them in Trace Event Format, which can be opened in
+ * chrome://tracing or Perfetto.
+ * <p/>
+ * Recording is process wide. While no recorder is {@link #start() started}, {@link #span(String,
+ * String)} returns a shared no-op span, so instrumented code pays a single volatile read. Each span
+ * becomes a "complete" event ({@code "ph":"X"}) on the lane of the thread that opened it. Spans,
+ * which may overlap on one thread or end on another one, are recorded as async events instead
+ * (see {@link #asyncSpan(String, String)}).
+ *
+ * @author vit
+ */
+public final class TraceRecorder {
+  /**
+   * A piece of work being timed. Closing the span records it.
+   */
+  public static class Span implements AutoCloseable {
+    private final TraceRecorder recorder;
+    private final String name;
+    private final String category;
+    private final long startNanos;
+    private final Thread thread;
+    private final long asyncId;
+    private Map<String, Object> args;
+
+    private Span(TraceRecorder recorder, String name, String category, long asyncId) {
+      this.recorder = recorder;
+      this.name = name;
+      this.category = category;
+      this.asyncId = asyncId;
+      this.thread = Thread.currentThread();
+      this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return false if nothing is being recorded. Use it to skip computing expensive arguments.
+     */
+    public boolean isRecording() {
+      return recorder != null;
+    }
+
+    /**
+     * Attaches an argument shown in the details pane of the trace viewer.
+     *
+     * @return this span
+     */
+    public Span arg(String key, Object value) {
+      if (recorder != null) {
+        if (args == null) {
+          args = new LinkedHashMap<>();
+        }
+        args.put(key, value);
+      }
+      return this;
+    }
+
+    @Override
+    public void close() {
+      if (recorder != null) {
+        recorder.add(this, System.nanoTime());
+      }
+    }
+  }
+
+  private static final Span NOOP = new Span(null, null, null, 0);
+  private static volatile TraceRecorder current;
+
+  private final long originNanos;
+  private final AtomicLong nextAsyncId;
+  private final ConcurrentLinkedQueue<String> events;
+  private final Map<Long, String> threadNames;
+
+  private TraceRecorder() {
+    originNanos = System.nanoTime();
+    nextAsyncId = new AtomicLong(1);
+    events = new ConcurrentLinkedQueue<>();
+    threadNames = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Starts recording, unless it has already been started.
+   */
+  public static synchronized void start() {
+    if (current == null) {
+      current = new TraceRecorder();
+    }
+  }
+
+  /**
+   * Stops recording and writes everything recorded so far to {@code out}.
+   *
+   * @param out destination JSON file
+   * @throws IOException
+   */
+  public static synchronized void stop(Path out) throws IOException {
+    TraceRecorder recorder = current;
+    current = null;
+    if (recorder != null) {
+      recorder.write(out);
+    }
+  }
+
+  /**
+   * @return true if spans are being recorded
+   */
+  public static boolean isRecording() {
+    return current != null;
+  }
+
+  /**
+   * Opens a new span on the current thread. Should be used in try-with-resources.
+   *
+   * @param name name shown on the span
+   * @param category comma separated categories, used for filtering in the viewer
+   * @return new span or a no-op span if nothing is being recorded
+   */
+  public static Span span(String name, String category) {
+    TraceRecorder recorder = current;
+    return recorder == null ? NOOP : new Span(recorder, name, category, 0);
+  }
+
+  /**
+   * Opens a new span, which may overlap with other spans and may be closed on any thread, e.g. a
+   * task whose actions run on a pool. The viewer shows it on a separate async track.
+   *
+   * @param name name shown on the span
+   * @param category comma separated categories, used for filtering in the viewer
+   * @return new span or a no-op span if nothing is being recorded
+   */
+  public static Span asyncSpan(String name, String category) {
+    TraceRecorder recorder = current;
+    return recorder == null ? NOOP
+        : new Span(recorder, name, category, recorder.nextAsyncId.getAndIncrement());
+  }
+
+  private void add(Span span, long endNanos) {
+    long tid = span.thread.getId();
+    threadNames.putIfAbsent(tid, span.thread.getName());
+    StringBuilder sb = new StringBuilder(128);
+    if (span.asyncId != 0) {
+      appendHeader(sb, span, "b", tid);
+      sb.append(",\"id\":").append(span.asyncId);
+      sb.append(",\"ts\":").append(micros(span.startNanos - originNanos)).append('}');
+      events.add(sb.toString());
+      sb.setLength(0);
+      appendHeader(sb, span, "e", tid);
+      sb.append(",\"id\":").append(span.asyncId);
+      sb.append(",\"ts\":").append(micros(endNanos - originNanos));
+    } else {
+      appendHeader(sb, span, "X", tid);
+      sb.append(",\"ts\":").append(micros(span.startNanos - originNanos));
+      sb.append(",\"dur\":").append(micros(endNanos - span.startNanos));
+    }
+    if (span.args != null) {
+      sb.append(",\"args\":{");
+      boolean first = true;
+      for (Map.Entry<String, Object> entry : span.args.entrySet()) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        appendJson(sb, entry.getKey());
+        sb.append(':');
+        Object value = entry.getValue();
+        if (value instanceof Number) {
+          sb.append(value);
+        } else {
+          appendJson(sb, String.valueOf(value));
+        }
+      }
+      sb.append('}');
+    }
+    sb.append('}');
+    events.add(sb.toString());
+  }
+
+  private static void appendHeader(StringBuilder sb, Span span, String phase, long tid) {
+    sb.append("{\"name\":");
+    appendJson(sb, span.name);
+    sb.append(",\"cat\":");
+    appendJson(sb, span.category);
+    sb.append(",\"ph\":\"").append(phase).append("\",\"pid\":1,\"tid\":").append(tid);
+  }
+
+  private void write(Path out) throws IOException {
+    List<String> metadata = new ArrayList<>();
+    metadata.add("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":\"AppRunner\"}}");
+    threadNames.forEach((tid, name) -> {
+      StringBuilder sb = new StringBuilder("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+      sb.append(tid).append(",\"args\":{\"name\":");
+      appendJson(sb, name);
+      metadata.add(sb.append("}}").toString());
+    });
+
+    Path parent = out.toAbsolutePath().getParent();
+    if (parent != null) {
+      Files.createDirectories(parent);
+    }
+    try (Writer writer = new BufferedWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8))) {
+      writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+      boolean first = true;
+      for (String event : metadata) {
+        first = writeEvent(writer, event, first);
+      }
+      for (String event : events) {
+        first = writeEvent(writer, event, first);
+      }
+      writer.write("\n]}\n");
+    }
+  }
+
+  private static boolean writeEvent(Writer writer, String event, boolean first) throws IOException {
+    if (!first) {
+      writer.write(",\n");
+    }
+    writer.write(event);
+    return false;
+  }
+
+  private static String micros(long nanos) {
+    return String.format(Locale.ROOT, "%d.%03d", nanos / 1000, nanos % 1000);
+  }
+
+  private static void appendJson(StringBuilder sb, String s) {
+    if (s == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < s.length(); ++i) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+}
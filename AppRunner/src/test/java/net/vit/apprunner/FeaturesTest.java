@@ -1,16 +1,56 @@
 package net.vit.apprunner;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.Before;
 import org.junit.Test;
+import net.vit.apprunner.util.AsyncLogHandler;
+import net.vit.apprunner.util.ExecutorBackend;
 import net.vit.apprunner.util.LCS;
 
 public class FeaturesTest {
@@ -74,6 +114,29 @@ public class FeaturesTest {
     assertTrue(filesExists("CI_lil_bdl_jeans.uasset"));
   }
   
+  @Test
+  public void testApplicationOutputToFiles() throws IOException {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    AppRunner appRunner = new AppRunner(getCliForTasks("run_shell_with_output_to_files"));
+    appRunner.launch();
+    Path stdOut = destPath.resolve("logs/run_shell_with_output_to_files_1_sh_1.stdout.log");
+    assertEquals(Arrays.asList("one", "two", "three"), Files.readAllLines(stdOut));
+    assertEquals(Arrays.asList("two", "three"), ProcessOutput.tail(stdOut, 2));
+    assertTrue(filesExists("logs/run_shell_with_output_to_files_1_sh_1.stderr.log"));
+
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < 10; ++i) {
+      output.append("line ").append(i).append('\n');
+    }
+    ProcessOutput processOutput = new ProcessOutput(Level.FINE, 3, 2);
+    long[] counts = processOutput.pump(new ByteArrayInputStream(output.toString().getBytes()));
+    assertEquals(10, counts[0]);
+    assertEquals(output.length(), counts[1]);
+    assertTrue(processOutput.getSuppressed() > 0);
+    assertEquals(Arrays.asList("line 7", "line 8", "line 9"), processOutput.getTail());
+  }
+
   @Test
   public void testMovingFolders() {
     cleanup();
@@ -99,6 +162,834 @@ public class FeaturesTest {
     assertFalse(filesExists("new/b321.txt"));
   }
 
+  @Test
+  public void testRenamingWithSeveralOptions() {
+    cleanup();
+    AppRunner appRunner = new AppRunner(getCliForTasks("copy_123", "rename_123_in_new_in_two_steps"));
+    appRunner.launch();
+    assertTrue(filesExists("new/a321.txt", "new/b321.txt"));
+    assertFalse(filesExists("new/a123.txt"));
+    assertFalse(filesExists("new/axy3.txt"));
+  }
+
+  @Test
+  public void testRenamingOntoExistingFileIsRefused() throws IOException {
+    cleanup();
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    Path existing = destPath.resolve("new/a321.txt");
+    Files.write(existing, "keep".getBytes(StandardCharsets.UTF_8));
+    new AppRunner(getCliForTasks("rename_123_in_new")).launch();
+    assertEquals("keep", new String(Files.readAllBytes(existing), StandardCharsets.UTF_8));
+    assertTrue(filesExists("new/a123.txt", "new/b123.txt"));
+    assertFalse(filesExists("new/b321.txt"));
+  }
+
+  @Test
+  public void testFlightRecordingContainsTaskEvents() throws IOException {
+    cleanup();
+    Path recording = destPath.resolve("apprunner.jfr");
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123")));
+    args.add("--jfr");
+    args.add(recording.toString());
+    new AppRunner(args.toArray(new String[0])).launch();
+    List<RecordedEvent> tasks = RecordingFile.readAllEvents(recording).stream()
+        .filter((event) -> event.getEventType().getName().equals("net.vit.apprunner.Task"))
+        .collect(Collectors.toList());
+    assertEquals(1, tasks.size());
+    assertEquals("copy_123", tasks.get(0).getString("taskName"));
+    assertEquals(1, tasks.get(0).getInt("actionCount"));
+  }
+
+  @Test
+  public void testTraceEndsFailedSpansInAnyLocale() throws IOException {
+    cleanup();
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    Files.write(destPath.resolve("new/a321.txt"), new byte[0]);
+    Path trace = destPath.resolve("trace.json");
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("rename_123_in_new")));
+    args.add("--trace-out");
+    args.add(trace.toString());
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(Locale.forLanguageTag("ar-EG"));
+    try {
+      new AppRunner(args.toArray(new String[0])).launch();
+    } finally {
+      Locale.setDefault(locale);
+    }
+    String json = new String(Files.readAllBytes(trace), StandardCharsets.UTF_8);
+    assertTrue(json.contains("{\"name\":\"rename\",\"cat\":\"operation\",\"ph\":\"X\""));
+    assertTrue(json.contains("{\"name\":\"rename_123_in_new\",\"cat\":\"task\",\"ph\":\"e\""));
+    assertFalse(Pattern.compile("\"(ts|dur)\":(?![0-9]+\\.[0-9]{3}[,}])").matcher(json).find());
+  }
+
+  @Test
+  public void testVerifiedCopyAndMove() throws IOException {
+    cleanup();
+    AppRunner appRunner =
+        new AppRunner(getCliForTasks("copy_dir001_to_z_and_move_to_w_verified"));
+    appRunner.launch();
+    assertTrue(filesExists("w/dir001/dir001_01/lalala.txt"));
+    assertFalse(filesExists("z/dir001"));
+    assertTrue(Arrays.equals(
+        Files.readAllBytes(Paths.get("dir_for_integration_testing/original/dir001/dir001_01/lalala.txt")),
+        Files.readAllBytes(destPath.resolve("w/dir001/dir001_01/lalala.txt"))));
+  }
+
+  @Test
+  public void testPackingAndUnpacking() throws IOException {
+    cleanup();
+    AppRunner appRunner = new AppRunner(getCliForTasks("pack_dir001_and_unpack"));
+    appRunner.launch();
+    assertTrue(filesExists("packed/dir001.zip", "packed/dir001.tar.gz"));
+    for (String dir : Arrays.asList("unzipped", "untarred")) {
+      assertTrue(filesExists(dir + "/abc.txt", dir + "/dir001/dir001_01/lalala.txt"));
+      assertTrue(Arrays.equals(
+          Files.readAllBytes(Paths.get("dir_for_integration_testing/original/abc.txt")),
+          Files.readAllBytes(destPath.resolve(dir + "/abc.txt"))));
+    }
+  }
+
+  @Test
+  public void testPatchingBytes() throws IOException {
+    cleanup();
+    AppRunner appRunner = new AppRunner(getCliForTasks("patch_lil_to_elz_and_eliza"));
+    appRunner.launch();
+    String original = new String(Files.readAllBytes(
+        Paths.get("dir_for_integration_testing/original/uassets/CI_lil_bdl_jeans.uasset")),
+        "ISO-8859-1");
+    String patched = new String(
+        Files.readAllBytes(destPath.resolve("patched/CI_lil_bdl_jeans.uasset")), "ISO-8859-1");
+    assertEquals(original.replace("lil", "eliza"), patched);
+  }
+
+  @Test
+  public void testLinkedCopies() throws IOException {
+    cleanup();
+    AppRunner appRunner = new AppRunner(getCliForTasks("link_uassets_and_patch_lil"));
+    appRunner.launch();
+    Path uassets = Paths.get("dir_for_integration_testing/original/uassets");
+    String original = new String(
+        Files.readAllBytes(uassets.resolve("CI_lil_bdl_jeans.uasset")), "ISO-8859-1");
+    String patched = new String(
+        Files.readAllBytes(destPath.resolve("linked/CI_lil_bdl_jeans.uasset")), "ISO-8859-1");
+    // The patched file must have been copied, otherwise the original would be patched too
+    assertTrue(original.contains("lil"));
+    assertEquals(original.replace("lil", "elz"), patched);
+    Path kungfu = destPath.resolve("linked/CI_frv_bdl_kungfu.uasset");
+    assertTrue(Arrays.equals(Files.readAllBytes(uassets.resolve("CI_frv_bdl_kungfu.uasset")),
+        Files.readAllBytes(kungfu)));
+    if (Files.getFileStore(kungfu).supportsFileAttributeView("unix")) {
+      assertEquals(1, Files.getAttribute(destPath.resolve("linked/CI_lil_bdl_jeans.uasset"),
+          "unix:nlink"));
+    }
+  }
+
+  @Test
+  public void testDryRunAndPreflightChecks() {
+    cleanup();
+    // Renaming and deleting find the files, which the copy before them would produce
+    List<String> args = new ArrayList<>(Arrays.asList(
+        getCliForTasks("copy_123", "rename_123_in_new", "delete_321_in_new")));
+    args.add("--dry-run");
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertFalse(filesExists("new"));
+
+    new AppRunner(getCliForTasks("copy_123", "copy_missing")).launch();
+    assertFalse(filesExists("new"));
+  }
+
+  @Test
+  public void testOptimizedActionsGiveTheSameResult() throws IOException {
+    cleanup();
+    String task = "copy_then_delete_sources_and_copy_to_tmp";
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks(task)));
+    args.add("--explain-plan");
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertFalse(filesExists("src"));
+
+    args = new ArrayList<>(Arrays.asList(getCliForTasks(task)));
+    args.add("--no-optimize");
+    new AppRunner(args.toArray(new String[0])).launch();
+    Map<String, String> declared = snapshot(destPath);
+    assertTrue(filesExists("src", "moved/a123.txt", "kept/a123.txt"));
+    assertFalse(filesExists("src/a123.txt", "tmp"));
+
+    cleanup();
+    new AppRunner(getCliForTasks(task)).launch();
+    assertEquals(declared, snapshot(destPath));
+
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    // The application lists the copies through an argument naming a directory, which doesn't
+    // exist yet
+    task = "copy_to_scratch_read_by_app_then_delete";
+    cleanup();
+    args = new ArrayList<>(Arrays.asList(getCliForTasks(task)));
+    args.add("--no-optimize");
+    new AppRunner(args.toArray(new String[0])).launch();
+    declared = snapshot(destPath);
+    assertTrue(filesExists("read.txt"));
+    assertFalse(filesExists("scratch"));
+
+    cleanup();
+    new AppRunner(getCliForTasks(task)).launch();
+    assertEquals(declared, snapshot(destPath));
+  }
+
+  @Test
+  public void testApplicationOutputNotExistingYetIsWaitedFor() throws IOException {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    Files.createDirectories(destPath.resolve("paks"));
+    Files.write(destPath.resolve("paks/old.pak"), new byte[0]);
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("make_pak", "move_paks")));
+    args.add("--jobs");
+    args.add("2");
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertTrue(filesExists("out/old.pak", "out/mod.pak"));
+  }
+
+  @Test
+  public void testFilesCreatedByApplicationsPassPreflight() {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    new AppRunner(getCliForTasks("make_pak", "move_paks")).launch();
+    assertTrue(filesExists("out/mod.pak"));
+    assertFalse(filesExists("paks/mod.pak"));
+  }
+
+  @Test
+  public void testSearchSeesDirectoriesCreatedDeepDown() {
+    cleanup();
+    new AppRunner(getCliForTasks("search_copy_deep_and_delete")).launch();
+    assertTrue(filesExists("copies/a123.txt"));
+    assertFalse(filesExists("a123.txt"));
+    assertFalse(filesExists("deep123"));
+  }
+
+  private static Map<String, String> snapshot(Path dir) throws IOException {
+    Map<String, String> result = new TreeMap<>();
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : (Iterable<Path>) paths::iterator) {
+        result.put(dir.relativize(path).toString().replace('\\', '/'),
+            Files.isDirectory(path) ? "" : new String(Files.readAllBytes(path), "UTF-8"));
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testWorkers() {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    // The first worker running the second task dies, the task is reassigned to the other one
+    List<String> args =
+        new ArrayList<>(Arrays.asList(getCliForTasks("copy_123", "kill_worker_once")));
+    args.addAll(Arrays.asList("--workers", "2", "--heartbeat-timeout", "30000"));
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertTrue(filesExists("new/a123.txt", "new/b123.txt", "killed", "survived"));
+
+    // Workers throttle copies the same way: 3.2K at 512 bytes per second take over four seconds
+    cleanup();
+    args = new ArrayList<>(Arrays.asList(getCliForTasks("sleep_then_copy_uassets")));
+    args.addAll(Arrays.asList("--workers", "1", "--io-rate", "dir_for_integration_testing=512"));
+    long start = System.nanoTime();
+    new AppRunner(args.toArray(new String[0])).launch();
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    assertTrue(filesExists("prefetched/CI_frv_bdl_kungfu.uasset",
+        "prefetched/CI_lil_bdl_jeans.uasset"));
+    assertTrue(elapsedMillis >= 4000);
+  }
+
+  @Test
+  public void testWorkerOutputIsLoggedByCoordinator() {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    List<LogRecord> records = Collections.synchronizedList(new ArrayList<>());
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        records.add(record);
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123")));
+    args.addAll(Arrays.asList("--workers", "1"));
+    AppRunner.logger.addHandler(handler);
+    try {
+      new AppRunner(args.toArray(new String[0])).launch();
+    } finally {
+      AppRunner.logger.removeHandler(handler);
+    }
+    assertTrue(filesExists("new/a123.txt", "new/b123.txt"));
+    // Worker lines are logged with their own level, without the time and level they were printed
+    // with
+    assertTrue(records.stream().anyMatch((record) -> record.getLevel() == Level.INFO
+        && record.getMessage().startsWith("[worker-1] Connected to coordinator ")));
+    Pattern printed = Pattern.compile("\\[\\d\\d:\\d\\d:\\d\\d\\] .*");
+    assertFalse(records.stream()
+        .anyMatch((record) -> printed.matcher(record.getMessage()).matches()));
+  }
+
+  @Test
+  public void testCoordinatorDropsMisbehavingPeers() throws Exception {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    int port;
+    try (ServerSocket probe = new ServerSocket(0)) {
+      port = probe.getLocalPort();
+    }
+    List<String> args =
+        new ArrayList<>(Arrays.asList(getCliForTasks("sleep_then_copy_uassets")));
+    args.addAll(Arrays.asList("--workers", "1", "--listen", String.valueOf(port)));
+    Thread coordinator = new Thread(() -> new AppRunner(args.toArray(new String[0])).launch());
+    coordinator.start();
+    // Neither peer said HELLO, so it can't have finished anything
+    for (String line : Arrays.asList("DONE 0", "FAILED x oops")) {
+      try (Socket socket = connect(port, 30000)) {
+        OutputStream out = socket.getOutputStream();
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        socket.setSoTimeout(10000);
+        assertEquals(-1, socket.getInputStream().read());
+      }
+    }
+    coordinator.join(60000);
+    assertTrue(filesExists("prefetched/CI_frv_bdl_kungfu.uasset",
+        "prefetched/CI_lil_bdl_jeans.uasset"));
+  }
+
+  private static Socket connect(int port, long timeoutMillis) throws Exception {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      try {
+        return new Socket("localhost", port);
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  @Test
+  public void testIoThrottle() throws IOException {
+    cleanup();
+    // 3.2K at 1K per second: the first second is free, the rest takes more than two seconds
+    long start = System.nanoTime();
+    new AppRunner(getCliForTasks("copy_uassets_throttled")).launch();
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    Path original = Paths.get("dir_for_integration_testing/original/uassets");
+    for (String name : Arrays.asList("CI_frv_bdl_kungfu.uasset", "CI_lil_bdl_jeans.uasset")) {
+      assertTrue(Arrays.equals(Files.readAllBytes(original.resolve(name)),
+          Files.readAllBytes(destPath.resolve("throttled").resolve(name))));
+    }
+    assertTrue(elapsedMillis >= 2000);
+
+    assertEquals(50L * 1024 * 1024, IoThrottle.parseRate("50M"));
+    IoThrottle.Bucket bucket = new IoThrottle.Bucket("test", false, 10);
+    assertEquals(0, bucket.take(10));
+    assertTrue(bucket.take(5) > 0);
+  }
+
+  @Test
+  public void testInputPrefetching() {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        messages.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    AppRunner.logger.addHandler(handler);
+    try {
+      new AppRunner(getCliForTasks("sleep_then_copy_uassets")).launch();
+    } finally {
+      AppRunner.logger.removeHandler(handler);
+    }
+    assertTrue(filesExists("prefetched/CI_frv_bdl_kungfu.uasset",
+        "prefetched/CI_lil_bdl_jeans.uasset"));
+    assertTrue(messages.stream().anyMatch((message) -> message.contains("Prefetched 2 file(s)")));
+
+    // Workers prefetch only if the coordinator does
+    cleanup();
+    messages.clear();
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("sleep_then_copy_uassets")));
+    args.addAll(Arrays.asList("--workers", "1", "--prefetch-budget", "0"));
+    AppRunner.logger.addHandler(handler);
+    try {
+      new AppRunner(args.toArray(new String[0])).launch();
+    } finally {
+      AppRunner.logger.removeHandler(handler);
+    }
+    assertTrue(filesExists("prefetched/CI_frv_bdl_kungfu.uasset",
+        "prefetched/CI_lil_bdl_jeans.uasset"));
+    assertTrue(messages.stream().anyMatch((message) -> message.startsWith("[worker-1] Run took")));
+    assertFalse(messages.stream().anyMatch((message) -> message.contains("Prefetched")));
+  }
+
+  @Test
+  public void testPipeline() throws IOException {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    cleanup();
+    new AppRunner(getCliForTasks("pipe_uasset_through_gzip")).launch();
+    assertTrue(Arrays.equals(
+        Files.readAllBytes(
+            Paths.get("dir_for_integration_testing/original/uassets/CI_frv_bdl_kungfu.uasset")),
+        Files.readAllBytes(destPath.resolve("piped/CI_frv_bdl_kungfu.uasset"))));
+    // "yes" never ends by itself, it stops when "head" has exited
+    assertEquals(Arrays.asList("y", "y", "y"),
+        Files.readAllLines(destPath.resolve("piped/yes.txt")));
+  }
+
+  @Test
+  public void testChunkedCopy() throws IOException {
+    cleanup();
+    Path source = Files.createDirectories(destPath).resolve("large.bin");
+    byte[] content = new byte[1024 * 1024 + 123];
+    new Random(content.length).nextBytes(content);
+    Files.write(source, content);
+    ChunkedFileCopier copier = new ChunkedFileCopier(ExecutorBackend.PLATFORM, 1, 64 * 1024, 4);
+    assertTrue(copier.applies(content.length));
+    assertFalse(copier.applies(64 * 1024));
+
+    Path target = Files.write(destPath.resolve("large_copy.bin"), new byte[] {1});
+    AtomicLong charged = new AtomicLong();
+    copier.copy(source, target, charged::addAndGet);
+    assertTrue(Arrays.equals(content, Files.readAllBytes(target)));
+    assertEquals(content.length, charged.get());
+
+    // A failed range leaves no partial copy behind
+    Path failed = destPath.resolve("large_failed.bin");
+    String error = null;
+    try {
+      copier.copy(source, failed, (bytes) -> {
+        if (charged.addAndGet(bytes) > 3 * content.length / 2) {
+          throw new IOException("No space left on device");
+        }
+      });
+    } catch (IOException e) {
+      error = e.getMessage();
+    }
+    assertEquals("No space left on device", error);
+    assertFalse(Files.exists(failed));
+  }
+
+  @Test
+  public void testDurableCopiesAndMoves() throws IOException {
+    cleanup();
+    new AppRunner(getCliForTasks("copy_durably_then_move_durably")).launch();
+    assertTrue(filesExists("durable/dir001/a123.txt", "durable/dir001/dir001_01/lalala.txt",
+        "durable_moved/CI_frv_bdl_kungfu.uasset", "durable_moved/CI_lil_bdl_jeans.uasset"));
+    assertFalse(filesExists("durable/CI_frv_bdl_kungfu.uasset"));
+    try (Stream<Path> paths = Files.walk(destPath)) {
+      assertFalse(paths.anyMatch(
+          (path) -> path.getFileName().toString().endsWith(DurabilityBarrier.TEMP_SUFFIX)));
+    }
+
+    // Files of a failed operation never show up under their names
+    ExecutorService executor = ExecutorBackend.PLATFORM.newExecutor("test", 1);
+    try {
+      DurabilityBarrier barrier =
+          new DurabilityBarrier(DurabilityBarrier.Mode.OPERATION, executor);
+      Path target = destPath.resolve("durable/uncommitted.txt");
+      Files.write(barrier.pathFor(target), new byte[] {1});
+      barrier.written(target);
+      barrier.abort();
+      assertFalse(filesExists("durable/uncommitted.txt",
+          "durable/uncommitted.txt" + DurabilityBarrier.TEMP_SUFFIX));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testProgress() throws IOException, InterruptedException {
+    cleanup();
+    Path progressFile = Files.createDirectories(destPath).resolve("progress.json");
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123")));
+    args.addAll(Arrays.asList("--force", "--progress-file", progressFile.toString()));
+    new AppRunner(args.toArray(new String[0])).launch();
+    String json = new String(Files.readAllBytes(progressFile), "UTF-8");
+    assertTrue(json, json.contains("\"state\":\"finished\""));
+    assertTrue(json, json.contains("\"tasks\":{\"done\":1,\"total\":1}"));
+    Matcher files = Pattern.compile("\"files\":\\{\"done\":(\\d+),\"total\":(\\d+)").matcher(json);
+    assertTrue(json, files.find());
+    assertEquals(files.group(2), files.group(1));
+    assertTrue(Long.parseLong(files.group(2)) > 0);
+    Matcher bytes = Pattern.compile("\"bytes\":\\{\"done\":(\\d+),\"total\":(\\d+)").matcher(json);
+    assertTrue(json, bytes.find());
+    assertEquals(bytes.group(2), bytes.group(1));
+
+    // The status line is erased before records and drawn again below them
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AsyncLogHandler handler = new AsyncLogHandler(out, new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        return record.getMessage() + "\n";
+      }
+    }, 16, false);
+    handler.publish(new LogRecord(Level.INFO, "first"));
+    handler.setStatusLine("[ 50%] status");
+    for (int i = 0; i < 500 && !out.toString("UTF-8").contains("status"); ++i) {
+      Thread.sleep(10);
+    }
+    handler.publish(new LogRecord(Level.INFO, "second"));
+    handler.close();
+    String console = out.toString("UTF-8");
+    assertTrue(console, console.contains("[ 50%] status\r\u001B[Ksecond\n"));
+    assertEquals("first\nsecond\n", console.replace("[ 50%] status\r\u001B[K", ""));
+  }
+
+  @Test
+  public void testAsyncLogHandlerLosesNothingOnClose() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AsyncLogHandler handler = new AsyncLogHandler(out, new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        return record.getMessage() + "\n";
+      }
+    }, 16, false);
+    int producers = 8;
+    int recordsPerProducer = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int p = 0; p < producers; ++p) {
+        int producer = p;
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < recordsPerProducer; ++i) {
+            handler.publish(new LogRecord(Level.FINE, producer + "-" + i));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    handler.close();
+
+    List<String> lines = Arrays.asList(out.toString("UTF-8").split("\n"));
+    assertEquals(producers * recordsPerProducer, lines.size());
+    assertEquals(lines.size(), new HashSet<>(lines).size());
+    // Every producer's records keep their order
+    int[] next = new int[producers];
+    for (String line : lines) {
+      String[] parts = line.split("-");
+      int producer = Integer.parseInt(parts[0]);
+      assertEquals(line, next[producer]++, Integer.parseInt(parts[1]));
+    }
+  }
+
+  @Test
+  public void testAsyncLogHandlerOverflowPolicies() throws Exception {
+    String notice = " log records were dropped because the log buffer was full.";
+
+    List<String> lines = overflow(AsyncLogHandler.OverflowPolicy.BLOCK, true);
+    assertEquals(Arrays.asList("stuck", "queued-0", "queued-1", "queued-2", "queued-3",
+        "overflow-info", "overflow-warning"), lines);
+
+    lines = overflow(AsyncLogHandler.OverflowPolicy.DROP, false);
+    assertEquals(Arrays.asList("stuck", "queued-0", "queued-1", "queued-2", "queued-3",
+        "2" + notice), lines);
+
+    // The warning waits for a slot, the info is dropped
+    lines = overflow(AsyncLogHandler.OverflowPolicy.DROP_BELOW_WARNING, true);
+    assertEquals(Arrays.asList("stuck", "queued-0", "queued-1", "queued-2", "queued-3"),
+        lines.subList(0, 5));
+    assertEquals(new HashSet<>(Arrays.asList("overflow-warning", "1" + notice)),
+        new HashSet<>(lines.subList(5, lines.size())));
+  }
+
+  /**
+   * Fills the ring buffer of a handler, whose writer is stuck writing the first record, and logs
+   * an info and a warning more.
+   *
+   * @param producerBlocks whether the overflowing records are expected to wait for the writer
+   * @return lines written
+   */
+  private static List<String> overflow(AsyncLogHandler.OverflowPolicy policy,
+      boolean producerBlocks) throws Exception {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch unstuck = new CountDownLatch(1);
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    OutputStream out = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        writing.countDown();
+        try {
+          unstuck.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        written.write(b, off, len);
+      }
+    };
+    AsyncLogHandler handler = new AsyncLogHandler(out, new Formatter() {
+      @Override
+      public String format(LogRecord record) {
+        return record.getMessage() + "\n";
+      }
+    }, 4, false);
+    handler.setOverflowPolicy(policy);
+    handler.publish(new LogRecord(Level.INFO, "stuck"));
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 4; ++i) {
+      handler.publish(new LogRecord(Level.INFO, "queued-" + i));
+    }
+    Thread producer = new Thread(() -> {
+      handler.publish(new LogRecord(Level.INFO, "overflow-info"));
+      handler.publish(new LogRecord(Level.WARNING, "overflow-warning"));
+    });
+    producer.start();
+    producer.join(500);
+    assertEquals(policy.toString(), producerBlocks, producer.isAlive());
+
+    unstuck.countDown();
+    producer.join(10000);
+    assertFalse(producer.isAlive());
+    handler.close();
+    return Arrays.asList(written.toString("UTF-8").split("\n"));
+  }
+
+  @Test
+  public void testCriticalPathScheduling() throws IOException {
+    cleanup();
+    // The task requested second took longest before
+    Path historyFile = RunHistory.fileOf("test\\module1.xml");
+    Files.createDirectories(historyFile.getParent());
+    // The history of earlier runs is put back at the end, so that it doesn't affect other tests
+    byte[] earlierHistory = Files.exists(historyFile) ? Files.readAllBytes(historyFile) : null;
+    try {
+      Properties history = new Properties();
+      history.setProperty("io:copy_123#0", "10");
+      history.setProperty("io:copy_dir001_to_z_and_move_to_w_verified#0", "5000");
+      try (OutputStream out = Files.newOutputStream(historyFile)) {
+        history.store(out, null);
+      }
+
+      List<String> messages = Collections.synchronizedList(new ArrayList<>());
+      Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+          messages.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+      };
+      List<String> args = new ArrayList<>(Arrays.asList(
+          getCliForTasks("copy_123", "copy_dir001_to_z_and_move_to_w_verified")));
+      // Both copy on one disk, which takes one operation at a time
+      args.addAll(Arrays.asList("--force", "--jobs", "2", "--io-lanes", "1"));
+      AppRunner.logger.addHandler(handler);
+      try {
+        new AppRunner(args.toArray(new String[0])).launch();
+      } finally {
+        AppRunner.logger.removeHandler(handler);
+      }
+      List<String> started = messages.stream()
+          .filter((message) -> message.startsWith("--- Running task"))
+          .collect(Collectors.toList());
+      assertEquals(
+          Arrays.asList("--- Running task \"copy_dir001_to_z_and_move_to_w_verified\" ---",
+              "--- Running task \"copy_123\" ---"),
+          started);
+      assertTrue(messages.stream()
+          .anyMatch((message) -> message.matches("Run took .* s, predicted 5\\.0 s from the "
+              + "history of 2 of 2 action\\(s\\)\\.")));
+
+      // The new duration is averaged with the recorded one
+      history.clear();
+      try (InputStream in = Files.newInputStream(historyFile)) {
+        history.load(in);
+      }
+      long copy =
+          Long.parseLong(history.getProperty("io:copy_dir001_to_z_and_move_to_w_verified#0"));
+      assertTrue(copy >= 2500 && copy < 5000);
+      assertTrue(history.containsKey("task:copy_123"));
+      assertEquals("0", history.getProperty("processes:copy_123"));
+    } finally {
+      if (earlierHistory != null) {
+        Files.write(historyFile, earlierHistory);
+      } else {
+        Files.deleteIfExists(historyFile);
+      }
+    }
+  }
+
+  @Test
+  public void testParallelScheduling() {
+    cleanup();
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks(
+        "copy_dir001_to_x_and_y_then_abc_to_dir001_in_x_and_then_dir001_from_y_to_x", "copy_123",
+        "rename_123_in_new_in_two_steps")));
+    args.addAll(Arrays.asList("--jobs", "4", "--io-lanes", "4"));
+    AppRunner appRunner = new AppRunner(args.toArray(new String[0]));
+    appRunner.launch();
+    assertTrue(filesExists("x/dir001", "y/dir001", "x/abc.txt", "x/dir001/dir001_01/lalala.txt"));
+    assertTrue(filesExists("new/a321.txt", "new/b321.txt"));
+    assertFalse(filesExists("new/a123.txt"));
+  }
+
+  @Test
+  public void testUpToDateTasksAreSkipped() throws IOException {
+    cleanup();
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    Path copied = destPath.resolve("new/a123.txt");
+    FileTime marker = FileTime.fromMillis(1000);
+    Files.setLastModifiedTime(copied, marker);
+    // Only touched: still up to date
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    assertEquals(marker, Files.getLastModifiedTime(copied));
+
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123")));
+    args.add("--force");
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertFalse(marker.equals(Files.getLastModifiedTime(copied)));
+
+    byte[] original = Files.readAllBytes(copied);
+    Files.write(copied, new byte[] {'x'});
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    assertTrue(Arrays.equals(original, Files.readAllBytes(copied)));
+  }
+
+  @Test
+  public void testTaskUndoneByLaterTaskRunsAgain() throws IOException {
+    cleanup();
+    new AppRunner(getCliForTasks("copy_123", "delete_123_in_new")).launch();
+    Path copied = destPath.resolve("new/a123.txt");
+    assertFalse(Files.exists(copied));
+    new AppRunner(getCliForTasks("copy_123")).launch();
+    assertTrue(Files.exists(copied));
+  }
+
+  @Test
+  public void testWatchReRunsOnlyAffectedTasks() throws Exception {
+    cleanup();
+    List<String> messages = Collections.synchronizedList(new ArrayList<>());
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        messages.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123", "copy_uassets")));
+    args.addAll(Arrays.asList("--watch", "--watch-debounce", "100"));
+    AppRunner appRunner = new AppRunner(args.toArray(new String[0]));
+    Thread thread = new Thread(appRunner::launch);
+    AppRunner.logger.addHandler(handler);
+    try {
+      thread.start();
+      awaitMessages(messages, "Watching for changes.", 1);
+      assertTrue(filesExists("new/a123.txt", "uassets"));
+
+      Path input = Paths.get("dir_for_integration_testing/original/dir001/a123.txt");
+      Files.write(input, Files.readAllBytes(input));
+      awaitMessages(messages, "Watching for changes.", 2);
+    } finally {
+      appRunner.stopWatching();
+      thread.join(10000);
+      AppRunner.logger.removeHandler(handler);
+    }
+    assertFalse(thread.isAlive());
+    List<String> reRuns;
+    synchronized (messages) {
+      reRuns = messages.stream().filter((message) -> message.contains("Re-running"))
+          .collect(Collectors.toList());
+    }
+    assertEquals(Collections.singletonList("1 path(s) changed. Re-running [copy_123]."), reRuns);
+  }
+
+  private static void awaitMessages(List<String> messages, String prefix, int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (true) {
+      synchronized (messages) {
+        if (messages.stream().filter((message) -> message.startsWith(prefix)).count() >= count) {
+          return;
+        }
+      }
+      assertTrue(String.format("No %d message(s) \"%s...\" were logged.", count, prefix),
+          System.nanoTime() < deadline);
+      Thread.sleep(20);
+    }
+  }
+
+  @Test
+  public void testParallelVariants() {
+    cleanup();
+    String args = "-m test\\module1.xml -p test\\variants -t copy_123 --parallel-variants 2";
+    AppRunner appRunner = new AppRunner(args.split(" "));
+    appRunner.launch();
+    assertTrue(filesExists("red/a123.txt", "red/b123.txt", "blue/a123.txt", "blue/b123.txt"));
+    assertFalse(filesExists("new"));
+  }
+
+  @Test
+  public void testExecutorBackends() throws Exception {
+    for (ExecutorBackend backend : ExecutorBackend.values()) {
+      if (!backend.isAvailable()) {
+        continue;
+      }
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger maxRunning = new AtomicInteger();
+      ExecutorService executor = backend.newExecutor("test", 3);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+          futures.add(executor.submit(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            running.decrementAndGet();
+            return null;
+          }));
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+      assertTrue(backend + " ran " + maxRunning + " tasks at once", maxRunning.get() <= 3);
+    }
+
+    cleanup();
+    List<String> args = new ArrayList<>(Arrays.asList(getCliForTasks("copy_123")));
+    args.addAll(Arrays.asList("--executor", "VIRTUAL", "--force"));
+    new AppRunner(args.toArray(new String[0])).launch();
+    assertTrue(filesExists("new/a123.txt", "new/b123.txt"));
+  }
+
   @Test
   public void testModuleInheritance() {
     cleanup();
@@ -115,6 +1006,26 @@ public class FeaturesTest {
     assertFalse(filesExists("new/b123.txt"));
   }
   
+  @Test
+  public void testCommandLineBatching() {
+    List<List<String>> units = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      units.add(Arrays.asList("-f", "file" + i));
+    }
+    List<List<String>> commands = new CommandLineBatcher(Arrays.asList("app.exe", "pack"),
+        Collections.singletonList("out.pak"), Optional.of(2), 1000).split(units);
+    assertEquals(3, commands.size());
+    assertEquals(Arrays.asList("app.exe", "pack", "-f", "file0", "-f", "file1", "out.pak"),
+        commands.get(0));
+    assertEquals(Arrays.asList("app.exe", "pack", "-f", "file4", "out.pak"), commands.get(2));
+
+    // "app.exe" + "-f file0" take (7+3)+(2+3)+(5+3) = 23 characters, each next unit 13 more
+    commands = new CommandLineBatcher(Collections.singletonList("app.exe"),
+        Collections.emptyList(), Optional.empty(), 40).split(units);
+    assertEquals(3, commands.size());
+    assertEquals(Arrays.asList("app.exe", "-f", "file4"), commands.get(2));
+  }
+
   @Test
   public void testLCS() {
     assertTrue(new LCS("GAC", "AGCAT").computeLcsLength() == 2);